@@ -1,10 +1,16 @@
 package org.seqcode.projects.multigps;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.seqcode.deepseq.events.BindingManager;
 import org.seqcode.deepseq.events.BindingModel;
@@ -25,6 +31,7 @@ import org.seqcode.math.diff.TMMNormalization;
 import org.seqcode.projects.multigps.framework.MultiGPSConfig;
 import org.seqcode.projects.multigps.framework.OutputFormatter;
 import org.seqcode.projects.multigps.framework.PotentialRegionFilter;
+import org.seqcode.projects.multigps.framework.TrainingCheckpoint;
 import org.seqcode.projects.multigps.mixturemodel.BindingMixture;
 import org.seqcode.projects.multigps.utilities.EventsPostAnalysis;
 
@@ -43,6 +50,9 @@ public class MultiGPS {
 	private CountsDataset data;
 	protected Normalization normalizer;
 	protected Map<ControlledExperiment, List<BindingModel>> repBindingModels;
+	protected TrainingCheckpoint resumeCheckpoint=null; //Checkpoint that training resumes from (null if starting from the beginning)
+	protected ExecutorService checkpointWriter=null; //Writes checkpoints in the background
+	protected Future<?> lastCheckpointWrite=null;
 	
 	public MultiGPS(GenomeConfig gcon, ExptConfig econ, EventsConfig evcon, MultiGPSConfig c, ExperimentManager eMan){
 		gconfig = gcon;
@@ -68,13 +78,25 @@ public class MultiGPS {
 			repBindingModels.put(rep, new ArrayList<BindingModel>());
 			repBindingModels.get(rep).add(bindingManager.getBindingModel(rep));
 		}
+		//If resuming, restore the binding models & motifs from the last checkpoint
+		if(mgpsconfig.getResume()){
+			resumeCheckpoint = loadCheckpoint();
+			if(resumeCheckpoint!=null)
+				resumeCheckpoint.restoreModels(manager, bindingManager, repBindingModels);
+		}
 		for(ExperimentCondition cond : manager.getConditions())
 			bindingManager.updateMaxInfluenceRange(cond);
 		
-		//Find potential binding regions
-		System.err.println("Finding potential binding regions.");
+		//Find potential binding regions (or restore them from the checkpoint)
 		potentialFilter = new PotentialRegionFilter(evconfig, mgpsconfig, econfig, manager, bindingManager);
-		List<Region> potentials = potentialFilter.execute();
+		List<Region> potentials;
+		if(resumeCheckpoint!=null){
+			System.err.println("Restoring potential binding regions from the checkpoint.");
+			potentials = potentialFilter.restoreCheckpoint(resumeCheckpoint);
+		}else{
+			System.err.println("Finding potential binding regions.");
+			potentials = potentialFilter.execute();
+		}
 		System.err.println(potentials.size()+" potential regions found.");
 		if(potentials.size()==0){
 			System.err.println("No potential regions - exiting.");
@@ -93,6 +115,12 @@ public class MultiGPS {
 		
 		int round = 0;
 		boolean converged = false;
+		if(resumeCheckpoint!=null){
+			mixtureModel.restoreCheckpoint(resumeCheckpoint);
+			round = resumeCheckpoint.getRound();
+			converged = resumeCheckpoint.isConverged();
+			resumeCheckpoint=null;
+		}
         while (!converged){
         	
             System.err.println("\n============================ Round "+round+" ============================");
@@ -130,7 +158,12 @@ public class MultiGPS {
             	for(int l=0; l<kl.length; l++)
             		converged = converged && (kl[l]<-5 || kl[l].isNaN());
             }
+            
+            //Save a checkpoint of the completed round
+            if(mgpsconfig.getWriteCheckpoints())
+            	saveCheckpoint(round, converged);
         }
+        waitForCheckpoint();
         outFormatter.plotAllReadDistributions(repBindingModels);
         
         //ML quantification of events
@@ -184,6 +217,88 @@ public class MultiGPS {
         postAnalyzer.execute(400);
     }
 	
+	/**
+	 * Checkpoint file in the output directory
+	 */
+	protected File getCheckpointFile(){
+		return new File(mgpsconfig.getOutputIntermediateDir(), mgpsconfig.getOutBase()+".checkpoint");
+	}
+	
+	/**
+	 * Load the last checkpoint
+	 * @return checkpoint, or null if there is no usable checkpoint (training then starts from the beginning)
+	 */
+	protected TrainingCheckpoint loadCheckpoint(){
+		File f = getCheckpointFile();
+		if(!f.exists()){
+			System.err.println("No checkpoint found at "+f.getPath()+" - starting from the beginning.");
+			return null;
+		}
+		try {
+			TrainingCheckpoint cp = TrainingCheckpoint.read(f);
+			String mismatch = cp.mismatch(manager, gconfig.getGenome(), PotentialRegionFilter.getSettings(mgpsconfig, econfig));
+			if(mismatch!=null){
+				System.err.println("Checkpoint "+f.getPath()+" does not match this run ("+mismatch+") - starting from the beginning.");
+				return null;
+			}
+			System.err.println("Resuming from checkpoint "+f.getPath()+" ("+cp.getRound()+" training rounds completed"+(cp.isConverged() ? ", converged" : "")+").");
+			return cp;
+		} catch (IOException e) {
+			System.err.println("Could not read checkpoint "+f.getPath()+" ("+e.getMessage()+") - starting from the beginning.");
+			return null;
+		}
+	}
+	
+	/**
+	 * Capture the training state at the end of a round, and write it to the checkpoint file in the background. 
+	 * The state is copied before this method returns, so the next round can start while the checkpoint is written. 
+	 * Waits for the last checkpoint to be written first, so only one checkpoint is held in memory at a time.
+	 * @param round : number of completed training rounds
+	 * @param converged : training has converged
+	 */
+	protected void saveCheckpoint(int round, boolean converged){
+		waitForCheckpoint();
+		final TrainingCheckpoint cp = new TrainingCheckpoint(manager, gconfig.getGenome(), PotentialRegionFilter.getSettings(mgpsconfig, econfig), round, converged);
+		cp.captureModels(manager, bindingManager, repBindingModels);
+		potentialFilter.saveCheckpoint(cp);
+		mixtureModel.saveCheckpoint(cp);
+		
+		if(checkpointWriter==null)
+			checkpointWriter = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "MultiGPS-checkpoint");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		final File f = getCheckpointFile();
+		lastCheckpointWrite = checkpointWriter.submit(new Runnable(){
+			public void run(){
+				try {
+					cp.write(f);
+				} catch (IOException e) {
+					System.err.println("Could not write checkpoint "+f.getPath()+": "+e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Wait until the last checkpoint has been written
+	 */
+	protected void waitForCheckpoint(){
+		if(lastCheckpointWrite==null)
+			return;
+		try {
+			lastCheckpointWrite.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			System.err.println("Could not write checkpoint: "+e.getCause());
+		}
+		lastCheckpointWrite=null;
+	}
+	
 	/**
 	 * Main driver method for MultiGPS
 	 * @param args
@@ -266,6 +381,17 @@ public class MultiGPS {
 				"\t--fixedalpha <impose this alpha (default: set automatically)>\n" +
 				"\t--mlconfignotshared [flag to not share component configs in the ML step]\n" +
 				"\t--exclude <file of regions to ignore>\n" +
+				"\t--squarem [flag to accelerate EM convergence with SQUAREM extrapolation of pi]\n" +
+				"\t--batchelim [flag to eliminate all components that are clearly below alpha in the same EM iteration]\n" +
+				"\t--float32 [flag to store EM & ML working arrays in single precision (likelihoods & pi are still summed in double precision)]\n" +
+				"\t--parallelemcost <process conditions in parallel in EM windows with at least this many reads x components (default: off)>\n" +
+				"\t--warmstart [flag to initialize EM in later training rounds from the last round's component pi values, with a shorter annealing schedule]\n" +
+				"\t--splitwindows [flag to split EM windows into independent read clusters at read-free gaps wider than the binding model span]\n" +
+				"\t--readcachemb <memory budget in MB for per-chromosome read caching when data is not all cached; may be exceeded by one chromosome (default=2000)>\n" +
+				"\t--skipstable [flag to skip EM in later training rounds for regions whose components were unchanged in the last round (not used with motif-finding, or in rounds where alpha or global noise changed)]\n" +
+				"\t--stablekl <with --skipstable, only skip stable regions if the log KL divergence of the last read distribution update is at most this value (default=-3)>\n" +
+				"\t--checkpoint [flag to write a training checkpoint to the output directory at the end of each training round (on with --resume)]\n" +
+				"\t--resume [flag to resume training from the last checkpoint in the output directory (requires a run with --checkpoint)]\n" +
 				" MultiGPS priors:\n"+
 				"\t--noposprior [flag to turn off inter-experiment positional prior (default=on)]\n" +
 				"\t--probshared <probability that events are shared across conditions (default=0.9)>\n" +
@@ -47,6 +47,7 @@ public class BackgroundDetector {
 	protected int poissUpperBoundMin = 10;
 	protected double cdfPercOfUniform = 0.9; //Percentage of uniform-assumption CDF - used to set upper bound on truncated Poisson
 	protected List<Region> regionsToIgnore;
+	protected ChromosomeReadCache readCache=null; //Per-chromosome read cache (only used if all data is not cached)
 	
 	public BackgroundDetector(ExptConfig ec, MultiGPSConfig c, ExperimentManager man, float binW, float binS){
 		manager = man;
@@ -83,8 +84,11 @@ public class BackgroundDetector {
 	public HashMap<Sample, Double> execute(){
 		Iterator<Region> testRegions = new ChromosomeGenerator().execute(config.getGenome());
 		
-		//Threading divides analysis over entire chromosomes. This approach is not compatible with file caching. 
-		int numThreads = econfig.getCacheAllData() ? config.getMaxThreads() : 1;
+		//Threading divides analysis over entire chromosomes. 
+		//If all data is not cached, threads read from a bounded cache of whole chromosomes, since the experiment file caches can only serve one chromosome at a time.
+		int numThreads = config.getMaxThreads();
+		if(!econfig.getCacheAllData())
+			readCache = new ChromosomeReadCache(manager, config.getReadCacheMB());
 		
 		Thread[] threads = new Thread[numThreads];
         ArrayList<Region> threadRegions[] = new ArrayList[numThreads];
@@ -102,19 +106,18 @@ public class BackgroundDetector {
             t.start();
             threads[i] = t;
         }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
+        for (i = 0; i < threads.length; i++) {
             try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
+                threads[i].join();
+            } catch (InterruptedException e) { 
+            	Thread.currentThread().interrupt();
             }
         }
+        if(readCache!=null){
+        	System.err.println("BackgroundDetector: "+readCache.getStats());
+        	readCache.close();
+        	readCache=null;
+        }
         
         //Fit the Poissons
         HashMap<Sample, Double> backProps = new HashMap<Sample, Double>();
@@ -226,7 +229,16 @@ public class BackgroundDetector {
         		}
         	
         	int expansion = (int)winExt;
-        	for (Region currentRegion : regions) {
+        	Iterator<Region> regIter = regions.iterator();
+        	Region nextRegion = regIter.hasNext() ? regIter.next() : null;
+        	while (nextRegion!=null) {
+        		Region currentRegion = nextRegion;
+        		nextRegion = regIter.hasNext() ? regIter.next() : null;
+        		if(readCache!=null){
+        			//Pin this chromosome, and start loading the next one in the background
+        			readCache.acquire(currentRegion);
+        			readCache.prefetch(nextRegion);
+        		}
             	Region lastPotential=null;
                 //Split the job up into large chunks
                 for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=config.MAXSECTION){
@@ -236,17 +248,20 @@ public class BackgroundDetector {
                     
                     List<List<StrandedBaseCount>> hits = new ArrayList<List<StrandedBaseCount>>();
                     
-                    synchronized(manager){
-	                    //Initialize the read lists
-                    	for(Sample samp : manager.getSamples()){
-                    		hits.add(new ArrayList<StrandedBaseCount>());
-                    	}
-                    	//Load reads by replicate
-                    	for(Sample samp : manager.getSamples()){
-                    		if(samp!=null)
-                    			hits.get(samp.getIndex()).addAll(samp.getBases(currSubRegion));
-                    	}
-                    }
+                    //Initialize the read lists
+                	for(Sample samp : manager.getSamples()){
+                		hits.add(new ArrayList<StrandedBaseCount>());
+                	}
+                	//Load reads by replicate
+                	for(Sample samp : manager.getSamples()){
+                		if(samp!=null){
+                			if(readCache!=null)
+                				hits.get(samp.getIndex()).addAll(readCache.getBases(samp, currSubRegion));
+                			else synchronized(manager){
+                				hits.get(samp.getIndex()).addAll(samp.getBases(currSubRegion));
+                			}
+                		}
+                	}
             		int numStrandIter = stranded ? 2 : 1;
                     for(int stranditer=1; stranditer<=numStrandIter; stranditer++){
                         //If stranded peak-finding, run over both strands separately
@@ -270,6 +285,8 @@ public class BackgroundDetector {
                         }
 					}
                 }
+                if(readCache!=null)
+                	readCache.release(currentRegion);
             }
         	synchronized(sampleHistos){
         		for(Sample samp : manager.getSamples()){
@@ -0,0 +1,321 @@
+package org.seqcode.projects.multigps.framework;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.seqcode.deepseq.StrandedBaseCount;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.deepseq.experiments.Sample;
+import org.seqcode.genome.location.Region;
+
+/**
+ * ChromosomeReadCache: a bounded cache of whole-chromosome reads for runs that do not cache all data (--nocache).
+ *
+ * Without the full data cache, the experiment file caches can only serve one chromosome at a time, so threads
+ * working on different chromosomes have to serialize their read loading. Here, each chromosome's reads are loaded
+ * once for all samples (still serialized on the experiment manager) and packed into primitive arrays that any number
+ * of threads can read at the same time.
+ *
+ * Threads acquire a chromosome before reading from it and release it afterwards. Acquired chromosomes are never evicted;
+ * released chromosomes are evicted in least-recently-used order once the cache is over its memory budget. A chromosome's size
+ * is only known once it is loaded, so only one chromosome is loaded at a time (loads are serialized on the experiment manager
+ * anyway): threads asking for a new chromosome wait while another load is in flight, or while the acquired chromosomes alone
+ * fill the budget. Memory use therefore stays within the budget plus one chromosome. A background thread can prefetch the
+ * next chromosome while the current one is processed (if no other load is in flight and the cache is under budget).
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class ChromosomeReadCache {
+
+	protected ExperimentManager manager;
+	protected long budgetBytes;
+	protected LinkedHashMap<String, ChromReads> chroms = new LinkedHashMap<String, ChromReads>(16, 0.75f, true); //Cached chromosomes, in LRU order (guarded by this)
+	protected ExecutorService prefetcher;
+	protected int numLoads=0, numPrefetches=0, numEvictions=0;
+
+	/**
+	 * Constructor
+	 * @param man
+	 * @param budgetMB : memory budget for the cached reads (in MB)
+	 */
+	public ChromosomeReadCache(ExperimentManager man, int budgetMB){
+		manager = man;
+		budgetBytes = budgetMB*1024L*1024L;
+		prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "ChromosomeReadCache-prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Load (if necessary) and pin a chromosome. Blocks until the reads are available.
+	 * @param chrom : any region on the chromosome (the whole chromosome is loaded)
+	 */
+	public void acquire(Region chrom){
+		ChromReads cr;
+		synchronized(this){
+			long pinned;
+			while(!chroms.containsKey(chrom.getChrom()) && (loadsInFlight()>0 || ((pinned=pinnedBytes())>0 && pinned>=budgetBytes))){
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			cr = chroms.get(chrom.getChrom());
+			if(cr==null){
+				cr = new ChromReads(chrom);
+				chroms.put(chrom.getChrom(), cr);
+				numLoads++;
+			}
+			cr.pins++;
+		}
+		cr.load.run(); //Does nothing if the prefetcher has already started the load
+		try {
+			cr.load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			synchronized(this){
+				remove(cr);
+			}
+			throw new RuntimeException("Error loading reads for "+chrom.getChrom(), e.getCause());
+		}
+		synchronized(this){
+			evict();
+		}
+	}
+
+	/**
+	 * Unpin a chromosome (it stays cached until evicted)
+	 * @param chrom
+	 */
+	public synchronized void release(Region chrom){
+		ChromReads cr = chroms.get(chrom.getChrom());
+		if(cr!=null && cr.pins>0)
+			cr.pins--;
+		evict();
+		notifyAll();
+	}
+
+	/**
+	 * Start loading a chromosome in the background, if it is not cached and there is room in the budget.
+	 * @param chrom
+	 */
+	public synchronized void prefetch(Region chrom){
+		if(chrom==null || chroms.containsKey(chrom.getChrom()) || loadsInFlight()>0 || cachedBytes()>=budgetBytes)
+			return;
+		ChromReads cr = new ChromReads(chrom);
+		chroms.put(chrom.getChrom(), cr);
+		numPrefetches++;
+		prefetcher.execute(cr.load);
+	}
+
+	/**
+	 * Get the reads of a sample in a region, in the same order as Sample.getBases() (+ strand then - strand, sorted by position).
+	 * The region's chromosome should be acquired; otherwise the reads are loaded directly from the sample.
+	 * @param samp
+	 * @param r
+	 * @return
+	 */
+	public List<StrandedBaseCount> getBases(Sample samp, Region r){
+		ChromReads cr;
+		synchronized(this){
+			cr = chroms.get(r.getChrom());
+		}
+		if(cr==null || !cr.load.isDone() || cr.positions==null){
+			synchronized(manager){
+				return samp.getBases(r);
+			}
+		}
+		List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
+		int s = samp.getIndex();
+		if(cr.positions[s]!=null){
+			int minusStart = cr.minusStarts[s], end = cr.positions[s].length;
+			for(int i=lowerBound(cr.positions[s], 0, minusStart, r.getStart()); i<minusStart && cr.positions[s][i]<=r.getEnd(); i++)
+				bases.add(new StrandedBaseCount('+', cr.positions[s][i], cr.counts[s][i]));
+			for(int i=lowerBound(cr.positions[s], minusStart, end, r.getStart()); i<end && cr.positions[s][i]<=r.getEnd(); i++)
+				bases.add(new StrandedBaseCount('-', cr.positions[s][i], cr.counts[s][i]));
+		}
+		return bases;
+	}
+
+	/**
+	 * Stop the prefetcher and empty the cache
+	 */
+	public synchronized void close(){
+		prefetcher.shutdownNow();
+		chroms.clear();
+	}
+
+	/**
+	 * Summary of cache activity
+	 */
+	public synchronized String getStats(){
+		return "Chromosome read cache: "+numLoads+" loads, "+numPrefetches+" prefetches, "+numEvictions+" evictions, "+
+				String.format("%.1f", cachedBytes()/(1024.0*1024.0))+" MB cached";
+	}
+
+	//Bytes held by loaded chromosomes (all, or pinned only). Call while holding the lock.
+	protected long cachedBytes(){
+		long bytes=0;
+		for(ChromReads cr : chroms.values())
+			bytes+=cr.bytes;
+		return bytes;
+	}
+	protected long pinnedBytes(){
+		long bytes=0;
+		for(ChromReads cr : chroms.values())
+			if(cr.pins>0)
+				bytes+=cr.bytes;
+		return bytes;
+	}
+
+	//Number of chromosomes that are not loaded yet (including loads that have not started). Call while holding the lock.
+	protected int loadsInFlight(){
+		int loading=0;
+		for(ChromReads cr : chroms.values())
+			if(!cr.load.isDone())
+				loading++;
+		return loading;
+	}
+
+	//Drop a chromosome whose load failed (if it is still cached), so that later calls do not read its missing arrays. Call while holding the lock.
+	protected void remove(ChromReads cr){
+		if(chroms.get(cr.chrom.getChrom())==cr)
+			chroms.remove(cr.chrom.getChrom());
+		notifyAll();
+	}
+
+	//Evict unpinned, loaded chromosomes in LRU order until the cache is within budget. Call while holding the lock.
+	protected void evict(){
+		long bytes = cachedBytes();
+		Iterator<ChromReads> it = chroms.values().iterator();
+		while(bytes>budgetBytes && it.hasNext()){
+			ChromReads cr = it.next();
+			if(cr.pins==0 && cr.load.isDone()){
+				bytes-=cr.bytes;
+				it.remove();
+				numEvictions++;
+			}
+		}
+	}
+
+	protected static int lowerBound(int[] pos, int from, int to, int x){
+		while(from<to){
+			int mid = (from+to)>>>1;
+			if(pos[mid]<x)
+				from=mid+1;
+			else
+				to=mid;
+		}
+		return from;
+	}
+
+	/**
+	 * ChromReads: the reads of one chromosome for all samples.
+	 * Per sample, + strand reads (sorted by position) are followed by - strand reads (sorted by position).
+	 */
+	protected class ChromReads{
+		Region chrom;
+		int[][] positions;	//Indexed by sample index
+		float[][] counts;	//Indexed by sample index
+		int[] minusStarts;	//Index of the first - strand read, indexed by sample index
+		volatile long bytes=0;
+		int pins=0;
+		FutureTask<Void> load;
+
+		public ChromReads(Region c){
+			chrom = new Region(c.getGenome(), c.getChrom(), 1, c.getGenome().getChromLength(c.getChrom()));
+			load = new FutureTask<Void>(new Callable<Void>(){
+				public Void call(){
+					loadReads();
+					return null;
+				}
+			}){
+				//Runs once the load is marked done: wake threads waiting for it, and drop the chromosome if the load failed
+				protected void done(){
+					synchronized(ChromosomeReadCache.this){
+						if(positions==null)
+							remove(ChromReads.this);
+						ChromosomeReadCache.this.notifyAll();
+					}
+				}
+			};
+		}
+
+		protected void loadReads(){
+			int numSamples=0;
+			for(Sample samp : manager.getSamples())
+				if(samp!=null)
+					numSamples = Math.max(numSamples, samp.getIndex()+1);
+			int[][] pos = new int[numSamples][];
+			float[][] cnt = new float[numSamples][];
+			int[] minus = new int[numSamples];
+			long b=0;
+			//The experiment file caches are not safe for concurrent chromosome loads
+			synchronized(manager){
+				for(Sample samp : manager.getSamples()){
+					if(samp==null)
+						continue;
+					List<StrandedBaseCount> bases = samp.getBases(chrom);
+					int s = samp.getIndex();
+					pos[s] = new int[bases.size()];
+					cnt[s] = new float[bases.size()];
+					int y=0;
+					for(char strand : new char[]{'+','-'}){
+						if(strand=='-')
+							minus[s]=y;
+						int first=y;
+						for(StrandedBaseCount base : bases)
+							if(base.getStrand()==strand){
+								pos[s][y] = base.getCoordinate();
+								cnt[s][y] = base.getCount();
+								y++;
+							}
+						sortBlock(pos[s], cnt[s], first, y);
+					}
+					b+=8L*bases.size();
+				}
+			}
+			positions = pos;
+			counts = cnt;
+			minusStarts = minus;
+			bytes = b;
+		}
+
+		//Sort a block by position (only needed if the sample did not return sorted reads)
+		protected void sortBlock(int[] pos, float[] cnt, int from, int to){
+			boolean sorted=true;
+			for(int i=from+1; i<to && sorted; i++)
+				if(pos[i]<pos[i-1])
+					sorted=false;
+			if(sorted)
+				return;
+			long[] keys = new long[to-from];
+			for(int i=from; i<to; i++)
+				keys[i-from] = ((long)pos[i]<<32) | (i-from);
+			java.util.Arrays.sort(keys);
+			int[] p = java.util.Arrays.copyOfRange(pos, from, to);
+			float[] c = java.util.Arrays.copyOfRange(cnt, from, to);
+			for(int i=0; i<keys.length; i++){
+				int k = (int)(keys[i] & 0xffffffffL);
+				pos[from+i] = p[k];
+				cnt[from+i] = c[k];
+			}
+		}
+	}
+}
@@ -67,6 +67,17 @@ public class MultiGPSConfig {
 	public int MEMEminw=6;
 	public int MEMEmaxw=18;
 	protected boolean verbose = false; //Print extra output
+	protected boolean acceleratedEM = false; //Accelerate the convergence of pi during EM training with SQUAREM extrapolation
+	protected boolean batchElimination = false; //Eliminate all components that are clearly below alpha in the same EM iteration
+	protected boolean singlePrecision = false; //Store the EM & ML H functions and responsibilities in single precision
+	protected boolean warmStartEM = false; //Initialize EM in later training rounds from the last round's pi values (shorter annealing schedule)
+	protected boolean splitEMWindows = false; //Split EM windows into independent read clusters at gaps wider than the binding model span
+	protected double parallelEMCost = -1; //Minimum cost (reads x components per iteration) of an EM window for its conditions to be processed in parallel (-1: never)
+	protected int readCacheMB = 2000; //Memory budget (MB) for the chromosome read cache used when all data is not cached (--nocache)
+	protected boolean skipStableRegions = false; //Skip EM in later training rounds for regions whose components were unchanged in the last round
+	protected double stableRegionMaxLogKL = -3; //Stable regions are only skipped if the log KL divergence of the last binding model update is at most this value
+	protected boolean writeCheckpoints = false; //Write a training checkpoint at the end of each training round
+	protected boolean resume = false; //Resume training from the last checkpoint in the output directory
 	 
     
 	//Constants
@@ -83,6 +94,13 @@ public class MultiGPSConfig {
     public final double EM_CONVERGENCE = 1e-10; //EM convergence between the likelihood of the current and the previous step
     public final double EM_STATE_EQUIV_THRES = 1e-10; //EM state equivalence threshold 
     public final int EM_STATE_EQUIV_ROUNDS = 3; //Number of training rounds where the EM states have to be equivalent
+    public final int WARM_EM_ML_ITER=20;     			//EM_ML_ITER for warm-started EM
+    public final int WARM_ALPHA_ANNEALING_ITER=20;     //ALPHA_ANNEALING_ITER for warm-started EM
+    public final int WARM_POSPRIOR_ITER=30;     		//POSPRIOR_ITER for warm-started EM
+    public final double WARM_START_NEW_COMP_PI=0.1;	//In warm-started EM, components that were not active in the last round start at this fraction of the uniform pi
+    public final double STABLE_REGION_PI_TOL=0.01;	//Maximum relative change in a component's pi for its region to be considered stable between training rounds
+    public final double STABLE_REGION_INPUT_TOL=0.01; //Maximum relative change in alpha & global noise between training rounds for stable regions to be skipped
+    public final double EM_BATCH_ELIM_FRACTION = 0.5; //In batch elimination mode, components with responsibility sums below this fraction of alpha are eliminated together
     public final double NOISE_EMISSION_MIN = 0.01; //Arbitrary floor on the emission probability of noise (must be non-zero to mop up noise reads)
     public final double NOISE_EMISSION_MAX = 0.95; //Arbitrary ceiling on the emission probability of noise
     public final int NOISE_DISTRIB_SMOOTHING_WIN = 50; //Smoothing window for the noise distribution used in the BindingMixture
@@ -220,6 +238,26 @@ public class MultiGPSConfig {
 				
 				//Extra output
 				verbose = Args.parseFlags(args).contains("verbose") ? true : false;
+				//Accelerated EM
+				acceleratedEM = Args.parseFlags(args).contains("squarem") ? true : false;
+				//Batch component elimination
+				batchElimination = Args.parseFlags(args).contains("batchelim") ? true : false;
+				//Single precision working arrays
+				singlePrecision = Args.parseFlags(args).contains("float32") ? true : false;
+				//Warm-started EM in later training rounds
+				warmStartEM = Args.parseFlags(args).contains("warmstart") ? true : false;
+				//Split EM windows at read-free gaps
+				splitEMWindows = Args.parseFlags(args).contains("splitwindows") ? true : false;
+				//Parallel EM across conditions in costly windows
+				parallelEMCost = Args.parseDouble(args,"parallelemcost",parallelEMCost);
+				//Chromosome read cache budget
+				readCacheMB = Args.parseInteger(args,"readcachemb",readCacheMB);
+				//Skip stable regions in later training rounds
+				skipStableRegions = Args.parseFlags(args).contains("skipstable") ? true : false;
+				stableRegionMaxLogKL = Args.parseDouble(args,"stablekl",stableRegionMaxLogKL);
+				//Training checkpoints
+				resume = Args.parseFlags(args).contains("resume") ? true : false;
+				writeCheckpoints = Args.parseFlags(args).contains("checkpoint") || resume ? true : false;
 				//Shared component config in ML step
 				//MLSharedComponentConfiguration = Args.parseFlags(args).contains("mlsharedconfig") ? true : false;
 				MLSharedComponentConfiguration = Args.parseFlags(args).contains("mlconfignotshared") ? false : true;
@@ -282,14 +320,26 @@ public class MultiGPSConfig {
 	public String getMEMEargs(){return MEMEargs;}
 	public boolean getMEMEnonparallel(){return MEMEnonparallel;}
 	public boolean isVerbose(){return verbose;}
+	public boolean useAcceleratedEM(){return acceleratedEM;}
+	public boolean useBatchElimination(){return batchElimination;}
+	public boolean useSinglePrecision(){return singlePrecision;}
+	public double getParallelEMCost(){return parallelEMCost;}
+	public boolean useWarmStartEM(){return warmStartEM;}
+	public boolean getSplitEMWindows(){return splitEMWindows;}
+	public int getReadCacheMB(){return readCacheMB;}
+	public boolean getSkipStableRegions(){return skipStableRegions;}
+	public double getStableRegionMaxLogKL(){return stableRegionMaxLogKL;}
+	public boolean getWriteCheckpoints(){return writeCheckpoints;}
+	public boolean getResume(){return resume;}
 	
 	/**
 	 * Make some output directories used by multiGPS
 	 */
 	public void makeGPSOutputDirs(boolean makeInterAndImageDirs){
 		//Test if output directory already exists. If it does,  recursively delete contents
+		//(unless resuming, when the output directory holds the checkpoint)
 		outDir =  new File(outName);
-		if(outDir.exists())
+		if(outDir.exists() && !resume)
 			deleteDirectory(outDir);
 		outBase = outDir.getName();
 		//(re)make the output directory
@@ -366,6 +416,17 @@ public class MultiGPSConfig {
 				"\t--mememinw <minw arg for MEME (default="+MEMEminw+")>\n"+
 				"\t--mememaxw <maxw arg for MEME (default="+MEMEmaxw+")>\n"+
 				"\t--meme1proc [flag to enforce non-parallel version of MEME]\n"+
+				"\t--squarem [flag to accelerate EM convergence with SQUAREM extrapolation of pi]\n" +
+				"\t--batchelim [flag to eliminate all components that are clearly below alpha in the same EM iteration]\n" +
+				"\t--float32 [flag to store EM & ML working arrays in single precision (likelihoods & pi are still summed in double precision)]\n" +
+				"\t--parallelemcost <process conditions in parallel in EM windows with at least this many reads x components (default: off)>\n" +
+				"\t--warmstart [flag to initialize EM in later training rounds from the last round's component pi values, with a shorter annealing schedule]\n" +
+				"\t--splitwindows [flag to split EM windows into independent read clusters at read-free gaps wider than the binding model span]\n" +
+				"\t--readcachemb <memory budget in MB for per-chromosome read caching when data is not all cached; may be exceeded by one chromosome (default="+readCacheMB+")>\n" +
+				"\t--skipstable [flag to skip EM in later training rounds for regions whose components were unchanged in the last round (not used with motif-finding, or in rounds where alpha or global noise changed)]\n" +
+				"\t--stablekl <with --skipstable, only skip stable regions if the log KL divergence of the last read distribution update is at most this value (default="+stableRegionMaxLogKL+")>\n" +
+				"\t--checkpoint [flag to write a training checkpoint to the output directory at the end of each training round (on with --resume)]\n" +
+				"\t--resume [flag to resume training from the last checkpoint in the output directory (requires a run with --checkpoint)]\n" +
 				"\t--verbose [flag to print intermediate files and extra output]\n" +
 				"\t--config <config file: all options can be specified in a name<space>value text file, over-ridden by command-line args>\n" +
 				""));
@@ -59,6 +59,7 @@ public class PotentialRegionFilter {
 	protected HashMap<ExperimentCondition, Double> nonPotRegCountsCtrlChannel = new HashMap<ExperimentCondition, Double>();	
 	protected HashMap<ControlledExperiment, Double> potRegCountsSigChannelByRep = new HashMap<ControlledExperiment, Double>();
 	protected HashMap<ControlledExperiment, Double> nonPotRegCountsSigChannelByRep = new HashMap<ControlledExperiment, Double>();
+	protected ChromosomeReadCache readCache=null; //Per-chromosome read cache (only used if all data is not cached)
 	
 	public PotentialRegionFilter(EventsConfig ec, MultiGPSConfig c, ExptConfig econ, ExperimentManager eman, BindingManager bman){
 		manager = eman;
@@ -112,6 +113,7 @@ public class PotentialRegionFilter {
 	public Double getNonPotRegCountsSigChannelByRep(ControlledExperiment e){ return nonPotRegCountsSigChannelByRep.get(e);}
 	public List<Region> getPotentialRegions(){return potentialRegions;}
 	public double getPotRegionLengthTotal(){return potRegionLengthTotal;}
+	public ChromosomeReadCache getReadCache(){return readCache;}
 	
 	/**
 	 * Find list of potentially enriched regions 
@@ -129,37 +131,41 @@ public class PotentialRegionFilter {
 		//However, this method of filtering is safest when excluding regions from whole chromosomes or other large regions
 		testRegions = filterExcludedLeaveRemaining(testRegions);
 		
-		//Threading divides analysis over entire chromosomes. This approach is not compatible with file caching. 
-		int numThreads = econfig.getCacheAllData() ? config.getMaxThreads() : 1;
+		//Threading divides analysis over entire chromosomes. 
+		//If all data is not cached, threads read from a bounded cache of whole chromosomes, since the experiment file caches can only serve one chromosome at a time.
+		int numThreads = config.getMaxThreads();
+		if(!econfig.getCacheAllData() && readCache==null)
+			readCache = new ChromosomeReadCache(manager, config.getReadCacheMB());
 				
 		Thread[] threads = new Thread[numThreads];
-        List<Region> threadRegions[] = new ArrayList[numThreads];
+        List<Integer> threadRegions[] = new ArrayList[numThreads];
+        List<Region> regionPotentials[] = new List[testRegions.size()]; //Potential regions found in each test region
         int i = 0;
         for (i = 0 ; i < threads.length; i++) {
-            threadRegions[i] = new ArrayList<Region>();
-        }i=0;
-        for(Region r : testRegions){ 
-            threadRegions[(i++) % numThreads].add(r);
+            threadRegions[i] = new ArrayList<Integer>();
+        }
+        for(i=0; i<testRegions.size(); i++){ 
+            threadRegions[i % numThreads].add(i);
         }
 
         for (i = 0 ; i < threads.length; i++) {
-            Thread t = new Thread(new PotentialRegionFinderThread(threadRegions[i]));
+            Thread t = new Thread(new PotentialRegionFinderThread(testRegions, threadRegions[i], regionPotentials));
             t.start();
             threads[i] = t;
         }
-        boolean anyrunning = true;
-        while (anyrunning) {
-            anyrunning = false;
+        for (i = 0; i < threads.length; i++) {
             try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) { }
-            for (i = 0; i < threads.length; i++) {
-                if (threads[i].isAlive()) {
-                    anyrunning = true;
-                    break;
-                }
+                threads[i].join();
+            } catch (InterruptedException e) { 
+            	Thread.currentThread().interrupt();
             }
         }
+        if(readCache!=null)
+        	System.err.println("PotentialRegionFilter: "+readCache.getStats());
+        //Collect the potential regions in test region order, so that the order does not depend on thread timing
+        for(List<Region> regPots : regionPotentials)
+        	if(regPots!=null)
+        		potentialRegions.addAll(regPots);
         
         //Initialize signal & noise counts based on potential region calls
         for(ExperimentCondition cond : manager.getConditions()){
@@ -176,6 +182,71 @@ public class PotentialRegionFilter {
 	}
 	
     
+	/**
+	 * Settings that determine the potential regions (stored in training checkpoints, which are only resumed with the same settings)
+	 * @param config
+	 * @param econfig
+	 * @return
+	 */
+	public static String getSettings(MultiGPSConfig config, ExptConfig econfig){
+		StringBuilder ignored = new StringBuilder();
+		for(Region i : config.getRegionsToIgnore())
+			ignored.append(i.getLocationString()).append(',');
+		return "prlogconf="+config.getPRLogConf()+";windowmax="+config.getBMAnalysisWindowMax()+
+				";mappable="+econfig.getMappableGenomeProp()+";exclude="+ignored.toString();
+	}
+	
+	/**
+	 * Store the potential regions & read counts in a training checkpoint
+	 * @param cp
+	 */
+	public void saveCheckpoint(TrainingCheckpoint cp){
+		String[] chroms = new String[potentialRegions.size()];
+		int[] starts = new int[potentialRegions.size()], ends = new int[potentialRegions.size()];
+		for(int r=0; r<potentialRegions.size(); r++){
+			chroms[r] = potentialRegions.get(r).getChrom();
+			starts[r] = potentialRegions.get(r).getStart();
+			ends[r] = potentialRegions.get(r).getEnd();
+		}
+		double[] potSig = new double[manager.getNumConditions()], nonPotSig = new double[manager.getNumConditions()];
+		double[] potCtrl = new double[manager.getNumConditions()], nonPotCtrl = new double[manager.getNumConditions()];
+		for(ExperimentCondition cond : manager.getConditions()){
+			potSig[cond.getIndex()] = potRegCountsSigChannel.get(cond);
+			nonPotSig[cond.getIndex()] = nonPotRegCountsSigChannel.get(cond);
+			potCtrl[cond.getIndex()] = potRegCountsCtrlChannel.get(cond);
+			nonPotCtrl[cond.getIndex()] = nonPotRegCountsCtrlChannel.get(cond);
+		}
+		double[] potSigByRep = new double[manager.getReplicates().size()], nonPotSigByRep = new double[manager.getReplicates().size()];
+		for(ControlledExperiment rep : manager.getReplicates()){
+			potSigByRep[rep.getIndex()] = potRegCountsSigChannelByRep.get(rep);
+			nonPotSigByRep[rep.getIndex()] = nonPotRegCountsSigChannelByRep.get(rep);
+		}
+		cp.setPotentialRegions(chroms, starts, ends, potRegionLengthTotal, potSig, nonPotSig, potCtrl, nonPotCtrl, potSigByRep, nonPotSigByRep);
+	}
+	
+	/**
+	 * Restore the potential regions & read counts from a training checkpoint (instead of calling execute())
+	 * @param cp
+	 * @return potential regions
+	 */
+	public List<Region> restoreCheckpoint(TrainingCheckpoint cp){
+		potentialRegions = new ArrayList<Region>();
+		for(int r=0; r<cp.getNumRegions(); r++)
+			potentialRegions.add(new Region(gen, cp.getRegionChrom(r), cp.getRegionStart(r), cp.getRegionEnd(r)));
+		potRegionLengthTotal = cp.potRegionLengthTotal;
+		for(ExperimentCondition cond : manager.getConditions()){
+			potRegCountsSigChannel.put(cond, cp.potRegCountsSigChannel[cond.getIndex()]);
+			nonPotRegCountsSigChannel.put(cond, cp.nonPotRegCountsSigChannel[cond.getIndex()]);
+			potRegCountsCtrlChannel.put(cond, cp.potRegCountsCtrlChannel[cond.getIndex()]);
+			nonPotRegCountsCtrlChannel.put(cond, cp.nonPotRegCountsCtrlChannel[cond.getIndex()]);
+		}
+		for(ControlledExperiment rep : manager.getReplicates()){
+			potRegCountsSigChannelByRep.put(rep, cp.potRegCountsSigChannelByRep[rep.getIndex()]);
+			nonPotRegCountsSigChannelByRep.put(rep, cp.nonPotRegCountsSigChannelByRep[rep.getIndex()]);
+		}
+		return potentialRegions;
+	}
+	
     /**
      * Filter out pre-defined regions to ignore (e.g. blacklist regions)
      * This version returns segments of regions that don't overlap. 
@@ -223,18 +294,36 @@ public class PotentialRegionFilter {
     }
 	
     class PotentialRegionFinderThread implements Runnable {
-        private Collection<Region> regions;
+        private List<Region> regions;
+        private List<Integer> regionIndices;
+        private List<Region>[] regionPotentials;
         private float[][] landscape=null;
         private float[][] starts=null;
         private List<Region> threadPotentials = new ArrayList<Region>();
         
-        public PotentialRegionFinderThread(Collection<Region> r) {
+        /**
+         * Constructor
+         * @param r : all test regions
+         * @param indices : indices of the test regions to analyze in this thread
+         * @param potentials : potential regions found in each test region (written by this thread for its own indices)
+         */
+        public PotentialRegionFinderThread(List<Region> r, List<Integer> indices, List<Region>[] potentials) {
             regions = r;
+            regionIndices = indices;
+            regionPotentials = potentials;
         }
         
         public void run() {
         	int expansion = (int)(winExt + maxBinWidth/2);
-        	for (Region currentRegion : regions) {
+        	for (int r=0; r<regionIndices.size(); r++) {
+        		Region currentRegion = regions.get(regionIndices.get(r));
+        		if(readCache!=null){
+        			//Pin this chromosome, and start loading the next one in the background
+        			readCache.acquire(currentRegion);
+        			if(r+1<regionIndices.size())
+        				readCache.prefetch(regions.get(regionIndices.get(r+1)));
+        		}
+        		int firstPotential = threadPotentials.size();
             	Region lastPotential=null;
                 //Split the job up into large chunks
                 for(int x=currentRegion.getStart(); x<=currentRegion.getEnd(); x+=config.MAXSECTION){
@@ -247,25 +336,23 @@ public class PotentialRegionFilter {
                     List<List<StrandedBaseCount>> backHits = new ArrayList<List<StrandedBaseCount>>();
                     List<List<StrandedBaseCount>> ipHitsByRep = new ArrayList<List<StrandedBaseCount>>();
                     
-                    synchronized(manager){
-	                    //Initialize the read lists
-                    	for(ExperimentCondition cond : manager.getConditions()){
-                    		ipHits.add(new ArrayList<StrandedBaseCount>());
-                			backHits.add(new ArrayList<StrandedBaseCount>());
-                    		for(ControlledExperiment rep : cond.getReplicates())
-                    			ipHitsByRep.add(new ArrayList<StrandedBaseCount>());
-                    	}
-                    	//Load signal reads by condition and by replicate, so that signal proportion estimates can be assigned to each replicate 
-                    	for(ExperimentCondition cond : manager.getConditions()){
-                    		for(ControlledExperiment rep : cond.getReplicates()){
-                    			ipHits.get(cond.getIndex()).addAll(rep.getSignal().getBases(currSubRegion));
-                    			ipHitsByRep.get(rep.getIndex()).addAll(rep.getSignal().getBases(currSubRegion));
-                    		}for(Sample ctrl : cond.getControlSamples())
-                    			backHits.get(cond.getIndex()).addAll(ctrl.getBases(currSubRegion));
-                    		Collections.sort(ipHits.get(cond.getIndex()));
-                    		Collections.sort(backHits.get(cond.getIndex()));
-                    	}
-                    }
+                    //Initialize the read lists
+                	for(ExperimentCondition cond : manager.getConditions()){
+                		ipHits.add(new ArrayList<StrandedBaseCount>());
+            			backHits.add(new ArrayList<StrandedBaseCount>());
+                		for(ControlledExperiment rep : cond.getReplicates())
+                			ipHitsByRep.add(new ArrayList<StrandedBaseCount>());
+                	}
+                	//Load signal reads by condition and by replicate, so that signal proportion estimates can be assigned to each replicate 
+                	for(ExperimentCondition cond : manager.getConditions()){
+                		for(ControlledExperiment rep : cond.getReplicates()){
+                			ipHits.get(cond.getIndex()).addAll(getBases(rep.getSignal(), currSubRegion));
+                			ipHitsByRep.get(rep.getIndex()).addAll(getBases(rep.getSignal(), currSubRegion));
+                		}for(Sample ctrl : cond.getControlSamples())
+                			backHits.get(cond.getIndex()).addAll(getBases(ctrl, currSubRegion));
+                		Collections.sort(ipHits.get(cond.getIndex()));
+                		Collections.sort(backHits.get(cond.getIndex()));
+                	}
                     
             		int numStrandIter = stranded ? 2 : 1;
                     for(int stranditer=1; stranditer<=numStrandIter; stranditer++){
@@ -296,8 +383,13 @@ public class PotentialRegionFilter {
                         			}
                         		}else if(conditionBackgrounds.get(cond).passesGenomicThreshold((int)ipWinHits, str)){
                         			//Second Test: refresh all thresholds & test again
-                        			conditionBackgrounds.get(cond).updateModels(currSubRegion, i-x, ipBinnedStarts[cond.getIndex()], backBinnedStarts==null ? null : backBinnedStarts[cond.getIndex()], binStep);
-                        			if(conditionBackgrounds.get(cond).passesAllThresholds((int)ipWinHits, str)){
+                        			//(the background models are shared between threads, so the update & test must not be interleaved)
+                        			boolean passes;
+                        			synchronized(conditionBackgrounds.get(cond)){
+                        				conditionBackgrounds.get(cond).updateModels(currSubRegion, i-x, ipBinnedStarts[cond.getIndex()], backBinnedStarts==null ? null : backBinnedStarts[cond.getIndex()], binStep);
+                        				passes = conditionBackgrounds.get(cond).passesAllThresholds((int)ipWinHits, str);
+                        			}
+                        			if(passes){
                         				//If the region passes the thresholds for one condition, it's a potential
                         				regionPasses=true;
                         				break;
@@ -340,13 +432,25 @@ public class PotentialRegionFilter {
                 //Add the final recorded region to the list
                 if(lastPotential!=null)
     				threadPotentials.add(lastPotential);
-                threadPotentials = filterExcluded(threadPotentials);
+                //Only this test region's potential regions need filtering (earlier ones were filtered when their test region finished)
+                regionPotentials[regionIndices.get(r)] = new ArrayList<Region>(filterExcluded(threadPotentials.subList(firstPotential, threadPotentials.size())));
+                if(readCache!=null)
+                	readCache.release(currentRegion);
             }
-        	if(threadPotentials.size()>0){
-        		synchronized(potentialRegions){
-        			potentialRegions.addAll(threadPotentials);
-        		}
-        	}	
+        }
+        
+        /**
+         * Load a sample's reads in a region, from the chromosome read cache if there is one
+         * @param samp
+         * @param r
+         * @return
+         */
+        protected List<StrandedBaseCount> getBases(Sample samp, Region r){
+        	if(readCache!=null)
+        		return readCache.getBases(samp, r);
+        	synchronized(manager){
+        		return samp.getBases(r);
+        	}
         }
         
         //Break up a long window into parts
@@ -0,0 +1,587 @@
+package org.seqcode.projects.multigps.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.seqcode.data.motifdb.WeightMatrix;
+import org.seqcode.deepseq.events.BindingManager;
+import org.seqcode.deepseq.events.BindingModel;
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentCondition;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.genome.Genome;
+import org.seqcode.genome.location.Region;
+import org.seqcode.gseutils.Pair;
+
+/**
+ * TrainingCheckpoint: the state of MultiGPS training at the end of a training round,
+ * stored in a compact (gzipped binary) file so that an interrupted run can resume from the last completed round.
+ *
+ * A checkpoint holds everything that the next round depends on:
+ *  - the binding models learned so far (for each replicate, every updated model in order; the initial model is not stored),
+ *  - the motifs & motif offsets of each condition,
+ *  - the potential regions and the read counts in & out of them (so that potential region finding can be skipped),
+ *  - the active components & noise responsibilities of each potential region, and the global noise estimates.
+ * Reads are not stored; they are loaded from the experiments as usual.
+ *
+ * Components are indexed by potential region, so a checkpoint is only used if it was written for the same run:
+ * the condition & replicate names, the genome (chromosome names & lengths) and the potential region settings
+ * must all match, and the stored potential regions must match their checksum.
+ *
+ * The state is copied into the checkpoint's arrays when it is captured, so the checkpoint can be written
+ * in the background while training continues.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class TrainingCheckpoint {
+
+	public static final int MAGIC = 0x4D475053; //"MGPS"
+	public static final int VERSION = 2;
+
+	protected int numConds, numReps;
+	//Run identity (checked before resuming)
+	protected String[] condNames, repNames; //Indexed by condition & replicate
+	protected long genomeChecksum;		//Checksum of the genome's chromosome names & lengths
+	protected String regionSettings;	//Settings used to find the potential regions
+	protected long regionChecksum;		//Checksum of the potential region coordinates
+	protected int round=0;				//Number of completed training rounds
+	protected boolean converged=false;	//Training had converged
+	//Binding models, indexed by replicate, then by update
+	protected int[][][] modelPositions;
+	protected double[][][] modelProbs;
+	protected String[][] modelFileNames;
+	//Motifs, indexed by condition (null if the condition has no motif). Rows are motif positions, columns are A,C,G,T
+	protected float[][][] motifs, freqMatrices;
+	protected String[] motifNames, freqMatrixNames;
+	protected int[] motifOffsets;
+	//Potential regions & read counts
+	protected String[] regionChroms;
+	protected int[] regionStarts, regionEnds;
+	protected double potRegionLengthTotal;
+	protected double[] potRegCountsSigChannel, nonPotRegCountsSigChannel, potRegCountsCtrlChannel, nonPotRegCountsCtrlChannel; //Indexed by condition
+	protected double[] potRegCountsSigChannelByRep, nonPotRegCountsSigChannelByRep, signalVsNoiseFractions; //Indexed by replicate
+	//Mixture model state
+	protected int trainingRound;
+	protected double lastModelLogKL;
+	protected double[] noisePerBase; //Indexed by condition
+	protected int[] compStarts; //Index of the first component of each region & condition, indexed by region*numConds+condition. Last entry is the number of components.
+	protected int[] compPositions, compIndices;
+	protected double[] compPis, compResps;
+	protected boolean[] hasComponents; //Region has active components (i.e. was analyzed in a training round), indexed by region
+	protected double[] noiseResp; //Noise responsibilities, indexed by region*numConds+condition
+
+	private static final char[] BASES = {'A','C','G','T'};
+
+	/**
+	 * Constructor
+	 * @param man
+	 * @param gen
+	 * @param settings : settings used to find the potential regions
+	 * @param round : number of completed training rounds
+	 * @param converged : training has converged
+	 */
+	public TrainingCheckpoint(ExperimentManager man, Genome gen, String settings, int round, boolean converged){
+		numConds = man.getNumConditions();
+		numReps = man.getReplicates().size();
+		condNames = conditionNames(man);
+		repNames = replicateNames(man);
+		genomeChecksum = genomeChecksum(gen);
+		regionSettings = settings;
+		this.round = round;
+		this.converged = converged;
+	}
+
+	//Empty checkpoint (filled by read)
+	protected TrainingCheckpoint(){}
+
+	//Accessors
+	public int getRound(){return round;}
+	public boolean isConverged(){return converged;}
+	public int getNumRegions(){return regionChroms.length;}
+	public String getRegionChrom(int r){return regionChroms[r];}
+	public int getRegionStart(int r){return regionStarts[r];}
+	public int getRegionEnd(int r){return regionEnds[r];}
+	public int getTrainingRound(){return trainingRound;}
+	public double getLastModelLogKL(){return lastModelLogKL;}
+	public double[] getNoisePerBase(){return noisePerBase;}
+	public boolean hasComponents(int r){return hasComponents[r];}
+	public int getComponentStart(int r, int c){return compStarts[r*numConds+c];}
+	public int getComponentEnd(int r, int c){return compStarts[r*numConds+c+1];}
+	public int getComponentPosition(int i){return compPositions[i];}
+	public int getComponentIndex(int i){return compIndices[i];}
+	public double getComponentPi(int i){return compPis[i];}
+	public double getComponentResp(int i){return compResps[i];}
+	public double getNoiseResp(int r, int c){return noiseResp[r*numConds+c];}
+
+	/**
+	 * Check that the checkpoint was written for the same experiments, genome & potential region settings,
+	 * and that its potential regions & components are consistent.
+	 * @param man
+	 * @param gen
+	 * @param settings : settings used to find the potential regions
+	 * @return null if the checkpoint matches, otherwise the reason it does not
+	 */
+	public String mismatch(ExperimentManager man, Genome gen, String settings){
+		if(numConds!=man.getNumConditions() || numReps!=man.getReplicates().size())
+			return "different number of conditions or replicates";
+		if(!Arrays.equals(condNames, conditionNames(man)) || !Arrays.equals(repNames, replicateNames(man)))
+			return "different condition or replicate names";
+		if(genomeChecksum!=genomeChecksum(gen))
+			return "different genome";
+		if(regionSettings==null || !regionSettings.equals(settings))
+			return "different potential region settings";
+		int numRegions = regionChroms.length;
+		if(regionStarts.length!=numRegions || regionEnds.length!=numRegions || regionChecksum!=regionChecksum(regionChroms, regionStarts, regionEnds))
+			return "potential regions do not match their checksum";
+		if(hasComponents.length!=numRegions || compStarts.length!=numRegions*numConds+1 || noiseResp.length!=numRegions*numConds)
+			return "components do not match the potential regions";
+		return null;
+	}
+
+	/**
+	 * Check that a list of regions is the checkpoint's potential regions (same count & coordinates, in the same order)
+	 * @param regions
+	 * @return
+	 */
+	public boolean matchesRegions(List<Region> regions){
+		if(regions.size()!=regionChroms.length)
+			return false;
+		String[] chroms = new String[regions.size()];
+		int[] starts = new int[regions.size()], ends = new int[regions.size()];
+		for(int r=0; r<regions.size(); r++){
+			chroms[r] = regions.get(r).getChrom();
+			starts[r] = regions.get(r).getStart();
+			ends[r] = regions.get(r).getEnd();
+		}
+		return regionChecksum==regionChecksum(chroms, starts, ends);
+	}
+
+	/**
+	 * Capture the binding models, motifs & signal fractions.
+	 * @param man
+	 * @param bman
+	 * @param repBindingModels : binding model record for each replicate (the first model is the initial model)
+	 */
+	public void captureModels(ExperimentManager man, BindingManager bman, Map<ControlledExperiment, List<BindingModel>> repBindingModels){
+		modelPositions = new int[numReps][][];
+		modelProbs = new double[numReps][][];
+		modelFileNames = new String[numReps][];
+		signalVsNoiseFractions = new double[numReps];
+		for(ControlledExperiment rep : man.getReplicates()){
+			int x = rep.getIndex();
+			List<BindingModel> models = repBindingModels.get(rep);
+			int numUpdates = Math.max(0, models.size()-1);
+			modelPositions[x] = new int[numUpdates][];
+			modelProbs[x] = new double[numUpdates][];
+			modelFileNames[x] = new String[numUpdates];
+			for(int m=0; m<numUpdates; m++){
+				List<Pair<Integer,Double>> dist = models.get(m+1).getEmpiricalDistribution();
+				modelPositions[x][m] = new int[dist.size()];
+				modelProbs[x][m] = new double[dist.size()];
+				for(int i=0; i<dist.size(); i++){
+					modelPositions[x][m][i] = dist.get(i).car();
+					modelProbs[x][m][i] = dist.get(i).cdr();
+				}
+				modelFileNames[x][m] = models.get(m+1).getFileName();
+			}
+			signalVsNoiseFractions[x] = rep.getSignalVsNoiseFraction();
+		}
+
+		motifs = new float[numConds][][];
+		freqMatrices = new float[numConds][][];
+		motifNames = new String[numConds];
+		freqMatrixNames = new String[numConds];
+		motifOffsets = new int[numConds];
+		for(ExperimentCondition cond : man.getConditions()){
+			int c = cond.getIndex();
+			if(bman.getMotif(cond)!=null){
+				motifs[c] = matrixRows(bman.getMotif(cond));
+				motifNames[c] = bman.getMotif(cond).getName();
+			}
+			if(bman.getFreqMatrix(cond)!=null){
+				freqMatrices[c] = matrixRows(bman.getFreqMatrix(cond));
+				freqMatrixNames[c] = bman.getFreqMatrix(cond).getName();
+			}
+			motifOffsets[c] = bman.getMotifOffset(cond);
+		}
+	}
+
+	/**
+	 * Restore the binding models, motifs & signal fractions.
+	 * The binding model record should hold the initial model of each replicate.
+	 * Call BindingManager.updateMaxInfluenceRange() afterwards.
+	 * @param man
+	 * @param bman
+	 * @param repBindingModels
+	 */
+	public void restoreModels(ExperimentManager man, BindingManager bman, Map<ControlledExperiment, List<BindingModel>> repBindingModels){
+		for(ControlledExperiment rep : man.getReplicates()){
+			int x = rep.getIndex();
+			for(int m=0; m<modelPositions[x].length; m++){
+				List<Pair<Integer,Double>> dist = new ArrayList<Pair<Integer,Double>>();
+				for(int i=0; i<modelPositions[x][m].length; i++)
+					dist.add(new Pair<Integer,Double>(modelPositions[x][m][i], modelProbs[x][m][i]));
+				BindingModel model = new BindingModel(dist);
+				if(modelFileNames[x][m]!=null)
+					model.setFileName(modelFileNames[x][m]);
+				repBindingModels.get(rep).add(model);
+			}
+			List<BindingModel> models = repBindingModels.get(rep);
+			bman.setBindingModel(rep, models.get(models.size()-1));
+			rep.setSignalVsNoiseFraction(signalVsNoiseFractions[x]);
+		}
+		for(ExperimentCondition cond : man.getConditions()){
+			int c = cond.getIndex();
+			bman.setMotif(cond, motifs[c]==null ? null : makeMatrix(motifs[c], motifNames[c]));
+			bman.setFreqMatrix(cond, freqMatrices[c]==null ? null : makeMatrix(freqMatrices[c], freqMatrixNames[c]));
+			bman.setMotifOffset(cond, motifOffsets[c]);
+		}
+	}
+
+	/**
+	 * Set the potential regions & read counts
+	 * @param chroms
+	 * @param starts
+	 * @param ends
+	 * @param lengthTotal : total length of the potential regions
+	 * @param potSig : signal channel counts in potential regions, indexed by condition
+	 * @param nonPotSig : signal channel counts outside potential regions, indexed by condition
+	 * @param potCtrl : control channel counts in potential regions, indexed by condition
+	 * @param nonPotCtrl : control channel counts outside potential regions, indexed by condition
+	 * @param potSigByRep : signal channel counts in potential regions, indexed by replicate
+	 * @param nonPotSigByRep : signal channel counts outside potential regions, indexed by replicate
+	 */
+	public void setPotentialRegions(String[] chroms, int[] starts, int[] ends, double lengthTotal,
+			double[] potSig, double[] nonPotSig, double[] potCtrl, double[] nonPotCtrl, double[] potSigByRep, double[] nonPotSigByRep){
+		regionChroms = chroms;
+		regionStarts = starts;
+		regionEnds = ends;
+		regionChecksum = regionChecksum(chroms, starts, ends);
+		potRegionLengthTotal = lengthTotal;
+		potRegCountsSigChannel = potSig;
+		nonPotRegCountsSigChannel = nonPotSig;
+		potRegCountsCtrlChannel = potCtrl;
+		nonPotRegCountsCtrlChannel = nonPotCtrl;
+		potRegCountsSigChannelByRep = potSigByRep;
+		nonPotRegCountsSigChannelByRep = nonPotSigByRep;
+	}
+
+	/**
+	 * Set the mixture model state
+	 * @param tRound : mixture model training round counter
+	 * @param logKL : largest log KL divergence of the last binding model update
+	 * @param noise : global noise per base, indexed by condition
+	 * @param starts : index of the first component of each region & condition (indexed by region*numConds+condition, last entry is the number of components)
+	 * @param positions : component positions
+	 * @param indices : component indices
+	 * @param pis : component pi values
+	 * @param resps : component responsibility sums
+	 * @param hasComps : region has active components, indexed by region
+	 * @param nResp : noise responsibilities, indexed by region*numConds+condition
+	 */
+	public void setMixtureState(int tRound, double logKL, double[] noise, int[] starts, int[] positions, int[] indices,
+			double[] pis, double[] resps, boolean[] hasComps, double[] nResp){
+		trainingRound = tRound;
+		lastModelLogKL = logKL;
+		noisePerBase = noise;
+		compStarts = starts;
+		compPositions = positions;
+		compIndices = indices;
+		compPis = pis;
+		compResps = resps;
+		hasComponents = hasComps;
+		noiseResp = nResp;
+	}
+
+	/**
+	 * Write the checkpoint. The file is written under a temporary name and then moved into place,
+	 * so an interrupted write leaves the last complete checkpoint intact.
+	 * @param f
+	 * @throws IOException
+	 */
+	public void write(File f) throws IOException{
+		File tmp = new File(f.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numConds);
+			out.writeInt(numReps);
+			out.writeInt(round);
+			out.writeBoolean(converged);
+			for(String name : condNames)
+				out.writeUTF(name);
+			for(String name : repNames)
+				out.writeUTF(name);
+			out.writeLong(genomeChecksum);
+			writeString(out, regionSettings);
+			out.writeLong(regionChecksum);
+			//Binding models & motifs
+			for(int x=0; x<numReps; x++){
+				out.writeInt(modelPositions[x].length);
+				for(int m=0; m<modelPositions[x].length; m++){
+					writeInts(out, modelPositions[x][m]);
+					writeDoubles(out, modelProbs[x][m]);
+					writeString(out, modelFileNames[x][m]);
+				}
+			}
+			writeDoubles(out, signalVsNoiseFractions);
+			for(int c=0; c<numConds; c++){
+				writeMatrix(out, motifs[c]);
+				writeString(out, motifNames[c]);
+				writeMatrix(out, freqMatrices[c]);
+				writeString(out, freqMatrixNames[c]);
+			}
+			writeInts(out, motifOffsets);
+			//Potential regions (chromosome names are written once per run of regions on the same chromosome)
+			out.writeInt(regionChroms.length);
+			for(int r=0; r<regionChroms.length; r++){
+				boolean newChrom = r==0 || !regionChroms[r].equals(regionChroms[r-1]);
+				out.writeBoolean(newChrom);
+				if(newChrom)
+					out.writeUTF(regionChroms[r]);
+			}
+			writeInts(out, regionStarts);
+			writeInts(out, regionEnds);
+			out.writeDouble(potRegionLengthTotal);
+			writeDoubles(out, potRegCountsSigChannel);
+			writeDoubles(out, nonPotRegCountsSigChannel);
+			writeDoubles(out, potRegCountsCtrlChannel);
+			writeDoubles(out, nonPotRegCountsCtrlChannel);
+			writeDoubles(out, potRegCountsSigChannelByRep);
+			writeDoubles(out, nonPotRegCountsSigChannelByRep);
+			//Mixture model state
+			out.writeInt(trainingRound);
+			out.writeDouble(lastModelLogKL);
+			writeDoubles(out, noisePerBase);
+			writeInts(out, compStarts);
+			writeInts(out, compPositions);
+			writeInts(out, compIndices);
+			writeDoubles(out, compPis);
+			writeDoubles(out, compResps);
+			out.writeInt(hasComponents.length);
+			for(boolean h : hasComponents)
+				out.writeBoolean(h);
+			writeDoubles(out, noiseResp);
+		}finally{
+			out.close();
+		}
+		try{
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(AtomicMoveNotSupportedException e){
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Read a checkpoint
+	 * @param f
+	 * @return
+	 * @throws IOException if the file is not a readable checkpoint
+	 */
+	public static TrainingCheckpoint read(File f) throws IOException{
+		TrainingCheckpoint cp = new TrainingCheckpoint();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(f))));
+		try{
+			if(in.readInt()!=MAGIC)
+				throw new IOException(f.getName()+" is not a MultiGPS checkpoint");
+			int version = in.readInt();
+			if(version!=VERSION)
+				throw new IOException(f.getName()+" has unsupported checkpoint version "+version);
+			cp.numConds = in.readInt();
+			cp.numReps = in.readInt();
+			cp.round = in.readInt();
+			cp.converged = in.readBoolean();
+			cp.condNames = new String[cp.numConds];
+			for(int c=0; c<cp.numConds; c++)
+				cp.condNames[c] = in.readUTF();
+			cp.repNames = new String[cp.numReps];
+			for(int x=0; x<cp.numReps; x++)
+				cp.repNames[x] = in.readUTF();
+			cp.genomeChecksum = in.readLong();
+			cp.regionSettings = readString(in);
+			cp.regionChecksum = in.readLong();
+			//Binding models & motifs
+			cp.modelPositions = new int[cp.numReps][][];
+			cp.modelProbs = new double[cp.numReps][][];
+			cp.modelFileNames = new String[cp.numReps][];
+			for(int x=0; x<cp.numReps; x++){
+				int numUpdates = in.readInt();
+				cp.modelPositions[x] = new int[numUpdates][];
+				cp.modelProbs[x] = new double[numUpdates][];
+				cp.modelFileNames[x] = new String[numUpdates];
+				for(int m=0; m<numUpdates; m++){
+					cp.modelPositions[x][m] = readInts(in);
+					cp.modelProbs[x][m] = readDoubles(in);
+					cp.modelFileNames[x][m] = readString(in);
+				}
+			}
+			cp.signalVsNoiseFractions = readDoubles(in);
+			cp.motifs = new float[cp.numConds][][];
+			cp.freqMatrices = new float[cp.numConds][][];
+			cp.motifNames = new String[cp.numConds];
+			cp.freqMatrixNames = new String[cp.numConds];
+			for(int c=0; c<cp.numConds; c++){
+				cp.motifs[c] = readMatrix(in);
+				cp.motifNames[c] = readString(in);
+				cp.freqMatrices[c] = readMatrix(in);
+				cp.freqMatrixNames[c] = readString(in);
+			}
+			cp.motifOffsets = readInts(in);
+			//Potential regions
+			int numRegions = in.readInt();
+			cp.regionChroms = new String[numRegions];
+			for(int r=0; r<numRegions; r++)
+				cp.regionChroms[r] = in.readBoolean() ? in.readUTF() : cp.regionChroms[r-1];
+			cp.regionStarts = readInts(in);
+			cp.regionEnds = readInts(in);
+			cp.potRegionLengthTotal = in.readDouble();
+			cp.potRegCountsSigChannel = readDoubles(in);
+			cp.nonPotRegCountsSigChannel = readDoubles(in);
+			cp.potRegCountsCtrlChannel = readDoubles(in);
+			cp.nonPotRegCountsCtrlChannel = readDoubles(in);
+			cp.potRegCountsSigChannelByRep = readDoubles(in);
+			cp.nonPotRegCountsSigChannelByRep = readDoubles(in);
+			//Mixture model state
+			cp.trainingRound = in.readInt();
+			cp.lastModelLogKL = in.readDouble();
+			cp.noisePerBase = readDoubles(in);
+			cp.compStarts = readInts(in);
+			cp.compPositions = readInts(in);
+			cp.compIndices = readInts(in);
+			cp.compPis = readDoubles(in);
+			cp.compResps = readDoubles(in);
+			cp.hasComponents = new boolean[in.readInt()];
+			for(int r=0; r<cp.hasComponents.length; r++)
+				cp.hasComponents[r] = in.readBoolean();
+			cp.noiseResp = readDoubles(in);
+		}finally{
+			in.close();
+		}
+		return cp;
+	}
+
+	//Condition & replicate names, indexed by condition & replicate index
+	protected static String[] conditionNames(ExperimentManager man){
+		String[] names = new String[man.getNumConditions()];
+		for(ExperimentCondition cond : man.getConditions())
+			names[cond.getIndex()] = cond.getName();
+		return names;
+	}
+	protected static String[] replicateNames(ExperimentManager man){
+		String[] names = new String[man.getReplicates().size()];
+		for(ControlledExperiment rep : man.getReplicates())
+			names[rep.getIndex()] = rep.getName();
+		return names;
+	}
+
+	//Checksum of the genome's chromosome names & lengths
+	protected static long genomeChecksum(Genome gen){
+		CRC32 crc = new CRC32();
+		for(String chr : gen.getChromList())
+			crc.update((chr+":"+gen.getChromLength(chr)+";").getBytes());
+		return crc.getValue();
+	}
+
+	//Checksum of region coordinates (in order)
+	protected static long regionChecksum(String[] chroms, int[] starts, int[] ends){
+		CRC32 crc = new CRC32();
+		for(int r=0; r<chroms.length; r++)
+			crc.update((chroms[r]+":"+starts[r]+"-"+ends[r]+";").getBytes());
+		return crc.getValue();
+	}
+
+	//Copy the A,C,G,T columns of a weight matrix
+	protected static float[][] matrixRows(WeightMatrix wm){
+		float[][] rows = new float[wm.matrix.length][BASES.length];
+		for(int i=0; i<rows.length; i++)
+			for(int b=0; b<BASES.length; b++)
+				rows[i][b] = wm.matrix[i][BASES[b]];
+		return rows;
+	}
+
+	//Rebuild a weight matrix (flagged as MEMERunner does for the matrices it parses)
+	protected static WeightMatrix makeMatrix(float[][] rows, String name){
+		WeightMatrix wm = new WeightMatrix(rows.length);
+		wm.setNameVerType(name, "freq", "MEME");
+		for(int i=0; i<rows.length; i++)
+			for(int b=0; b<BASES.length; b++)
+				wm.matrix[i][BASES[b]] = rows[i][b];
+		wm.setLogOdds();
+		return wm;
+	}
+
+	//Binary I/O helpers (null arrays & strings are written as length -1)
+	protected static void writeInts(DataOutputStream out, int[] a) throws IOException{
+		out.writeInt(a==null ? -1 : a.length);
+		if(a!=null)
+			for(int v : a)
+				out.writeInt(v);
+	}
+	protected static int[] readInts(DataInputStream in) throws IOException{
+		int n = in.readInt();
+		if(n<0)
+			return null;
+		int[] a = new int[n];
+		for(int i=0; i<n; i++)
+			a[i] = in.readInt();
+		return a;
+	}
+	protected static void writeDoubles(DataOutputStream out, double[] a) throws IOException{
+		out.writeInt(a==null ? -1 : a.length);
+		if(a!=null)
+			for(double v : a)
+				out.writeDouble(v);
+	}
+	protected static double[] readDoubles(DataInputStream in) throws IOException{
+		int n = in.readInt();
+		if(n<0)
+			return null;
+		double[] a = new double[n];
+		for(int i=0; i<n; i++)
+			a[i] = in.readDouble();
+		return a;
+	}
+	protected static void writeMatrix(DataOutputStream out, float[][] m) throws IOException{
+		out.writeInt(m==null ? -1 : m.length);
+		if(m!=null)
+			for(float[] row : m)
+				for(float v : row)
+					out.writeFloat(v);
+	}
+	protected static float[][] readMatrix(DataInputStream in) throws IOException{
+		int n = in.readInt();
+		if(n<0)
+			return null;
+		float[][] m = new float[n][BASES.length];
+		for(int i=0; i<n; i++)
+			for(int b=0; b<BASES.length; b++)
+				m[i][b] = in.readFloat();
+		return m;
+	}
+	protected static void writeString(DataOutputStream out, String s) throws IOException{
+		out.writeBoolean(s!=null);
+		if(s!=null)
+			out.writeUTF(s);
+	}
+	protected static String readString(DataInputStream in) throws IOException{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
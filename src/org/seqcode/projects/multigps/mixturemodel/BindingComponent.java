@@ -14,8 +14,6 @@ public class BindingComponent implements Comparable<BindingComponent>{
 	protected int position; //Position without the chromosome name (for computational convenience)
 	protected double pi; //Emission probability
 	protected double sum_resp; //Sum of read responsibilities
-	protected double[][] readProfile_plus;  //Read profiles are left uninitialized, as they are only used to store read distributions at the end of training. 
-	protected double[][] readProfile_minus; //The read distributions stored in readProfiles are centered on the binding position. 
 	protected int index=0;
 	
 	public BindingComponent(Point pos, int numReps){
@@ -23,12 +21,6 @@ public class BindingComponent implements Comparable<BindingComponent>{
 		position = coord.getLocation();
 		sum_resp = 0;
 		pi = 1;
-		readProfile_plus= new double[numReps][];
-		readProfile_minus= new double[numReps][];
-		for(int r=0; r<numReps; r++){
-			readProfile_plus[r]=null;
-			readProfile_minus[r]=null;
-		}	
 	}
 	
 	//Accessors
@@ -41,24 +33,6 @@ public class BindingComponent implements Comparable<BindingComponent>{
 
 	public double getSumResponsibility(){return sum_resp;}
 	
-	public double[] getReadProfile_plus(int repIndex){
-		return readProfile_plus[repIndex];
-	}
-	
-	public double[] getReadProfile_minus(int repIndex){
-		return readProfile_minus[repIndex];
-	}
-	
-	
-	public double getReadProfile(int repIndex, int i, char strand){
-		double result=0;
-		if (strand=='+')
-			result=readProfile_plus[repIndex][i];
-		else if (strand=='-')
-			result=readProfile_minus[repIndex][i];
-		return result;
-	}
-	
 	//Mutators
 	public void setPi(double p){pi=p;}
 	public void setPosition(int p){position = p; updateCoordFromLocation();}
@@ -71,17 +45,6 @@ public class BindingComponent implements Comparable<BindingComponent>{
 		pi=initValue;
 	}
 	
-	public void setReadProfile(int repIndex, double[] profile, char strand){
-		if (readProfile_plus[repIndex]==null){
-			readProfile_plus[repIndex] = new double[profile.length];
-			readProfile_minus[repIndex] = new double[profile.length];
-		}
-		if (strand=='+')
-			readProfile_plus[repIndex] = profile;
-		else if (strand=='-')
-			readProfile_minus[repIndex] = profile;
-	}
-
 	//Comparable default method
 	public int compareTo(BindingComponent m) {
 		return getCoord().compareTo(m.getCoord());
@@ -1,19 +1,19 @@
 package org.seqcode.projects.multigps.mixturemodel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.events.BindingManager;
 import org.seqcode.deepseq.events.BindingModel;
-import org.seqcode.deepseq.events.BindingModelPerBase;
 import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
 import org.seqcode.deepseq.experiments.ExperimentManager;
 import org.seqcode.deepseq.stats.BackgroundCollection;
 import org.seqcode.genome.location.Region;
-import org.seqcode.genome.sequence.SequenceUtils;
 import org.seqcode.projects.multigps.framework.MultiGPSConfig;
 import org.seqcode.projects.multigps.utilities.EMStepPlotter;
 
@@ -45,20 +45,41 @@ public class BindingEM {
 	protected boolean[][]  hitPlusStr;	// Hit positive strand boolean
 	protected int[]		   hitNum;		// Number of hits in each condition 
 	protected int[][]      repIndices;  // Index of replicate for the hit
-	protected double[][][] hAll;		// H function values for all positions in the current window (precomputed)
+	protected double[][]   hBand;		// H function values for each read, restricted to window positions within the binding model range (whole window for per-base reads; precomputed, stride hBandMaxLength per read)
+	protected int[][]      hBandStart;	// Window offset of the first position in each read's H band
+	protected int[][]      hBandEnd;	// Window offset after the last position in each read's H band
+	protected double[][]   hOutside;	// H function value for each read at window positions outside its band (binding model background probability)
+	protected double[][]   hLogOutside;	// Log of hOutside (used in mu maximization)
+	protected int[][]      hitBandOrder;	// Read indices sorted by H band start (used in mu maximization)
+	protected int[]        hBandMaxLength;	// Longest possible H band in each condition (widest binding model range, or window width if there are per-base reads)
+	protected boolean[][]  hitPerBase;	// Hit is scored by a per-base (permanganate) binding model
+	protected int[]        numPerBaseHits;	// Number of per-base scored hits in each condition
+	protected byte[]       seqBases;	// Window sequence encoded as binding model table rows (permanganate ChIP-seq only)
+	protected char[]       regionSeq;	// Window sequence (only used to score bases without a table row)
+	protected byte[][]     hitBase;		// Table row of the base preceding each per-base scored hit (or BindingModelTable.BASE_OUTSIDE)
 	protected double[][][] h; 			// H function (binding component probability per read)
 	protected double[][]   n; 			// N function (noise component probability per read)
 	protected double[][][] rBind;		// Binding component responsibilities
 	protected double[][]   rNoise;		// Noise component responsibilities
+	protected boolean      singlePrecision;	// H function & responsibilities are stored in single precision (hBandF, hF & rBindF replace hBand, h & rBind)
+	protected float[][]    hBandF;		// H band values (single precision mode)
+	protected float[][][]  hF; 			// H function (single precision mode)
+	protected float[][][]  rBindF;		// Binding component responsibilities (single precision mode)
 	protected double[][]   pi;			// pi : emission probabilities for binding components
 	protected double[]     piNoise;		// pi : emission probabilities for noise components (fixed)
 	protected int[][]      mu;			// mu : positions of the binding components
+	protected int[][]      activeComps;	// Indices of active (pi>0) binding components in each condition (ascending order)
+	protected int[]        numActiveComps;	// Number of active binding components in each condition
+	protected int[][]      sortedCompPos;	// Positions of active binding components in each condition, sorted (multi-condition positional prior)
+	protected int[][]      sortedComps;	// Indices of active binding components in each condition, in order of sortedCompPos
 	protected double []    alphaMax;	// Maximum alpha
 	protected double[][]   motifPrior;  // Motif prior (indexed by condition & base) 
 	protected BindingModel[] bindingModels; //Array of binding models for convenience
-	protected double[][][] lastRBind;	//Last responsibilities (monitor convergence)
-	protected double[][]   lastPi;		//Last Pi (monitor convergence)
-	protected int[][]      lastMu;		//Last positions (monitor convergence)
+	protected BindingModelTable[] modelTables; //Binding models compiled into lookup tables, indexed by replicate
+	protected int          lastNumActive;	//Last number of active components (monitor convergence)
+	protected double       maxRBindDelta;	//Largest responsibility change in the current iteration (monitor convergence)
+	protected double       maxPiDelta;	//Largest pi change in the current iteration (monitor convergence)
+	protected boolean      muChanged;	//Any component moved in the current iteration (monitor convergence)
 	protected double lastLAP, LAP; 		//log-likelihood monitoring
 	protected boolean plotEM=false;		//Plot the current region components
 	protected Region plotSubRegion=null; //Sub region to plot
@@ -66,6 +87,40 @@ public class BindingEM {
 	protected double numPotentialRegions;
 	protected double probAgivenB, probAgivenNOTB;
 	protected int stateEquivCount=0;
+	protected double[][]   squaremPi0, squaremPi1;	//Last two pi updates in the current SQUAREM cycle (indexed by condition & component)
+	protected int[]        squaremHistLen;		//Number of pi updates recorded in the current SQUAREM cycle
+	protected int[]        squaremHistNumActive;	//Number of active components when the SQUAREM cycle started
+	protected double[]     squaremHistAlpha;	//Alpha when the SQUAREM cycle started
+	protected int numIterations=0, numTotalIterations=0, numExtrapolations=0; //Iteration counts from the last call to train()
+	protected double[][][] muSums;		// Results of mu maximization summations for individual components (multi-condition windows)
+	protected int[][]      muSumStarts;	// Start positions of muSum arrays (start of maximization window)
+	protected int[][]      muSumWidths;	// Effective widths of muSum arrays (width of maximization window)
+	protected int[][]      muSumMaxPos;	// Positions of maxima in mu maximization summations
+	protected double[][]   muScores;	// Scratch mu maximization summations (when not saved in muSums)
+	protected int[][]      newMu;		// mu update
+	protected double[][]   sumR;		// Responsibility sums for pi maximization
+	protected double[][]   totalResp;	// Per-read responsibility totals (E-step)
+	protected double[]     currAlpha;	// Current alpha (annealed in; alpha=0 during ML steps)
+	protected double[]     condMaxRBindDelta;	// Largest responsibility change in the current iteration, per condition
+	protected double[]     condMaxPiDelta;	// Largest pi change in the current iteration, per condition
+	protected boolean[]    condComponentEliminated;	// A component was eliminated in the current iteration, per condition
+	protected int[]        condExtrapolations;	// Accepted SQUAREM extrapolations in the current iteration, per condition
+	protected double[][]   squaremPiCand, squaremTotalResp;	// SQUAREM scratch arrays (candidate pi & per-read totals)
+	protected boolean      warmStart=false;	// Components were initialized from the last training round's pi values (shorter annealing schedule)
+	protected int          emMLIter, alphaAnnealingIter, posPriorIter;	// Annealing schedule for the current window (EM_ML_ITER, ALPHA_ANNEALING_ITER & POSPRIOR_ITER, or their warm-start versions)
+	protected boolean      parallelConditions=false;	// Run the per-condition EM steps in parallel in the current window
+	protected ForkJoinPool conditionPool=null;	// Shared pool for per-condition EM steps in costly windows (null: conditions are always processed serially)
+	protected EMWorkspace workspace;	//Reusable working arrays
+	//Workspace slots
+	private static final int WS_HIT_COUNTS=0, WS_HIT_POS=1, WS_HIT_PLUS_STR=2, WS_REP_INDICES=3, WS_H_BAND=4, WS_H_BAND_START=5, 
+			WS_H_BAND_END=6, WS_H_OUTSIDE=7, WS_H_LOG_OUTSIDE=8, WS_HIT_PER_BASE=9, WS_BAND_KEYS=10, WS_HIT_BAND_ORDER=11, 
+			WS_H=12, WS_N=13, WS_R_BIND=14, WS_R_NOISE=15, WS_PI=16, WS_MU=17, WS_ACTIVE_COMPS=18, WS_NEW_MU=19, WS_SUM_R=20,
+			WS_MU_SUMS=21, WS_MU_SUM_STARTS=22, WS_MU_SUM_WIDTHS=23, WS_MU_SUM_MAX_POS=24, WS_MU_SCORES=25, WS_TOTAL_RESP=26,
+			WS_SQUAREM_PI0=27, WS_SQUAREM_PI1=28, WS_SQUAREM_PI_CAND=29, WS_SQUAREM_TOTAL_RESP=30,
+			WS_COMP_POS_KEYS=31, WS_SORTED_COMP_POS=32, WS_SORTED_COMPS=33, WS_JOIN_SCORES=34,
+			WS_H_BAND_F=35, WS_H_F=36, WS_R_BIND_F=37, WS_SEQ_BASES=38, WS_HIT_BASE=39;
+	//Per-condition EM steps
+	private static final int E_STEP=0, MU_STEP=1, PI_STEP=2;
 	
 	/**
 	 * Constructor
@@ -73,6 +128,19 @@ public class BindingEM {
 	 * @param eMan
 	 */
 	public BindingEM(MultiGPSConfig c, ExperimentManager eMan, BindingManager bMan, HashMap<ExperimentCondition, BackgroundCollection> condBacks, int numPotReg){
+		this(c, eMan, bMan, condBacks, numPotReg, new EMWorkspace(eMan.getNumConditions()), BindingModelTable.compile(eMan, bMan));
+	}
+	
+	/**
+	 * Constructor
+	 * @param c
+	 * @param eMan
+	 * @param ws : working arrays, reused across calls to train() (one workspace per thread)
+	 * @param tables : binding model lookup tables for the current training round, indexed by replicate
+	 */
+	public BindingEM(MultiGPSConfig c, ExperimentManager eMan, BindingManager bMan, HashMap<ExperimentCondition, BackgroundCollection> condBacks, int numPotReg, EMWorkspace ws, BindingModelTable[] tables){
+		workspace = ws;
+		modelTables = tables;
 		config=c;
 		manager = eMan;
 		bindingManager = bMan;
@@ -91,8 +159,13 @@ public class BindingEM {
         probAgivenNOTB =  Math.log((N-S)/(L-N))/Math.log(2);
 	}
 	
-	//Accessor
+	//Accessors
 	public List<List<BindingComponent>> getComponents(){return components;}
+	public int getIterations(){return numIterations;}				//EM iterations (not counting component elimination iterations)
+	public int getTotalIterations(){return numTotalIterations;}	//EM iterations (including component elimination iterations)
+	public int getExtrapolations(){return numExtrapolations;}		//Accepted SQUAREM extrapolations of pi
+	public void setConditionPool(ForkJoinPool pool){conditionPool = pool;}	//Pool for processing conditions in parallel in costly windows
+	public void setWarmStart(boolean ws){warmStart = ws;}	//Components are initialized from the last training round's pi values
 	
 	/**
      * EM training
@@ -101,7 +174,7 @@ public class BindingEM {
      *
      * Almost purely matrix/array operations.
      */
-    public List<List<BindingComponent>>  train(List<List<StrandedBaseCount>> signals, 
+    public List<List<BindingComponent>>  train(WindowReads signals, 
     											  Region w, 
     											  List<NoiseComponent> noise,
     											  List<List<BindingComponent>> comps, 
@@ -116,33 +189,47 @@ public class BindingEM {
         this.motifPrior = motifPrior;
         this.trainingRound = trainingRound;
     	this.plotSubRegion = plotSubRegion;
-        //Matrix initializations
+    	//Warm-started components are already close to convergence, so the ML, alpha annealing & positional prior phases are shortened
+    	emMLIter = warmStart ? config.WARM_EM_ML_ITER : config.EM_ML_ITER;
+    	alphaAnnealingIter = warmStart ? config.WARM_ALPHA_ANNEALING_ITER : config.ALPHA_ANNEALING_ITER;
+    	posPriorIter = warmStart ? config.WARM_POSPRIOR_ITER : config.POSPRIOR_ITER;
+        //Matrix initializations (per-read and per-component arrays are taken from the workspace)
         hitCounts= new double[numConditions][];	// Hit weights
     	hitPos= new int[numConditions][];			// Hit positions
     	hitPlusStr= new boolean[numConditions][];	// Hit positive strand boolean
     	hitNum = new int[numConditions];			// Number of hits in each condition
     	repIndices= new int[numConditions][];	    // Index of replicate for the hit
-    	hAll = new double[numConditions][][];		// H function values for all positions in the current window (precomputed)
+    	hBand = new double[numConditions][];		// H function values within each read's binding model range (precomputed)
+    	hBandStart = new int[numConditions][];		// Window offsets of H band starts
+    	hBandEnd = new int[numConditions][];		// Window offsets of H band ends
+    	hOutside = new double[numConditions][];		// H function values outside H bands
+    	hLogOutside = new double[numConditions][];	// Log H function values outside H bands
+    	hitBandOrder = new int[numConditions][];	// Read indices sorted by H band start
+    	hBandMaxLength = new int[numConditions];	// Longest H band per condition
+    	hitPerBase = new boolean[numConditions][];	// Per-base scored hit booleans
+    	hitBase = new byte[numConditions][];		// Preceding bases of per-base scored hits
+    	numPerBaseHits = new int[numConditions];	// Number of per-base scored hits per condition
     	h= new double[numConditions][][]; 			// H function (binding component probability per read)
     	n= new double[numConditions][]; 			// N function (noise component probability per read)
     	rBind= new double[numConditions][][];		// Binding component responsibilities
     	rNoise= new double[numConditions][];		// Noise component responsibilities
-    	pi = new double[numConditions][numComponents];	// pi : emission probabilities for binding components
+    	singlePrecision = config.useSinglePrecision();
+    	hBandF = new float[numConditions][];		// H band values (single precision mode)
+    	hF = new float[numConditions][][];			// H function (single precision mode)
+    	rBindF = new float[numConditions][][];		// Binding component responsibilities (single precision mode)
+    	pi = new double[numConditions][];			// pi : emission probabilities for binding components
     	piNoise = new double[numConditions];		// pi : emission probabilities for noise components (fixed)
     	alphaMax = new double[numConditions];		//Maximum alpha
-        mu = new int[numConditions][numComponents];// mu : positions of the binding components
+        mu = new int[numConditions][];				// mu : positions of the binding components
         bindingModels = new BindingModel[manager.getReplicates().size()]; //Array of bindingModels for convenience
         plotEM = (plotSubRegion!=null && plotSubRegion.overlaps(w));
-        //Monitor state convergence using the following last variables
-        lastRBind = new double[numConditions][][];
-        lastPi = new double[numConditions][numComponents];
-        lastMu = new int[numConditions][numComponents];
         
-        //Sequence is required if one of the experiments is permanganate ChIP-seq
-        char[] currRegionSeqRC=null; 
+        //Sequence is required if one of the experiments is permanganate ChIP-seq (encoded once for the window)
+        regionSeq = currRegionSeq;
+        seqBases = null;
         if(currRegionSeq!=null){
-	        currRegionSeqRC = currRegionSeq.clone();
-			SequenceUtils.reverseComplement(currRegionSeqRC);
+        	seqBases = workspace.getBytes(WS_SEQ_BASES, 0, currRegionSeq.length);
+        	BindingModelTable.encodeBases(currRegionSeq, seqBases);
         }
         
 		
@@ -151,44 +238,38 @@ public class BindingEM {
         	int c = cond.getIndex();
         	
         	//Add bindingModels to array
-        	for(ControlledExperiment rep : cond.getReplicates())
+        	for(ControlledExperiment rep : cond.getReplicates()){
         		bindingModels[rep.getIndex()] = bindingManager.getBindingModel(rep);
+        		hBandMaxLength[c] = Math.max(hBandMaxLength[c], modelTables[rep.getIndex()].getLength());
+        		//Per-base reads are scored by the base next to each position, so their bands cover the whole window
+        		if(modelTables[rep.getIndex()].isPerBase() && seqBases!=null)
+        			hBandMaxLength[c] = Math.max(hBandMaxLength[c], w.getWidth());
+        	}
         	
         	//Set maximum alphas
         	alphaMax[c] =  config.getFixedAlpha()>0 ? config.getFixedAlpha() : 
         			config.getAlphaScalingFactor() * (double)conditionBackgrounds.get(cond).getMaxThreshold('.');
         	
         	//Load Reads (merge from all replicates)
-        	List<StrandedBaseCount> bases = new ArrayList<StrandedBaseCount>();
+        	int numBases = 0;
         	for(ControlledExperiment rep : cond.getReplicates())
-        		bases.addAll(signals.get(rep.getIndex()));
-        	int numBases = bases.size();
+        		numBases+=signals.getNumReads(rep.getIndex());
         	hitNum[c]=numBases;
         	
-        	//Load replicate index for each read
-        	repIndices[c] = new int[numBases]; 
-        	int y=0, z=0;
-        	for(ControlledExperiment rep : cond.getReplicates()){
-        		z=0;
-        		while(z<signals.get(rep.getIndex()).size()){
-        			repIndices[c][y] = rep.getIndex();
-        			z++; y++;
-        		}
-        	}
-            //Load read info
-            double[] countc= new double[numBases];
-            int[] posc= new int[numBases];
-            boolean[] plusc= new boolean[numBases];
-            for(int i=0;i<numBases;i++){
-            	posc[i] = bases.get(i).getCoordinate();
-            	plusc[i] = bases.get(i).getStrand() == '+';
-                countc[i]=bases.get(i).getCount();
-            }
+            //Load read info & replicate index for each read
+        	repIndices[c] = workspace.getInts(WS_REP_INDICES, c, numBases); 
+            double[] countc= workspace.getDoubles(WS_HIT_COUNTS, c, numBases);
+            int[] posc= workspace.getInts(WS_HIT_POS, c, numBases);
+            boolean[] plusc= workspace.getBooleans(WS_HIT_PLUS_STR, c, numBases);
+            int y=0;
+            for(ControlledExperiment rep : cond.getReplicates())
+            	y = signals.copy(rep.getIndex(), posc, plusc, countc, repIndices[c], y);
             hitPos[c] = posc;
             hitCounts[c]=countc;
             hitPlusStr[c] = plusc;
         	
             //Load pi for binding components
+            pi[c] = workspace.getDoubles(WS_PI, c, numComp);
             for(int j=0;j<numComp;j++){
                 BindingComponent comp = components.get(c).get(j);
                 pi[c][j]= comp.getPi(); 
@@ -197,44 +278,119 @@ public class BindingEM {
             piNoise[c]=noise.get(c).getPi();
             
             //Load binding component positions
+            mu[c] = workspace.getInts(WS_MU, c, numComp);
             for(int j=0;j<numComp;j++)
             	mu[c][j] = components.get(c).get(j).getPosition();
             
-            //Initialize H function for all positions in the current region
-            double[][] hAllc = new double[w.getWidth()][numBases];
-            for(int i=0;i<numBases;i++)
-            	for(int b=0;b<w.getWidth();b++){
-            		int pos = b+w.getStart();
-                    int dist = hitPlusStr[c][i] ? hitPos[c][i]-pos: pos-hitPos[c][i];
-                    //Permanganate ChIP-seq special case
-                    if(bindingModels[repIndices[c][i]] instanceof BindingModelPerBase && currRegionSeq!=null && currRegionSeqRC!=null){
-                    	int wantedPos =  hitPlusStr[c][i] ? pos-1 : pos+1;
-            			if(wantedPos>=w.getStart() && wantedPos<w.getEnd()){
-            				char base = hitPlusStr[c][i] ? currRegionSeq[wantedPos-w.getStart()] : currRegionSeqRC[w.getEnd()-wantedPos];
-            				hAllc[b][i] = ((BindingModelPerBase)(bindingModels[repIndices[c][i]])).probability(dist, base);
-            			}else
-            				hAllc[b][i] = bindingModels[repIndices[c][i]].probability(dist);
-                    }else//Standard ChIP-seq / ChIP-exo
-                    	hAllc[b][i] = bindingModels[repIndices[c][i]].probability(dist);
+            //Initialize H function for the positions in the current region that are within range of each read.
+            //The binding model emits a constant background probability outside of [getMin(), getMax()],
+            //so the remaining positions are represented by a single value per read.
+            //Per-base (permanganate) models have a different background for each base, so per-base reads get a band covering the whole window.
+            //Each read's band is stored at a fixed stride (hBandMaxLength) in a single array.
+            int stride = hBandMaxLength[c];
+            double[] hBandc = singlePrecision ? null : workspace.getDoubles(WS_H_BAND, c, numBases*stride);
+            float[] hBandFc = singlePrecision ? workspace.getFloats(WS_H_BAND_F, c, numBases*stride) : null;
+            int[] hBandStartc = workspace.getInts(WS_H_BAND_START, c, numBases);
+            int[] hBandEndc = workspace.getInts(WS_H_BAND_END, c, numBases);
+            double[] hOutsidec = workspace.getDoubles(WS_H_OUTSIDE, c, numBases);
+            double[] hLogOutsidec = workspace.getDoubles(WS_H_LOG_OUTSIDE, c, numBases);
+            boolean[] perBasec = workspace.getBooleans(WS_HIT_PER_BASE, c, numBases);
+            byte[] hitBasec = seqBases==null ? null : workspace.getBytes(WS_HIT_BASE, c, numBases);
+            for(int i=0;i<numBases;i++){
+            	BindingModelTable table = modelTables[repIndices[c][i]];
+            	int strand = hitPlusStr[c][i] ? BindingModelTable.PLUS : BindingModelTable.MINUS;
+            	perBasec[i] = table.isPerBase() && seqBases!=null;
+            	if(perBasec[i]){
+            		numPerBaseHits[c]++;
+            		hitBasec[i] = (byte)BindingModelTable.precedingBase(seqBases, w.getStart(), w.getWidth(), hitPlusStr[c][i], hitPos[c][i]);
+            	}
+            	hOutsidec[i] = table.getBgProb();
+            	hLogOutsidec[i] = table.getLogBgProb();
+            	//Window offsets of the positions for which min<=dist<=max (i.e. the tabulated offsets)
+            	int tableOffset = w.getStart()-hitPos[c][i]-table.getOffsetStart(strand); //Table index = window offset + tableOffset
+            	int bandStart = perBasec[i] ? 0 : -tableOffset;
+            	int bandEnd = perBasec[i] ? w.getWidth()-1 : bandStart+table.getLength()-1;
+            	bandStart = Math.max(0, bandStart);
+            	bandEnd = Math.min(w.getWidth()-1, bandEnd);
+            	hBandStartc[i] = bandStart;
+            	hBandEndc[i] = Math.max(bandStart, bandEnd+1);
+            	if(bandEnd<bandStart)
+            		continue;
+            	if(perBasec[i]){
+            		//Permanganate ChIP-seq special case: the table row is chosen by the base next to each position (on the read's strand)
+            		int offset = i*stride-bandStart;
+            		double[] probs = table.getProbs(strand);
+            		boolean plus = hitPlusStr[c][i];
+            		int shift = plus ? -1 : 1, lastOffset = w.getWidth()-1, len = table.getLength();
+	            	for(int b=bandStart;b<=bandEnd;b++){
+	            		int s = b+shift; //Window offset of the scored base
+	            		int k = b+tableOffset;
+	            		boolean inRange = k>=0 && k<len;
+	            		double prob = inRange ? probs[k] : table.getBgProb();
+            			if(s>=0 && s<lastOffset){
+            				int base = plus ? seqBases[s] : BindingModelTable.complementIndex(seqBases[s]);
+            				if(base!=BindingModelTable.NO_BASE)
+            					prob = inRange ? table.getBaseProbs(strand, base)[k] : table.getBaseBgProb(base);
+            				else
+            					prob = table.probability(strand, hitPos[c][i], b+w.getStart(), BindingModelTable.strandBase(regionSeq, plus, s));
+            			}
+            			if(singlePrecision)
+            				hBandFc[offset+b] = (float)prob;
+            			else
+            				hBandc[offset+b] = prob;
+	            	}
+            	}else if(singlePrecision){//Standard ChIP-seq / ChIP-exo: the band is a slice of the table
+            		double[] probs = table.getProbs(strand);
+            		int offset = i*stride-bandStart;
+            		for(int b=bandStart;b<=bandEnd;b++)
+            			hBandFc[offset+b] = (float)probs[b+tableOffset];
+            	}else{//Standard ChIP-seq / ChIP-exo: the band is a slice of the table
+            		System.arraycopy(table.getProbs(strand), bandStart+tableOffset, hBandc, i*stride, bandEnd-bandStart+1);
             	}
-    		hAll[c] = hAllc;
+            }
+    		hBand[c] = hBandc;
+    		hBandF[c] = hBandFc;
+    		hBandStart[c] = hBandStartc;
+    		hBandEnd[c] = hBandEndc;
+    		hOutside[c] = hOutsidec;
+    		hLogOutside[c] = hLogOutsidec;
+    		hitPerBase[c] = perBasec;
+    		hitBase[c] = hitBasec;
     		
+    		//Order reads by H band start, so that mu maximization only visits reads in range of each candidate window
+    		long[] bandKeys = workspace.getLongs(WS_BAND_KEYS, 0, numBases);
+    		for(int i=0;i<numBases;i++)
+    			bandKeys[i] = ((long)hBandStartc[i]<<32) | i;
+    		Arrays.sort(bandKeys, 0, numBases);
+    		hitBandOrder[c] = workspace.getInts(WS_HIT_BAND_ORDER, c, numBases);
+    		for(int o=0;o<numBases;o++)
+    			hitBandOrder[c][o] = (int)(bandKeys[o] & 0xffffffffL);
+
             //Initialize responsibility functions
-            double[][] hc= new double[numComp][numBases];
-            double[] nc = new double[numBases];
+            double[][] hc= singlePrecision ? null : workspace.getDoubles(WS_H, c, numComp, numBases);
+            float[][] hFc= singlePrecision ? workspace.getFloats(WS_H_F, c, numComp, numBases) : null;
+            double[] nc = workspace.getDoubles(WS_N, c, numBases);
+            h[c] = hc;
+            hF[c] = hFc;
             for(int i=0;i<numBases;i++){
             	for(int j=0;j<numComp;j++){
             		int index = mu[c][j]-w.getStart();
-                    hc[j][i] = hAll[c][index][i];
+            		if(singlePrecision)
+            			hFc[j][i] = (float)hValue(c, i, index);
+            		else
+            			hc[j][i] = hValue(c, i, index);
                 }
             	nc[i] = noise.get(c).scorePosition(hitPos[c][i], repIndices[c][i]);
             }
-            h[c] = hc;
             n[c] = nc;
             
-            rBind[c] = new double[numComp][numBases];
-    		rNoise[c]= new double[numBases];
-    		lastRBind[c] = new double[numComp][numBases];
+            if(singlePrecision)
+            	rBindF[c] = workspace.getFloats(WS_R_BIND_F, c, numComp, numBases);
+            else
+            	rBind[c] = workspace.getDoubles(WS_R_BIND, c, numComp, numBases);
+            for(int j=0;j<numComp;j++)
+            	clearResponsibilities(c, j, numBases);
+    		rNoise[c]= workspace.getDoubles(WS_R_NOISE, c, numBases);
         }
         //End of data structure initialization
         
@@ -242,7 +398,7 @@ public class BindingEM {
         //////////
         // Run EM steps
         //////////
-        EM_MAP(w, currRegionSeq, currRegionSeqRC);
+        EM_MAP(w);
 	
         //////////
         // re-assign EM result back to component objects
@@ -258,7 +414,7 @@ public class BindingEM {
 	            comp.setPosition(mu[c][j]);
 	            double sum_resp = 0.0;	
                 for(int i=0;i<hitNum[c];i++){
-                    sum_resp += hitCounts[c][i]*rBind[c][j][i];
+                    sum_resp += hitCounts[c][i]*resp(c, j, i);
                 }
 	            comp.setSumResponsibility(sum_resp);
 	            if(pi[c][j]>0.0){
@@ -272,8 +428,6 @@ public class BindingEM {
                 noise_resp += hitCounts[c][i]*rNoise[c][i];
 	    	noise.get(c).setSumResponsibility(noise_resp);
         }        
-        setComponentResponsibilityProfiles(activeComponents, signals, rBind);
-        
         return activeComponents;
     }//end of EMTrain method
 
@@ -282,29 +436,75 @@ public class BindingEM {
      * Core EM iterations with sparse prior (component elimination) & multi-condition positional priors.
      * Assumes H function, pi, and responsibilities have all been initialized
      */
-    private void EM_MAP (Region currRegion, char[] currRegionSeq, char[] currRegionSeqRC) {
+    private void EM_MAP (Region currRegion) {
         int numComp = numComponents;
-        double [][] totalResp = new double[numConditions][];
         int regStart = currRegion.getStart();
         
         //Variables for tracking mu maximization. Defined early to avoid memory assignment during main EM loop. 
-        double[][][] muSums = new double[numConditions][numComp][]; //Results of mu maximization summations for individual components across genome
-        int[][] muSumStarts = new int[numConditions][numComp]; //Start positions of muSum arrays (start of maximization window).
-        int[][] muSumWidths = new int[numConditions][numComp]; //Effective widths of muSum arrays (width of maximization window).
-        int[][] muSumMaxPos = new int[numConditions][numComp]; //Positions of maxima in mu maximization summations
+        //All working arrays used by the per-condition steps are taken from the workspace here, as the workspace is not thread-safe.
+        muSums = new double[numConditions][][]; //Results of mu maximization summations for individual components across genome
+        muSumStarts = new int[numConditions][]; //Start positions of muSum arrays (start of maximization window).
+        muSumWidths = new int[numConditions][]; //Effective widths of muSum arrays (width of maximization window).
+        muSumMaxPos = new int[numConditions][]; //Positions of maxima in mu maximization summations
+        muScores = new double[numConditions][]; //Scratch mu maximization summations (when not saved in muSums)
         int[] muJoinClosestComps = new int[numConditions]; //Indices of nearest components in other conditions
+        double[] joinScores = workspace.getDoubles(WS_JOIN_SCORES, 0, config.EM_MU_UPDATE_WIN*2); //Scores of shared positions across conditions
+        sortedCompPos = new int[numConditions][];
+        sortedComps = new int[numConditions][];
         boolean[] muJoinSharedBetter = new boolean[numConditions]; //Indicator that sharing components across conditions is better than not
-        int[][] newMu = new int[numConditions][numComponents];// mu update
-        
-        //Initialize responsibilities
+        newMu = new int[numConditions][];// mu update
+        sumR = new double[numConditions][]; //Responsibility sums for pi maximization
+        totalResp = new double[numConditions][]; //Per-read responsibility totals (E-step)
+        condMaxRBindDelta = new double[numConditions];
+        condMaxPiDelta = new double[numConditions];
+        condComponentEliminated = new boolean[numConditions];
+        condExtrapolations = new int[numConditions];
+        activeComps = new int[numConditions][];
+        numActiveComps = new int[numConditions];
         for(int c=0; c<numConditions; c++){
-    		int numBases = hitNum[c];
-    		totalResp[c] = new double[numBases];
-            for(int i=0;i<numBases;i++)
-                totalResp[c][i] = 0;
-    	}
+        	if(numConditions>1)
+        		muSums[c] = workspace.getDoubles(WS_MU_SUMS, c, numComp, config.EM_MU_UPDATE_WIN*2);
+        	muScores[c] = workspace.getDoubles(WS_MU_SCORES, c, config.EM_MU_UPDATE_WIN*2);
+        	sumR[c] = workspace.getDoubles(WS_SUM_R, c, numComp);
+        	totalResp[c] = workspace.getDoubles(WS_TOTAL_RESP, c, hitNum[c]);
+        	muSumStarts[c] = workspace.getInts(WS_MU_SUM_STARTS, c, numComp);
+        	muSumWidths[c] = workspace.getInts(WS_MU_SUM_WIDTHS, c, numComp);
+        	muSumMaxPos[c] = workspace.getInts(WS_MU_SUM_MAX_POS, c, numComp);
+        	newMu[c] = workspace.getInts(WS_NEW_MU, c, numComp);
+        	
+        	//Index the active components
+        	activeComps[c] = workspace.getInts(WS_ACTIVE_COMPS, c, numComp);
+        	for(int j=0;j<numComp;j++)
+        		if(pi[c][j]>0)
+        			activeComps[c][numActiveComps[c]++]=j;
+        }
+        
+        //Accelerated EM state
+        if(config.useAcceleratedEM()){
+        	squaremPi0 = new double[numConditions][];
+        	squaremPi1 = new double[numConditions][];
+        	squaremHistLen = new int[numConditions];
+        	squaremHistNumActive = new int[numConditions];
+        	squaremHistAlpha = new double[numConditions];
+        	squaremPiCand = new double[numConditions][];
+        	squaremTotalResp = new double[numConditions][];
+        	for(int c=0; c<numConditions; c++){
+        		squaremPi0[c] = workspace.getDoubles(WS_SQUAREM_PI0, c, numComp);
+        		squaremPi1[c] = workspace.getDoubles(WS_SQUAREM_PI1, c, numComp);
+        		squaremPiCand[c] = workspace.getDoubles(WS_SQUAREM_PI_CAND, c, numComp);
+        		squaremTotalResp[c] = workspace.getDoubles(WS_SQUAREM_TOTAL_RESP, c, hitNum[c]);
+        	}
+        }
+        numExtrapolations=0;
+        
+        //Process conditions in parallel if the window is costly enough (cost: reads x components per EM iteration)
+        double cost=0;
+        for(int c=0; c<numConditions; c++)
+        	cost += (double)hitNum[c]*numActiveComps[c];
+        parallelConditions = conditionPool!=null && numConditions>1 && config.getParallelEMCost()>=0 && cost>=config.getParallelEMCost();
+        
         //Alpha is annealed in. Alpha=0 during ML steps
-        double[] currAlpha = new double[numConditions];
+        currAlpha = new double[numConditions];
         for(int c=0; c<numConditions; c++)
         	currAlpha[c] = 0;
         
@@ -332,103 +532,42 @@ public class BindingEM {
         int t=0, iter=0;
         while(t<config.MAX_EM_ITER){ //System.out.println(t); 
         	
+    		maxRBindDelta=0; maxPiDelta=0; muChanged=false;
+    		for(int c=0; c<numConditions; c++){
+    			condMaxRBindDelta[c]=0; condMaxPiDelta[c]=0; condExtrapolations[c]=0;
+    		}
+    		
     		////////
     		//E-step
     		////////
-    		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];
-        		//Recompute h function, given binding component positions (n function is constant because noise model doesn't move)
-        		for(int i=0;i<numBases;i++)
-                	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-                		int index = mu[c][j]-regStart;
-                        h[c][j][i] = hAll[c][index][i];
-                	}}
-        		//Compute responsibilities
-    			for(int i=0;i<numBases;i++)
-                    totalResp[c][i] = 0;
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBind[c][j][i] = h[c][j][i]*pi[c][j];
-        				totalResp[c][i] +=rBind[c][j][i]; 
-        			}}
-        			rNoise[c][i] = n[c][i] * piNoise[c];
-        			totalResp[c][i] +=rNoise[c][i];
-        		}
-        		//Normalize responsibilities
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBind[c][j][i]/=totalResp[c][i];
-        			}}
-        			rNoise[c][i]/=totalResp[c][i];
-        		}
-    		}
+    		//Loops are arranged so that the innermost loop always runs over reads, i.e. over contiguous memory in the 
+    		//component-major h & rBind arrays. Per-read totals are accumulated in component order, as in a read-by-read loop.
+    		runConditionSteps(E_STEP, t, currRegion);
+    		for(int c=0; c<numConditions; c++)
+    			maxRBindDelta = Math.max(maxRBindDelta, condMaxRBindDelta[c]);
     		
         		
     		/////////////////////
     		//M-step: maximize mu (positions)
     		/////////////////////
-    		//Set up variable arrays if necessary (assign memory only once to non-zero components)
-			if(numConditions>1 && t==config.ALPHA_ANNEALING_ITER)
-				for(int c=0; c<numConditions; c++)
-					for(int j=0;j<numComp;j++)
-						if(pi[c][j]>0)
-							muSums[c][j] = new double[config.EM_MU_UPDATE_WIN*2];
     		//Maximize mu part 1: calculate maximization sums assuming no events shared across conditions
-    		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-    				int start=Math.max(mu[c][j]-config.EM_MU_UPDATE_WIN, regStart);
-        			int end = Math.min(currRegion.getEnd(), mu[c][j]+config.EM_MU_UPDATE_WIN);
-        			//Assign special variables
-        			if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER){
-        				muSumStarts[c][j] = start; muSumWidths[c][j] = end-start;
-        			}
-        			//Score the current window
-        			double currScore=0, maxScore=-Double.MAX_VALUE;
-        			int maxPos = 0;
-        			for(int x=start; x<end; x++){
-        				currScore=0;
-        				for(int i=0;i<numBases;i++){
-        					int dist = hitPlusStr[c][i] ? hitPos[c][i]-x: x-hitPos[c][i];
-        					//Permanganate ChIP-seq special case
-                            if(bindingModels[repIndices[c][i]] instanceof BindingModelPerBase && currRegionSeq!=null && currRegionSeqRC!=null){
-                            	int wantedPos =  hitPlusStr[c][i] ? hitPos[c][i]-1 : hitPos[c][i]+1;
-                    			if(wantedPos>=currRegion.getStart() && wantedPos<currRegion.getEnd()){
-                    				char base = hitPlusStr[c][i] ? currRegionSeq[wantedPos-currRegion.getStart()] : currRegionSeqRC[currRegion.getEnd()-wantedPos];
-                    				currScore+= ((BindingModelPerBase)(bindingModels[repIndices[c][i]])).logProbability(dist, base);
-                    			}else
-                    				currScore+=(rBind[c][j][i]*hitCounts[c][i]) * bindingModels[repIndices[c][i]].logProbability(dist);
-                            }else//Standard ChIP-seq / ChIP-exo
-                            	currScore+=(rBind[c][j][i]*hitCounts[c][i]) * bindingModels[repIndices[c][i]].logProbability(dist);
-        				}
-        				if(motifPrior!=null && config.useMotifPrior())
-        					currScore += motifPrior[c][x-regStart];
-        				
-        				if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER)   //Save the score
-            				muSums[c][j][x-start] = currScore;
-        				 
-        				if(currScore>maxScore){
-        					maxPos=x;
-        					maxScore=currScore;
-        				}
-        			}
-        			muSumMaxPos[c][j] = maxPos; 
-        		}}
-    		}
+    		//The sums are the cross-correlation of responsibility-weighted read counts with the log binding model. 
+    		//Every read contributes its background log-probability to every candidate position, so that term is 
+    		//summed once per component. The remaining (model-background) term is only scattered onto the 
+    		//candidate positions that are within the binding model range of each read. 
+    		runConditionSteps(MU_STEP, t, currRegion);
     		//Maximize mu part 2: evaluate whether joining nearby components across conditions is more favorable 
+    		boolean joinConditions = numConditions>1 && t>alphaAnnealingIter && config.useMultiConditionPosPrior();
+    		if(joinConditions)
+    			for(int c=0; c<numConditions; c++)
+    				sortActiveComponentsByPosition(c);
     		for(int c=0; c<numConditions; c++){
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-    				if(numConditions>1 && t>config.ALPHA_ANNEALING_ITER && config.useMultiConditionPosPrior()){
+    			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+    				if(joinConditions){
     					//mu2.a: find the closest components to j in each condition
-    					int closestComp=-1; int closestDist = Integer.MAX_VALUE;
     					for(int d=0; d<numConditions; d++){ if(d!=c){
-    						closestComp=-1; closestDist = Integer.MAX_VALUE;
-    		    			for(int k=0;k<numComp;k++){ if(pi[d][k]>0){
-    		    				int dist = Math.abs(mu[c][j]-mu[d][k]);
-    		    				if(dist<closestDist && dist<config.EM_MU_UPDATE_WIN){
-    		    					closestDist = dist; closestComp=k;
-    		    				}
-    		    			}
-    		    			muJoinClosestComps[d]=closestComp;
-    		    		}}}
+    		    			muJoinClosestComps[d]=closestActiveComponent(d, mu[c][j], config.EM_MU_UPDATE_WIN);
+    		    		}}
     					//mu2.b: evaluate each pair of conditions, asking if a shared event involving j and its closest component would be better than independent events
     					int maxMuStart=muSumStarts[c][j];
     					int minMuEnd=muSumStarts[c][j]+muSumWidths[c][j];
@@ -478,18 +617,26 @@ public class BindingEM {
 	    						}
 	    					}}
 	    					//Case 2: sum of shared component and non-shared
+	    					//(scores for all candidate positions are accumulated one condition at a time, in condition order)
 	    					double maxSomeSharedScore=-Double.MAX_VALUE; int maxSomeSharedPos = 0; double currScore=0;
+	    					for(int y = maxMuStart; y<minMuEnd; y++)
+	    						joinScores[y-maxMuStart]=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
+	    					for(int d=0; d<numConditions; d++){ if(d!=c){
+	    						int k = muJoinClosestComps[d];
+	    						if(k!=-1){
+	    							if(muJoinSharedBetter[d]){
+	    								double[] sumsdk = muSums[d][k]; int offset = maxMuStart-muSumStarts[d][k];
+	    								for(int y = maxMuStart; y<minMuEnd; y++)
+	    									joinScores[y-maxMuStart] += sumsdk[y-maxMuStart+offset] + probAgivenB;
+	    							}else{
+	    								double indep = muSums[d][k][muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
+	    								for(int y = maxMuStart; y<minMuEnd; y++)
+	    									joinScores[y-maxMuStart] += indep;
+	    							}
+	    						}
+	    					}}
 	    					for(int y = maxMuStart; y<minMuEnd; y++){ 
-	    						currScore=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
-	    						for(int d=0; d<numConditions; d++){ if(d!=c){
-		    						int k = muJoinClosestComps[d];
-		    						if(k!=-1){
-		    							if(muJoinSharedBetter[d])
-		    								currScore += muSums[d][k][y-muSumStarts[d][k]] + probAgivenB;
-		    							else
-		    								currScore +=muSums[d][k][muSumMaxPos[d][k]-muSumStarts[d][k]] + probAgivenNOTB;
-		    						}
-	    						}}
+	    						currScore = joinScores[y-maxMuStart];
 	    						if(currScore > maxSomeSharedScore){
 	        						maxSomeSharedScore = currScore; maxSomeSharedPos = y;
 	        					}
@@ -508,14 +655,18 @@ public class BindingEM {
 			    							minMuEnd = Math.min(minMuEnd, muSumStarts[d][k]+muSumWidths[d][k]);
 			    						}
 		    					}}
+		    					for(int y = maxMuStart; y<minMuEnd; y++)
+		    						joinScores[y-maxMuStart]=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
+		    					for(int d=0; d<numConditions; d++){ if(d!=c){
+		    						int k = muJoinClosestComps[d];
+		    						if(k!=-1){
+		    							double[] sumsdk = muSums[d][k]; int offset = maxMuStart-muSumStarts[d][k];
+		    							for(int y = maxMuStart; y<minMuEnd; y++)
+		    								joinScores[y-maxMuStart] += sumsdk[y-maxMuStart+offset] + probAgivenB;
+		    						}
+		    					}}
 		    					for(int y = maxMuStart; y<minMuEnd; y++){ 
-		    						currScore=muSums[c][j][y-muSumStarts[c][j]] + probAgivenB;
-		    						for(int d=0; d<numConditions; d++){ if(d!=c){
-			    						int k = muJoinClosestComps[d];
-			    						if(k!=-1){
-			    							currScore += muSums[d][k][y-muSumStarts[d][k]] + probAgivenB;
-			    						}
-		    						}}
+		    						currScore = joinScores[y-maxMuStart];
 		    						if(currScore > maxAllSharedScore){
 		        						maxAllSharedScore = currScore; maxAllSharedPos = y;
 		        					}
@@ -536,93 +687,54 @@ public class BindingEM {
     					//Ignore other conditions in first phases of training (until many components are eliminated)
     					newMu[c][j] = muSumMaxPos[c][j];
     				}
-    			}}
+    			}
     		}//Update mu values
     		for(int c=0; c<numConditions; c++){
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+    			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+    				muChanged = muChanged || mu[c][j]!=newMu[c][j];
     				mu[c][j] = newMu[c][j];
-    			}}
+    			}
     		}
     		//Maximize mu part 3: Resolve duplicate positions (combine & delete one copy)
     		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];	
         		HashMap<Integer, Integer> pos2index = new HashMap<Integer, Integer>(); //Position to array index map 
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+        		for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
         			if(pos2index.containsKey(mu[c][j])){ 
         				int orig = pos2index.get(mu[c][j]);
         				//Combine
         				pi[c][orig]+=pi[c][j];
-                       	for(int i=0; i<numBases;i++)
-                       		rBind[c][orig][i] += rBind[c][j][i];
+                       	if(singlePrecision){
+                       		for(int i=0; i<numBases;i++)
+                       			rBindF[c][orig][i] += rBindF[c][j][i];
+                       	}else{
+                       		for(int i=0; i<numBases;i++)
+                       			rBind[c][orig][i] += rBind[c][j][i];
+                       	}
                        	//Delete
                        	pi[c][j]=0.0;
-                       	for(int i=0; i<numBases;i++)
-                       		rBind[c][j][i] = 0;
+                       	clearResponsibilities(c, j, numBases);
         			}else{
         				pos2index.put(mu[c][j], j);
         			}
-        		}}
+        		}
+        		compactActiveComponents(c);
     		}
         		
     		/////////////////////
     		//M-step: maximize pi
     		/////////////////////
+    		runConditionSteps(PI_STEP, t, currRegion);
     		boolean componentEliminated=false;
-    		for(int c=0; c<numConditions; c++){ int numBases = hitNum[c];	
-        		//Maximize pi
-        		double[] sumR=new double[numComponents];
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        			for(int i=0;i<numBases;i++)
-        				sumR[j] += rBind[c][j][i]*hitCounts[c][i];
-                }}
-        		int minIndex=0; double minVal=Double.MAX_VALUE;
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        			if(sumR[j]<minVal){ minVal=sumR[j]; minIndex=j;}
-        		}}                
-                if(minVal>currAlpha[c]){
-                    // No component to be eliminated, update pi(j)
-                	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-                		pi[c][j]=Math.max(0, sumR[j]-currAlpha[c]); 
-                	}}
-                }else{
-                    // Eliminate worst binding component
-                    // Responsibilities will be redistributed in the E step
-                   	pi[c][minIndex]=0.0; sumR[minIndex]=0.0;
-                   	for(int i=0; i<numBases;i++)
-                   		rBind[c][minIndex][i] = 0;
-                   	//I discussed this bit with Chris, and we decided that the best thing to do is
-                   	//to re-estimate pi values for non-eliminated components using the current responsibility assignments
-                   	for(int j=0;j<numComp;j++){ 
-                   		if(j!=minIndex)
-                   			pi[c][j]=Math.max(0, sumR[j]); 
-                	}
-                   	componentEliminated=true;
-                }
-                //Normalize pi (accounting for piNoise)
-                double totalPi=0;
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-            		totalPi+=pi[c][j];
-            	}}
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-            		if(totalPi>0)
-            			pi[c][j]=pi[c][j]/(totalPi/(1-piNoise[c]));
-            	}}
-            	
-        		
-            	/////////////
-            	//Anneal alpha
-            	//////////////
-        		if (t >config.EM_ML_ITER && t <= config.ALPHA_ANNEALING_ITER)
-        			currAlpha[c] = alphaMax[c] * (t-config.EM_ML_ITER)/(config.ALPHA_ANNEALING_ITER-config.EM_ML_ITER);
-        		else if(t > config.ALPHA_ANNEALING_ITER)
-        			currAlpha[c] = alphaMax[c];
-        	}
+    		for(int c=0; c<numConditions; c++){
+    			componentEliminated = componentEliminated || condComponentEliminated[c];
+    			maxPiDelta = Math.max(maxPiDelta, condMaxPiDelta[c]);
+    			numExtrapolations += condExtrapolations[c];
+    		}
         	
         	//Non-zero components count
         	int nonZeroComps=0;
         	for(int c=0; c<numConditions; c++)
-        		for(int j=0;j<numComp;j++)
-        			if(pi[c][j]>0)
-        				nonZeroComps++;
+        		nonZeroComps+=numActiveComps[c];
         	
         	////////////
         	//Compute LL
@@ -636,9 +748,9 @@ public class BindingEM {
 	        		for(int i=0;i<numBases;i++){
 	        			// for each read, each event will give a conditional prob or bg prob
 	                    double j_sum=0;
-	        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0.0){
-	        				j_sum += Math.log(rBind[c][j][i])/config.LOG2;
-	                    }}
+	        			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+	        				j_sum += Math.log(resp(c, j, i))/config.LOG2;
+	                    }
 	        			j_sum += Math.log(rNoise[c][i])/config.LOG2;
 	                    
 	        			LL += j_sum*hitCounts[c][i];                        
@@ -649,9 +761,9 @@ public class BindingEM {
 	            for(int c=0; c<numConditions; c++){
 	            	//sum of pi
 	            	double sum_log_pi=0;
-	            	for(int j=0;j<numComp;j++){ if(pi[c][j]>0.0){
+	            	for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
 	            		sum_log_pi+=Math.log(pi[c][j])/config.LOG2;
-	            	}}
+	            	}
 	            	//Positional priors
 	            	double sum_pos_prior=0;
 	            	//TODO: how do we account for multi-condition "prior" here?
@@ -686,7 +798,7 @@ public class BindingEM {
             }
 
             //Is current state equivalent to the last?
-            if(((numConditions>1 && t>config.POSPRIOR_ITER) || (numConditions==1 && t>config.ALPHA_ANNEALING_ITER)) && 
+            if(((numConditions>1 && t>posPriorIter) || (numConditions==1 && t>alphaAnnealingIter)) && 
             		lastEquivToCurr())
             	stateEquivCount++;
             else
@@ -701,119 +813,598 @@ public class BindingEM {
             ////////////
           	//Check Stopping condition
           	////////////
-            if (nonZeroComps>0 && ((numConditions>1 && t<=config.POSPRIOR_ITER) || (numConditions==1 && t<=config.ALPHA_ANNEALING_ITER) || (config.CALC_LL && Math.abs(LAP-lastLAP)>config.EM_CONVERGENCE) || stateEquivCount<config.EM_STATE_EQUIV_ROUNDS)){
-                copyStateToLast();
+            if (nonZeroComps>0 && ((numConditions>1 && t<=posPriorIter) || (numConditions==1 && t<=alphaAnnealingIter) || (config.CALC_LL && Math.abs(LAP-lastLAP)>config.EM_CONVERGENCE) || stateEquivCount<config.EM_STATE_EQUIV_ROUNDS)){
+            	lastNumActive = nonZeroComps;
                 lastLAP = LAP;
                 continue;
             }else{
-            	copyStateToLast();
+            	lastNumActive = nonZeroComps;
             	lastLAP = LAP;
-            	//if(config.isVerbose())
-            		//System.err.println("\tRegTrain:"+trainingRound+"\t"+currRegion.getLocationString()+"\t"+currRegion.getWidth()+"\t"+t+"\t"+iter+"\t"+nonZeroComps);
             	break;
             }
         } //LOOP: Run EM while not converged
+        numIterations = t; numTotalIterations = iter;
+        //if(config.isVerbose())
+        	//System.err.println("\tRegTrain:"+trainingRound+"\t"+currRegion.getLocationString()+"\t"+currRegion.getWidth()+"\t"+t+"\t"+iter+"\t"+lastNumActive);
     }//end of EM_MAP method
+
+    /**
+     * E-step for one condition: recompute the H function given the component positions, and the responsibilities
+     * @param c : condition index
+     * @param regStart : start of the window
+     */
+    private void eStep(int c, int regStart){ int numBases = hitNum[c]; int[] act = activeComps[c]; int numAct = numActiveComps[c];
+    	double[] totalResp = this.totalResp[c];
+    	double[] nc = n[c], rNoisec = rNoise[c];
+    	//Recompute h function, given binding component positions (n function is constant because noise model doesn't move)
+    	//Reads take their background value unless their H band covers the component position.
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		int index = mu[c][j]-regStart;
+    		int[] order = hitBandOrder[c];
+    		int firstRead = firstBandOverlapping(c, index);
+    		if(singlePrecision){
+    			float[] hj = hF[c][j]; double[] hOutsidec = hOutside[c];
+    			for(int i=0;i<numBases;i++)
+    				hj[i] = (float)hOutsidec[i];
+    			for(int o=firstRead; o<numBases && hBandStart[c][order[o]]<=index; o++){
+    				int i = order[o];
+    				if(index<hBandEnd[c][i])
+    					hj[i] = hBandF[c][i*hBandMaxLength[c]+index-hBandStart[c][i]];
+    			}
+    		}else{
+    			double[] hj = h[c][j];
+    			System.arraycopy(hOutside[c], 0, hj, 0, numBases);
+    			for(int o=firstRead; o<numBases && hBandStart[c][order[o]]<=index; o++){
+    				int i = order[o];
+    				if(index<hBandEnd[c][i])
+    					hj[i] = hBand[c][i*hBandMaxLength[c]+index-hBandStart[c][i]];
+    			}
+    		}
+    	}
+    	//Compute normalized responsibilities, tracking the largest change for the convergence check
+    	//(in single precision mode, the per-read totals are still accumulated in double precision)
+    	Arrays.fill(totalResp, 0, numBases, 0);
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		double pij = pi[c][j];
+    		if(singlePrecision){
+    			float[] hj = hF[c][j];
+    			for(int i=0;i<numBases;i++)
+    				totalResp[i] += hj[i]*pij;
+    		}else{
+    			double[] hj = h[c][j];
+    			for(int i=0;i<numBases;i++)
+    				totalResp[i] += hj[i]*pij;
+    		}
+    	}
+    	double piNoisec = piNoise[c];
+    	for(int i=0;i<numBases;i++)
+    		totalResp[i] += nc[i] * piNoisec;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		double pij = pi[c][j];
+    		double maxDelta = condMaxRBindDelta[c];
+    		if(singlePrecision){
+    			float[] hj = hF[c][j], rj = rBindF[c][j];
+    			for(int i=0;i<numBases;i++){
+    				float r = (float)(hj[i]*pij/totalResp[i]);
+    				maxDelta = Math.max(maxDelta, Math.abs(r-rj[i]));
+    				rj[i] = r;
+    			}
+    		}else{
+    			double[] hj = h[c][j], rj = rBind[c][j];
+    			for(int i=0;i<numBases;i++){
+    				double r = hj[i]*pij/totalResp[i];
+    				maxDelta = Math.max(maxDelta, Math.abs(r-rj[i]));
+    				rj[i] = r;
+    			}
+    		}
+    		condMaxRBindDelta[c] = maxDelta;
+    	}
+    	for(int i=0;i<numBases;i++)
+    		rNoisec[i] = nc[i] * piNoisec/totalResp[i];
+    }
+
+    /**
+     * Maximize mu part 1 for one condition: calculate maximization sums assuming no events shared across conditions,
+     * and find the best position for each active component.
+     * @param c : condition index
+     * @param t : EM iteration
+     */
+    private void maximizeMuIndependent(int c, int t, Region currRegion){ int numBases = hitNum[c];
+    	int regStart = currRegion.getStart();
+    	for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+    		int start=Math.max(mu[c][j]-config.EM_MU_UPDATE_WIN, regStart);
+    		int end = Math.min(currRegion.getEnd(), mu[c][j]+config.EM_MU_UPDATE_WIN);
+    		int width = end-start;
+    		//Assign special variables
+    		if(numConditions>1 && t>alphaAnnealingIter){
+    			muSumStarts[c][j] = start; muSumWidths[c][j] = end-start;
+    		}
+    		double[] scores = (numConditions>1 && t>alphaAnnealingIter) ? muSums[c][j] : muScores[c];
+    	
+    		//Background term (standard ChIP-seq / ChIP-exo reads)
+    		double bgScore=0;
+    		if(singlePrecision){
+    			float[] rj = rBindF[c][j];
+    			for(int i=0;i<numBases;i++)
+    				if(!hitPerBase[c][i])
+    					bgScore+=(rj[i]*hitCounts[c][i]) * hLogOutside[c][i];
+    		}else{
+    			for(int i=0;i<numBases;i++)
+    				if(!hitPerBase[c][i])
+    					bgScore+=(rBind[c][j][i]*hitCounts[c][i]) * hLogOutside[c][i];
+    		}
+    		for(int x=0; x<width; x++)
+    			scores[x]=bgScore;
+    	
+    		//Model term: reads whose H bands overlap the maximization window
+    		int startIndex = start-regStart, endIndex = end-regStart;
+    		int[] order = hitBandOrder[c];
+    		for(int o=firstBandOverlapping(c, startIndex); o<numBases && hBandStart[c][order[o]]<endIndex; o++){
+    			int i = order[o];
+    			double weight = resp(c, j, i)*hitCounts[c][i];
+    			if(hitPerBase[c][i] || weight==0)
+    				continue;
+    			BindingModelTable table = modelTables[repIndices[c][i]];
+    			int strand = hitPlusStr[c][i] ? BindingModelTable.PLUS : BindingModelTable.MINUS;
+    			double[] logProbs = table.getLogProbs(strand);
+    			double logOutside = hLogOutside[c][i];
+    			int tableOffset = regStart-hitPos[c][i]-table.getOffsetStart(strand); //Table index = window offset + tableOffset
+    			int scoreOffset = regStart-start;
+    			int bStart = Math.max(startIndex, hBandStart[c][i]);
+    			int bEnd = Math.min(endIndex, hBandEnd[c][i]);
+    			for(int b=bStart; b<bEnd; b++)
+    				scores[b+scoreOffset] += weight * (logProbs[b+tableOffset] - logOutside);
+    		}
+    	
+    		//Permanganate ChIP-seq special case (base-specific model, scored at every candidate position)
+    		if(numPerBaseHits[c]>0){
+    			for(int i=0;i<numBases;i++){ if(hitPerBase[c][i]){
+    				BindingModelTable table = modelTables[repIndices[c][i]];
+    				int strand = hitPlusStr[c][i] ? BindingModelTable.PLUS : BindingModelTable.MINUS;
+    				int tableOffset = -hitPos[c][i]-table.getOffsetStart(strand); //Table index = x + tableOffset
+    				int len = table.getLength();
+    				int baseIndex = hitBase[c][i];
+    				if(baseIndex>=0){
+    					double[] logProbs = table.getBaseLogProbs(strand, baseIndex);
+    					double logOutside = table.getBaseLogBgProb(baseIndex);
+    					for(int x=start; x<end; x++){
+    						int k = x+tableOffset;
+    						scores[x-start]+= (k>=0 && k<len) ? logProbs[k] : logOutside;
+    					}
+    				}else if(baseIndex==BindingModelTable.NO_BASE){
+    					int wantedPos =  hitPlusStr[c][i] ? hitPos[c][i]-1 : hitPos[c][i]+1;
+    					char base = BindingModelTable.strandBase(regionSeq, hitPlusStr[c][i], wantedPos-currRegion.getStart());
+    					for(int x=start; x<end; x++)
+    						scores[x-start]+= table.logProbability(strand, hitPos[c][i], x, base);
+    				}else{
+    					double weight = resp(c, j, i)*hitCounts[c][i];
+    					double[] logProbs = table.getLogProbs(strand);
+    					double logOutside = table.getLogBgProb();
+    					for(int x=start; x<end; x++){
+    						int k = x+tableOffset;
+    						scores[x-start]+= weight * ((k>=0 && k<len) ? logProbs[k] : logOutside);
+    					}
+    				}
+    			}}
+    		}
+    	
+    		//Add the motif prior and find the maximum
+    		double currScore=0, maxScore=-Double.MAX_VALUE;
+    		int maxPos = 0;
+    		for(int x=start; x<end; x++){
+    			if(motifPrior!=null && config.useMotifPrior())
+    				scores[x-start] += motifPrior[c][x-regStart];
+    			currScore = scores[x-start];
+    			if(currScore>maxScore){
+    				maxPos=x;
+    				maxScore=currScore;
+    			}
+    		}
+    		muSumMaxPos[c][j] = maxPos; 
+    	}
+    }
+
+    /**
+     * Maximize pi for one condition (sparse prior component elimination), and anneal alpha
+     * @param c : condition index
+     * @param t : EM iteration
+     */
+    private void maximizePi(int c, int t){ int numBases = hitNum[c]; int[] act = activeComps[c]; int numAct = numActiveComps[c];
+    	double[] sumR = this.sumR[c];
+    	condComponentEliminated[c]=false;
+    	//Maximize pi (tracking the weakest & strongest components as the sums are completed)
+    	int minIndex=0, maxIndex=-1; double minVal=Double.MAX_VALUE, maxVal=-Double.MAX_VALUE;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		sumR[j]=0;
+    		if(singlePrecision){
+    			float[] rj = rBindF[c][j];
+    			for(int i=0;i<numBases;i++)
+    				sumR[j] += rj[i]*hitCounts[c][i];
+    		}else{
+    			for(int i=0;i<numBases;i++)
+    				sumR[j] += rBind[c][j][i]*hitCounts[c][i];
+    		}
+    		if(sumR[j]<minVal){ minVal=sumR[j]; minIndex=j;}
+    		if(sumR[j]>maxVal){ maxVal=sumR[j]; maxIndex=j;}
+    	}
+    	if(minVal>currAlpha[c]){
+    		// No component to be eliminated, update pi(j)
+    		for(int a=0;a<numAct;a++){ int j=act[a];
+    			sumR[j]=Math.max(0, sumR[j]-currAlpha[c]); 
+    		}
+    	}else{
+    		// Eliminate worst binding component
+    		// Responsibilities will be redistributed in the E step
+    		pi[c][minIndex]=0.0; sumR[minIndex]=0.0;
+    		clearResponsibilities(c, minIndex, numBases);
+    		//Batch elimination mode: also eliminate every other component whose responsibility sum is clearly below alpha.
+    		//Components close to the threshold are left to the one-at-a-time elimination (their sums may recover once  
+    		//responsibilities are redistributed), and the strongest component is never eliminated in a batch.
+    		if(config.useBatchElimination()){
+    			double batchThres = currAlpha[c]*config.EM_BATCH_ELIM_FRACTION;
+    			for(int a=0;a<numAct;a++){ int j=act[a];
+    				if(j!=minIndex && j!=maxIndex && sumR[j]<batchThres){
+    					pi[c][j]=0.0; sumR[j]=0.0;
+    					clearResponsibilities(c, j, numBases);
+    				}
+    			}
+    		}
+    		//I discussed this bit with Chris, and we decided that the best thing to do is
+    		//to re-estimate pi values for non-eliminated components using the current responsibility assignments
+    		for(int a=0;a<numAct;a++){ int j=act[a];
+    			if(j!=minIndex)
+    				sumR[j]=Math.max(0, sumR[j]); 
+    		}
+    		condComponentEliminated[c]=true;
+    	}
+    	//Normalize pi (accounting for piNoise), tracking the largest change for the convergence check
+    	double totalPi=0;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		if(sumR[j]>0)
+    			totalPi+=sumR[j];
+    	}
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		double newPi = (sumR[j]>0 && totalPi>0) ? sumR[j]/(totalPi/(1-piNoise[c])) : sumR[j];
+    		if(newPi>0)
+    			condMaxPiDelta[c] = Math.max(condMaxPiDelta[c], Math.abs(newPi-pi[c][j]));
+    		pi[c][j]=newPi;
+    	}
+    	compactActiveComponents(c);
+    	
+    	//Accelerated EM: extrapolate pi while the EM map (component positions, active components & alpha) is fixed
+    	if(config.useAcceleratedEM() && squaremStep(c, currAlpha[c], muChanged || condComponentEliminated[c]))
+    		condExtrapolations[c]++;
+    	
+        		
+    	/////////////
+    	//Anneal alpha
+    	//////////////
+    	if (t >emMLIter && t <= alphaAnnealingIter)
+    		currAlpha[c] = alphaMax[c] * (t-emMLIter)/(alphaAnnealingIter-emMLIter);
+    	else if(t > alphaAnnealingIter)
+    		currAlpha[c] = alphaMax[c];
+    }
+
+    /**
+     * Run one EM step for every condition. In costly windows (see MultiGPSConfig.getParallelEMCost()), the conditions 
+     * are processed in parallel on the shared pool. Conditions only share read-only state in these steps, and each 
+     * condition writes its own working arrays and convergence trackers, so the results don't depend on the order. 
+     * @param step : E_STEP, MU_STEP or PI_STEP
+     * @param t : EM iteration
+     */
+    private void runConditionSteps(int step, int t, Region currRegion){
+    	if(parallelConditions)
+    		conditionPool.invoke(new ConditionStep(step, -1, t, currRegion));
+    	else
+    		for(int c=0; c<numConditions; c++)
+    			runConditionStep(step, c, t, currRegion);
+    }
     
+    /**
+     * Run one EM step for one condition
+     */
+    private void runConditionStep(int step, int c, int t, Region currRegion){
+    	if(step==E_STEP)
+    		eStep(c, currRegion.getStart());
+    	else if(step==MU_STEP)
+    		maximizeMuIndependent(c, t, currRegion);
+    	else if(step==PI_STEP)
+    		maximizePi(c, t);
+    }
     
     /**
-     * Set responsibility profile for each component (for kernel update)
-     * @param bindComponents
-     * @param signals
-     * @param responsibilities
-     * @param c2b
+     * ConditionStep: an EM step for one condition (or, if the condition index is -1, for all conditions in parallel)
      */
-    private void setComponentResponsibilityProfiles(List<List<BindingComponent>> bindComponents, List<List<StrandedBaseCount>> signals, 
-            									double[][][] responsibilities) {
-		for(ExperimentCondition cond : manager.getConditions()){
-			int c = cond.getIndex();
-			
-			for(int j=0;j<bindComponents.get(c).size();j++){
-				BindingComponent comp = bindComponents.get(c).get(j);
-				int jr = comp.getIndex();
-			
-		    	for(ControlledExperiment rep : cond.getReplicates()){
-		    		List<StrandedBaseCount> bases = signals.get(rep.getIndex());
-		
-			    	double[][] rc = responsibilities[c];
-			   
-			    	int center = config.MAX_BINDINGMODEL_WIDTH/2;
-			   		// store binding profile (read responsibilities in c condition) of this component
-					double[] profile_plus = new double[config.MAX_BINDINGMODEL_WIDTH];
-					double[] profile_minus = new double[config.MAX_BINDINGMODEL_WIDTH];
-					for(int i=0;i<bases.size();i++){
-						StrandedBaseCount base = bases.get(i);
-						if (base.getStrand()=='+'){
-							int offset = base.getCoordinate()-comp.getPosition()+center;
-							if(offset>=0 && offset<config.MAX_BINDINGMODEL_WIDTH)
-								profile_plus[offset]=rc[jr][i]*base.getCount();
-						}else{
-							int offset = comp.getPosition()-base.getCoordinate()+center;
-							if(offset>=0 && offset<config.MAX_BINDINGMODEL_WIDTH)
-								profile_minus[offset]=rc[jr][i]*base.getCount();
-						}
-					}
-					comp.setReadProfile(rep.getIndex(), profile_plus,  '+');
-					comp.setReadProfile(rep.getIndex(), profile_minus, '-');
-		    	}
-			}
-		}
-	}//end of setComponentResponsibilities method
-	
+    class ConditionStep extends RecursiveAction{
+    	private static final long serialVersionUID = 1L;
+    	int step, c, t;
+    	Region currRegion;
+    	
+    	public ConditionStep(int step, int c, int t, Region currRegion){
+    		this.step = step;
+    		this.c = c;
+    		this.t = t;
+    		this.currRegion = currRegion;
+    	}
+    	
+    	protected void compute(){
+    		if(c==-1){
+    			ConditionStep[] steps = new ConditionStep[numConditions];
+    			for(int d=0; d<numConditions; d++)
+    				steps[d] = new ConditionStep(step, d, t, currRegion);
+    			invokeAll(steps);
+    		}else
+    			runConditionStep(step, c, t, currRegion);
+    	}
+    }
+    
     /**
-     * Copy current variables to last variables (lastRBind, lastPi, lastMu).
-     * Assumes visibility of both.
+     * Index the active components of a condition by position, so that the closest component to any position can be 
+     * found by binary search. Ties between components at the same position are ordered by component index.
+     * @param c : condition index
      */
-    private void copyStateToLast(){
-    	int numC = manager.getNumConditions();
-    	for(int c=0; c<numC; c++){
-    		for(int j=0; j<numComponents; j++){
-    			lastPi[c][j] = pi[c][j];
-    			lastMu[c][j] = mu[c][j];
-    			for(int x=0; x<rBind[c][j].length; x++){
-    				lastRBind[c][j][x] = rBind[c][j][x];
-    			}
+    private void sortActiveComponentsByPosition(int c){
+    	int numAct = numActiveComps[c];
+    	long[] keys = workspace.getLongs(WS_COMP_POS_KEYS, c, numAct);
+    	for(int a=0;a<numAct;a++){ int j=activeComps[c][a];
+    		keys[a] = (((long)mu[c][j])<<32) | j;
+    	}
+    	Arrays.sort(keys, 0, numAct);
+    	sortedCompPos[c] = workspace.getInts(WS_SORTED_COMP_POS, c, numAct);
+    	sortedComps[c] = workspace.getInts(WS_SORTED_COMPS, c, numAct);
+    	for(int a=0;a<numAct;a++){
+    		sortedCompPos[c][a] = (int)(keys[a]>>>32);
+    		sortedComps[c][a] = (int)(keys[a] & 0xFFFFFFFFL);
+    	}
+    }
+    
+    /**
+     * Find the active component of a condition that is closest to a position (using the index from sortActiveComponentsByPosition).
+     * Equally close components are resolved in favor of the lowest component index. 
+     * @param d : condition index
+     * @param pos : position
+     * @param maxDist : components must be closer than this distance
+     * @return component index, or -1 if there is no active component closer than maxDist
+     */
+    private int closestActiveComponent(int d, int pos, int maxDist){
+    	int numAct = numActiveComps[d];
+    	int[] sortedPos = sortedCompPos[d];
+    	//First component at or after pos
+    	int lo=0, hi=numAct;
+    	while(lo<hi){
+    		int mid = (lo+hi)>>>1;
+    		if(sortedPos[mid]<pos)
+    			lo=mid+1;
+    		else
+    			hi=mid;
+    	}
+    	int closestComp=-1, closestDist=maxDist;
+    	//Nearest position on the left (the lowest index among components at that position comes first in the sorted order)
+    	if(lo>0){
+    		int left=lo-1;
+    		while(left>0 && sortedPos[left-1]==sortedPos[lo-1])
+    			left--;
+    		int dist = pos-sortedPos[left];
+    		if(dist<closestDist){
+    			closestDist=dist; closestComp=sortedComps[d][left];
+    		}
+    	}
+    	//Nearest position on the right
+    	if(lo<numAct){
+    		int dist = sortedPos[lo]-pos;
+    		if(dist<closestDist || (dist==closestDist && closestComp!=-1 && sortedComps[d][lo]<closestComp)){
+    			closestDist=dist; closestComp=sortedComps[d][lo];
+    		}
+    	}
+    	return closestComp;
+    }
+    
+    /**
+     * SQUAREM extrapolation of the pi updates in one condition (Varadhan & Roland, 2008).
+     * The EM map here is the E-step followed by the pi M-step, which is only fixed while the component positions, 
+     * the set of active components and alpha stay constant; any change restarts the cycle from the current pi. 
+     * Given three successive pi updates pi0, pi1, pi2, pi is replaced by pi0 - 2*s*r + s^2*v, where r=pi1-pi0, 
+     * v=pi2-2*pi1+pi0, and s=-|r|/|v|. The step is shortened towards s=-1 (i.e. pi2) until every active component 
+     * keeps a positive pi, and the extrapolated pi is only accepted if it does not decrease the MAP objective.
+     * Components are still eliminated by the usual sparse prior M-step. 
+     * @param c : condition index
+     * @param alpha : current alpha
+     * @param mapChanged : true if component positions moved or a component was eliminated in this iteration
+     * @return true if an extrapolated pi was accepted
+     */
+    private boolean squaremStep(int c, double alpha, boolean mapChanged){
+    	int numAct = numActiveComps[c]; int[] act = activeComps[c];
+    	double[] pi0 = squaremPi0[c], pi1 = squaremPi1[c], pi2 = pi[c];
+    	if(mapChanged || squaremHistLen[c]==0 || numAct!=squaremHistNumActive[c] || alpha!=squaremHistAlpha[c]){
+    		//Start a new cycle from the current pi
+    		for(int a=0;a<numAct;a++){ int j=act[a]; pi0[j]=pi2[j];}
+    		squaremHistLen[c]=1; squaremHistNumActive[c]=numAct; squaremHistAlpha[c]=alpha;
+    		return false;
+    	}else if(squaremHistLen[c]==1){
+    		for(int a=0;a<numAct;a++){ int j=act[a]; pi1[j]=pi2[j];}
+    		squaremHistLen[c]=2;
+    		return false;
+    	}
+    	//Three updates are available: the next cycle starts from whichever pi is kept
+    	squaremHistLen[c]=0;
+    	if(numAct==0)
+    		return false;
+    	double rr=0, vv=0;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		double r = pi1[j]-pi0[j], v = pi2[j]-2*pi1[j]+pi0[j];
+    		rr+=r*r; vv+=v*v;
+    	}
+    	if(vv==0 || rr==0)
+    		return false;
+    	double step = -Math.sqrt(rr/vv);
+    	if(step>=-1)
+    		return false;
+    	
+    	//Extrapolate, shortening the step until all active components keep a positive pi
+    	double[] cand = squaremPiCand[c];
+    	boolean feasible=false;
+    	for(int tries=0; tries<10 && !feasible; tries++){
+    		feasible=true;
+    		for(int a=0;a<numAct && feasible;a++){ int j=act[a];
+    			double r = pi1[j]-pi0[j], v = pi2[j]-2*pi1[j]+pi0[j];
+    			cand[j] = pi0[j] - 2*step*r + step*step*v;
+    			if(cand[j]<=0)
+    				feasible=false;
+    		}
+    		if(!feasible)
+    			step = (step-1)/2;
+    	}
+    	if(!feasible)
+    		return false;
+    	double totalPi=0;
+    	for(int a=0;a<numAct;a++)
+    		totalPi+=cand[act[a]];
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		cand[j] = cand[j]/(totalPi/(1-piNoise[c]));
+    	}
+    	
+    	//Monotonicity safeguard
+    	if(piObjective(c, cand, alpha, squaremTotalResp[c]) < piObjective(c, pi2, alpha, totalResp[c]))
+    		return false;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		condMaxPiDelta[c] = Math.max(condMaxPiDelta[c], Math.abs(cand[j]-pi2[j]));
+    		pi2[j]=cand[j];
+    	}
+    	return true;
+    }
+    
+    /**
+     * MAP objective for the pi values of one condition, given the current H function:
+     * sum_i count_i * log(sum_j h_ij*pi_j + n_i*piNoise) - alpha * sum_j log(pi_j)
+     * @param c : condition index
+     * @param piVals : pi values, indexed by component
+     * @param alpha : sparse prior alpha
+     * @param totals : scratch array (length at least the number of reads)
+     */
+    private double piObjective(int c, double[] piVals, double alpha, double[] totals){
+    	int numBases = hitNum[c], numAct = numActiveComps[c]; int[] act = activeComps[c];
+    	Arrays.fill(totals, 0, numBases, 0);
+    	double logPrior=0;
+    	for(int a=0;a<numAct;a++){ int j=act[a];
+    		double pij = piVals[j];
+    		if(singlePrecision){
+    			float[] hj = hF[c][j];
+    			for(int i=0;i<numBases;i++)
+    				totals[i] += hj[i]*pij;
+    		}else{
+    			double[] hj = h[c][j];
+    			for(int i=0;i<numBases;i++)
+    				totals[i] += hj[i]*pij;
     		}
+    		logPrior += Math.log(pij);
     	}
+    	double LL=0;
+    	for(int i=0;i<numBases;i++)
+    		LL += hitCounts[c][i]*Math.log(totals[i] + n[c][i]*piNoise[c]);
+    	return LL - alpha*logPrior;
+    }
+    
+    /**
+     * Look up the H function value for a read at a window offset, using the banded H function.
+     * @param c : condition index
+     * @param i : read index
+     * @param index : offset of the component position from the start of the window
+     * @return binding component probability for the read
+     */
+    private double hValue(int c, int i, int index){
+    	if(index>=hBandStart[c][i] && index<hBandEnd[c][i])
+    		return singlePrecision ? hBandF[c][i*hBandMaxLength[c]+index-hBandStart[c][i]] : hBand[c][i*hBandMaxLength[c]+index-hBandStart[c][i]];
+    	return hOutside[c][i];
+    }
+    
+    /**
+     * Responsibility of a binding component for a read (from rBind, or rBindF in single precision mode)
+     * @param c : condition index
+     * @param j : component index
+     * @param i : read index
+     */
+    private double resp(int c, int j, int i){
+    	return singlePrecision ? rBindF[c][j][i] : rBind[c][j][i];
     }
     
     /**
-     * Compare last variables to current (lastRBind, lastPi, lastMu).
-     * Assumes visibility of both.
+     * Set the responsibilities of a binding component to zero
+     * @param c : condition index
+     * @param j : component index
+     * @param numBases : number of reads
+     */
+    private void clearResponsibilities(int c, int j, int numBases){
+    	if(singlePrecision)
+    		Arrays.fill(rBindF[c][j], 0, numBases, 0);
+    	else
+    		Arrays.fill(rBind[c][j], 0, numBases, 0);
+    }
+    
+    /**
+     * Find the first read (in H band start order) whose H band could overlap the given window offset.
+     * Bands are never longer than hBandMaxLength, so earlier reads can be skipped.
+     * @param c : condition index
+     * @param index : offset from the start of the window
+     * @return position in hitBandOrder
+     */
+    private int firstBandOverlapping(int c, int index){
+    	int lowestStart = index-hBandMaxLength[c]+1;
+    	int lo=0, hi=hitNum[c];
+    	while(lo<hi){
+    		int mid = (lo+hi)>>>1;
+    		if(hBandStart[c][hitBandOrder[c][mid]]<lowestStart)
+    			lo=mid+1;
+    		else
+    			hi=mid;
+    	}
+    	return lo;
+    }
+
+
+    /**
+     * Add the read profile of an active component (responsibility-weighted read counts by strand-specific distance 
+     * from the component) to an accumulator, for the binding model update.
+     * Must be called after train(), before the workspace is reused, as the responsibilities are read from the working arrays.
+     * @param comp : active component returned by train()
+     * @param c : condition index
+     * @param profiles
+     */
+    public void addComponentReadProfile(BindingComponent comp, int c, ReadProfileAccumulator profiles) {
+    	int jr = comp.getIndex();
+    	int pos = comp.getPosition();
+    	for(int i=0;i<hitNum[c];i++){
+    		int dist = hitPlusStr[c][i] ? hitPos[c][i]-pos : pos-hitPos[c][i];
+    		profiles.addRead(repIndices[c][i], hitPlusStr[c][i], dist, resp(c, jr, i)*hitCounts[c][i]);
+    	}
+    	profiles.addComponent(c);
+	}
+	
+    /**
+     * Remove components that are no longer active (pi=0) from the active component index of a condition.
+     * Preserves the ascending order of the remaining component indices.
+     * @param c : condition index
+     */
+    private void compactActiveComponents(int c){
+    	int numAct=0;
+    	for(int a=0;a<numActiveComps[c];a++){
+    		int j = activeComps[c][a];
+    		if(pi[c][j]>0)
+    			activeComps[c][numAct++]=j;
+    	}
+    	numActiveComps[c]=numAct;
+    }
+    
+    /**
+     * Compare the current state to the last, using the changes tracked while the current iteration's
+     * responsibilities, pi and mu values were written.
+     * Components never become active again, so equal active counts imply the same active components.
      * @return
      */
     private boolean lastEquivToCurr(){
-    	int numC = manager.getNumConditions();
-    	int currNZ=0, lastNZ=0;
+    	int currNZ=0;
     	for(int c=0; c<numConditions; c++)
-    		for(int j=0;j<numComponents;j++){
-    			if(pi[c][j]>0)
-    				currNZ++;
-    			if(lastPi[c][j]>0)
-    				lastNZ++;
-    		}
-    	boolean numCompEqual = currNZ==lastNZ;
-    	boolean compPosEqual=true;
-    	if(numCompEqual){
-    		for(int c=0; c<numC; c++)
-    			for(int j=0; j<mu[c].length; j++){if(pi[c][j]>0){
-    				compPosEqual = compPosEqual && (mu[c][j] == lastMu[c][j]);
-    			}}
-    	}else{
-    		compPosEqual=false;
-    	}
-    	boolean piBindEquivalent=true;
-    	for(int c=0; c<numC; c++)
-			for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
-				piBindEquivalent = piBindEquivalent && (Math.abs(pi[c][j]-lastPi[c][j])<config.EM_STATE_EQUIV_THRES);
-			}}
-    	boolean rBindEquivalent=true;
-    	for(int c=0; c<numC; c++)
-    		for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
-    			for(int x=0; x<rBind[c][j].length; x++){
-    				rBindEquivalent = rBindEquivalent && (Math.abs(rBind[c][j][x]-lastRBind[c][j][x])<config.EM_STATE_EQUIV_THRES);
-    			}
-			}}
-		return numCompEqual && compPosEqual && piBindEquivalent && rBindEquivalent;
+    		currNZ+=numActiveComps[c];
+    	return currNZ==lastNumActive && !muChanged && 
+    			maxPiDelta<config.EM_STATE_EQUIV_THRES && maxRBindDelta<config.EM_STATE_EQUIV_THRES;
     }
 }
@@ -1,14 +1,13 @@
 package org.seqcode.projects.multigps.mixturemodel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
-import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.events.BindingEvent;
 import org.seqcode.deepseq.events.BindingManager;
 import org.seqcode.deepseq.events.BindingModel;
-import org.seqcode.deepseq.events.BindingModelPerBase;
 import org.seqcode.deepseq.events.EventsConfig;
 import org.seqcode.deepseq.experiments.ControlledExperiment;
 import org.seqcode.deepseq.experiments.ExperimentCondition;
@@ -53,28 +52,46 @@ public class BindingMLAssignment {
 	protected boolean[][]  ctrlHitPlusStr;	// Hit positive strand boolean
 	protected int[]		   ctrlHitNum;		// Number of hits in each condition 
 	protected int[][]      ctrlRepIndices;  // Index of replicate for the hit
+	protected byte[][]     sigHitBase;		// Table row of the base preceding each signal hit (permanganate ChIP-seq only)
+	protected byte[][]     ctrlHitBase;	// Table row of the base preceding each control hit (permanganate ChIP-seq only)
+	protected byte[]       seqBases;		// Window sequence encoded as binding model table rows (permanganate ChIP-seq only)
 	protected double[][][] h; 			// H function (binding component probability per read)
 	protected double[][]   n; 			// N function (noise component probability per read)
 	protected double[][][] rBindSig;		// Binding component responsibilities (signal reads)
 	protected double[][]   rNoiseSig;		// Noise component responsibilities (signal reads)
 	protected double[][][] rBindCtrl;		// Binding component responsibilities (control reads)
 	protected double[][]   rNoiseCtrl;		// Noise component responsibilities (control reads)
+	protected boolean      singlePrecision;	// H function & responsibilities are stored in single precision (hF, rBindSigF & rBindCtrlF replace h, rBindSig & rBindCtrl)
+	protected float[][][]  hF; 			// H function (single precision mode)
+	protected float[][][]  rBindSigF;		// Binding component responsibilities (signal reads, single precision mode)
+	protected float[][][]  rBindCtrlF;		// Binding component responsibilities (control reads, single precision mode)
 	protected double[][]   pi;			// pi : emission probabilities for binding components
 	protected double[]     piNoise;		// pi : emission probabilities for noise components (fixed)
 	protected int[][]      mu;			// mu : positions of the binding components
+	protected int[][]      activeComps;	// Indices of active (pi>0) binding components in each condition (ascending order)
+	protected int[]        numActiveComps;	// Number of active binding components in each condition
 	protected double[][]   compLL;		//Log-likelihood for each component in each condition
-	protected double[][][] lastRBind;	//Last responsibilities (monitor convergence)
-	protected double[][]   lastPi;		//Last Pi (monitor convergence)
-	protected int[][]      lastMu;		//Last positions (monitor convergence)
+	protected int          lastNumActive;	//Last number of active components (monitor convergence)
+	protected double       maxRBindDelta;	//Largest responsibility change in the current iteration (monitor convergence)
+	protected double       maxPiDelta;	//Largest pi change in the current iteration (monitor convergence)
 	protected double[][]   tmp_pi;			// pi used in ML calc
 	protected double[][][] tmp_h;			// h used in ML calc
 	protected double[][][] tmp_rBindSig;	// rBindSig used in ML calc
 	protected double[][]   tmp_rNoiseSig;	// rNoiseSig used in ML calc
 	protected double[]	   tmp_piNoise; 	// piNoise used in ML calc
 	protected BindingModel[] bindingModels; //Array of binding models for convenience
+	protected BindingModelTable[] modelTables; //Binding models compiled into lookup tables, indexed by replicate
 	protected double[]	   sigRepHitCountTotals; //Hit count totals counted by replicate (for convenience)
 	protected double[]	uniformRepHitCountTotals; //Hit count totals by replicate if signal read counts were distributed uniformly (used only if there is no control) 
 	protected double numPotentialRegions;
+	protected EMWorkspace workspace;	//Reusable working arrays
+	//Workspace slots
+	private static final int WS_SIG_HIT_COUNTS=0, WS_SIG_HIT_POS=1, WS_SIG_HIT_PLUS_STR=2, WS_SIG_REP_INDICES=3, 
+			WS_CTRL_HIT_COUNTS=4, WS_CTRL_HIT_POS=5, WS_CTRL_HIT_PLUS_STR=6, WS_CTRL_REP_INDICES=7, 
+			WS_H=8, WS_TMP_H=9, WS_N=10, WS_R_BIND_SIG=11, WS_R_NOISE_SIG=12, WS_TMP_R_BIND_SIG=13, WS_TMP_R_NOISE_SIG=14,
+			WS_R_BIND_CTRL=15, WS_R_NOISE_CTRL=16, WS_H_CTRL=17, WS_N_CTRL=18, WS_TOTAL_RESP_SIG=19, WS_TOTAL_RESP_CTRL=20,
+			WS_PI=21, WS_TMP_PI=22, WS_MU=23, WS_COMP_LL=24, WS_ACTIVE_COMPS=25, WS_SUM_R=26, WS_TMP_SUM_R=27,
+			WS_H_F=28, WS_R_BIND_SIG_F=29, WS_R_BIND_CTRL_F=30, WS_H_CTRL_F=31, WS_SEQ_BASES=32, WS_SIG_HIT_BASE=33, WS_CTRL_HIT_BASE=34;
 	
 	/**
 	 * Constructor
@@ -82,6 +99,19 @@ public class BindingMLAssignment {
 	 * @param eMan
 	 */
 	public BindingMLAssignment(ExptConfig econ, EventsConfig evcon, MultiGPSConfig c, ExperimentManager eMan, BindingManager bindMan, HashMap<ExperimentCondition, BackgroundCollection> condBacks, int numPotReg){
+		this(econ, evcon, c, eMan, bindMan, condBacks, numPotReg, new EMWorkspace(eMan.getNumConditions()), BindingModelTable.compile(eMan, bindMan));
+	}
+	
+	/**
+	 * Constructor
+	 * @param c
+	 * @param eMan
+	 * @param ws : working arrays, reused across calls to assign() (one workspace per thread)
+	 * @param tables : binding model lookup tables for the current training round, indexed by replicate
+	 */
+	public BindingMLAssignment(ExptConfig econ, EventsConfig evcon, MultiGPSConfig c, ExperimentManager eMan, BindingManager bindMan, HashMap<ExperimentCondition, BackgroundCollection> condBacks, int numPotReg, EMWorkspace ws, BindingModelTable[] tables){
+		workspace = ws;
+		modelTables = tables;
 		config=c;
 		evconfig = evcon;
 		econfig = econ;
@@ -101,8 +131,8 @@ public class BindingMLAssignment {
      *
      * Almost purely matrix/array operations.
      */
-    public List<BindingEvent>  assign(List<List<StrandedBaseCount>> signals,
-    								  List<List<StrandedBaseCount>> controls,
+    public List<BindingEvent>  assign(WindowReads signals,
+    								  WindowReads controls,
     								  Region w, 
     								  List<NoiseComponent> noise,
     								  List<BindingComponent> comps, 
@@ -111,7 +141,7 @@ public class BindingMLAssignment {
     	components = comps;
         this.noise = noise;
         numComponents = numComp;
-        //Matrix initializations
+        //Matrix initializations (per-read and per-component arrays are taken from the workspace)
         sigHitCounts= new double[numConditions][];	// Hit weights
     	sigHitPos= new int[numConditions][];			// Hit positions
     	sigHitPlusStr= new boolean[numConditions][];	// Hit positive strand boolean
@@ -122,35 +152,37 @@ public class BindingMLAssignment {
     	ctrlHitPlusStr= new boolean[numConditions][];	// Hit positive strand boolean
     	ctrlHitNum = new int[numConditions];			// Number of hits in each condition
     	ctrlRepIndices= new int[numConditions][];	    // Index of replicate for the hit
+    	sigHitBase= new byte[numConditions][];		// Preceding bases of signal hits
+    	ctrlHitBase= new byte[numConditions][];		// Preceding bases of control hits
     	h= new double[numConditions][][]; 			// H function (binding component probability per read)
     	n= new double[numConditions][]; 			// N function (noise component probability per read)
     	rBindSig= new double[numConditions][][];		// Binding component responsibilities (signal reads)
     	rNoiseSig= new double[numConditions][];		// Noise component responsibilities (signal reads)
     	rBindCtrl= new double[numConditions][][];		// Binding component responsibilities (control reads)
     	rNoiseCtrl= new double[numConditions][];		// Noise component responsibilities (control reads)
-    	pi = new double[numConditions][numComponents];	// pi : emission probabilities for binding components
+    	singlePrecision = config.useSinglePrecision();
+    	hF= new float[numConditions][][]; 			// H function (single precision mode)
+    	rBindSigF= new float[numConditions][][];		// Binding component responsibilities (signal reads, single precision mode)
+    	rBindCtrlF= new float[numConditions][][];		// Binding component responsibilities (control reads, single precision mode)
+    	pi = new double[numConditions][];			// pi : emission probabilities for binding components
     	piNoise = new double[numConditions];		// pi : emission probabilities for noise components (fixed)
-    	mu = new int[numConditions][numComponents];// mu : positions of the binding components
-    	compLL = new double [numConditions][numComponents];		//Log-likelihood for each component in each condition
+    	mu = new int[numConditions][];				// mu : positions of the binding components
+    	compLL = new double [numConditions][];		//Log-likelihood for each component in each condition
         bindingModels = new BindingModel[manager.getReplicates().size()]; //Array of bindingModels for convenience
         sigRepHitCountTotals = new double[manager.getReplicates().size()]; //Hit count totals counted by replicate (for convenience)
         uniformRepHitCountTotals = new double[manager.getReplicates().size()]; //Hit count totals by replicate if reads were distributed uniformly 
-        //Monitor state convergence using the following last variables
-        lastRBind = new double[numConditions][][];
-        lastPi = new double[numConditions][numComponents];
-        lastMu = new int[numConditions][numComponents];
         //Temporary variables
-        tmp_pi = new double[numConditions][numComponents];			// pi used in ML calc
+        tmp_pi = new double[numConditions][];			// pi used in ML calc
     	tmp_rBindSig= new double[numConditions][][];	// rBindSig used in ML calc
     	tmp_rNoiseSig= new double[numConditions][];	// rNoiseSig used in ML calc
     	tmp_piNoise = new double[numConditions]; 	// piNoise used in ML calc
     	tmp_h= new double[numConditions][][]; 			// H function used in ML calc
         
-    	//Sequence is required if one of the experiments is permanganate ChIP-seq
-        char[] currRegionSeqRC=null; 
+    	//Sequence is required if one of the experiments is permanganate ChIP-seq (encoded once for the window)
+        seqBases = null;
         if(currRegionSeq!=null){
-	        currRegionSeqRC = currRegionSeq.clone();
-			SequenceUtils.reverseComplement(currRegionSeqRC);
+        	seqBases = workspace.getBytes(WS_SEQ_BASES, 0, currRegionSeq.length);
+        	BindingModelTable.encodeBases(currRegionSeq, seqBases);
         }
         
         //Initializing data structures
@@ -162,64 +194,53 @@ public class BindingMLAssignment {
         		bindingModels[rep.getIndex()] = bindingManager.getBindingModel(rep);
         	
         	//Load Reads (merge from all replicates)
-        	List<StrandedBaseCount> sigBases = new ArrayList<StrandedBaseCount>();
-        	List<StrandedBaseCount> ctrlBases = new ArrayList<StrandedBaseCount>();
+        	sigHitNum[c] = 0;
+        	ctrlHitNum[c] = 0;
         	for(ControlledExperiment rep : cond.getReplicates()){
-        		sigBases.addAll(signals.get(rep.getIndex()));
-        		if(controls.get(rep.getIndex())!=null)
-        			ctrlBases.addAll(controls.get(rep.getIndex()));
+        		sigHitNum[c]+=signals.getNumReads(rep.getIndex());
+        		ctrlHitNum[c]+=controls.getNumReads(rep.getIndex());
         	}
-        	sigHitNum[c] = sigBases.size();
-        	ctrlHitNum[c] = ctrlBases.size();
         	
         	//Count total weights for convenience
         	for(ControlledExperiment rep : cond.getReplicates()){
-        		sigRepHitCountTotals[rep.getIndex()]=0;
-        		for(StrandedBaseCount s : signals.get(rep.getIndex()))
-        			sigRepHitCountTotals[rep.getIndex()]+=s.getCount();
+        		sigRepHitCountTotals[rep.getIndex()]=signals.getCountTotal(rep.getIndex());
         		uniformRepHitCountTotals[rep.getIndex()] = (((rep.getSignal().getHitCount()*(1-rep.getSignalVsNoiseFraction()))/econfig.getMappableGenomeLength())*(double)w.getWidth())/rep.getControlScaling(); //Normalizing by control scaling is a hack - usually control scaling will be 1 when the replicate has no control... however, it is not 1 for SES. 
         	}
         	
-        	//Load replicate index for each read
-        	sigRepIndices[c] = new int[sigHitNum[c]];
-        	ctrlRepIndices[c] = ctrlHitNum[c]==0 ? null : new int[ctrlHitNum[c]];
-        	int ys=0, yc=0, z=0;
-        	for(ControlledExperiment rep : cond.getReplicates()){
-        		z=0;
-        		while(z<signals.get(rep.getIndex()).size()){
-        			sigRepIndices[c][ys] = rep.getIndex();
-        			z++; ys++;
-        		}
-        		z=0;
-        		while(z<controls.get(rep.getIndex()).size()){
-        			ctrlRepIndices[c][yc] = rep.getIndex();
-        			z++; yc++;
-        		}
-        	}
-            
-            //Load signal read info
-            sigHitCounts[c]= new double[sigHitNum[c]];
-            sigHitPos[c]= new int[sigHitNum[c]];
-            sigHitPlusStr[c]= new boolean[sigHitNum[c]];
-            for(int i=0;i<sigHitNum[c];i++){
-            	sigHitPos[c][i] = sigBases.get(i).getCoordinate();
-            	sigHitPlusStr[c][i] = sigBases.get(i).getStrand() == '+';
-            	sigHitCounts[c][i]=sigBases.get(i).getCount();
-            }
+            //Load signal read info & replicate index for each read
+        	sigRepIndices[c] = workspace.getInts(WS_SIG_REP_INDICES, c, sigHitNum[c]);
+            sigHitCounts[c]= workspace.getDoubles(WS_SIG_HIT_COUNTS, c, sigHitNum[c]);
+            sigHitPos[c]= workspace.getInts(WS_SIG_HIT_POS, c, sigHitNum[c]);
+            sigHitPlusStr[c]= workspace.getBooleans(WS_SIG_HIT_PLUS_STR, c, sigHitNum[c]);
+            sigHitBase[c]= seqBases==null ? null : workspace.getBytes(WS_SIG_HIT_BASE, c, sigHitNum[c]);
+            int ys=0;
+            for(ControlledExperiment rep : cond.getReplicates())
+            	ys = signals.copy(rep.getIndex(), sigHitPos[c], sigHitPlusStr[c], sigHitCounts[c], sigRepIndices[c], ys);
+            if(seqBases!=null)
+            	for(int i=0;i<sigHitNum[c];i++)
+            		sigHitBase[c][i] = (byte)BindingModelTable.precedingBase(seqBases, w.getStart(), w.getWidth(), sigHitPlusStr[c][i], sigHitPos[c][i]);
             
-            //Load control read info
+            //Load control read info & replicate index for each read
+        	ctrlRepIndices[c] = null;
             if(ctrlHitNum[c]>0){
-	            ctrlHitCounts[c]= new double[ctrlHitNum[c]];
-	            ctrlHitPos[c]= new int[ctrlHitNum[c]];
-	            ctrlHitPlusStr[c]= new boolean[ctrlHitNum[c]];
-	            for(int i=0;i<ctrlHitNum[c];i++){
-	            	ctrlHitPos[c][i] = ctrlBases.get(i).getCoordinate();
-	            	ctrlHitPlusStr[c][i] = ctrlBases.get(i).getStrand() == '+';
-	            	ctrlHitCounts[c][i]=ctrlBases.get(i).getCount();
-	            }
+            	ctrlRepIndices[c] = workspace.getInts(WS_CTRL_REP_INDICES, c, ctrlHitNum[c]);
+	            ctrlHitCounts[c]= workspace.getDoubles(WS_CTRL_HIT_COUNTS, c, ctrlHitNum[c]);
+	            ctrlHitPos[c]= workspace.getInts(WS_CTRL_HIT_POS, c, ctrlHitNum[c]);
+	            ctrlHitPlusStr[c]= workspace.getBooleans(WS_CTRL_HIT_PLUS_STR, c, ctrlHitNum[c]);
+	            ctrlHitBase[c]= seqBases==null ? null : workspace.getBytes(WS_CTRL_HIT_BASE, c, ctrlHitNum[c]);
+	            int yc=0;
+	            for(ControlledExperiment rep : cond.getReplicates())
+	            	yc = controls.copy(rep.getIndex(), ctrlHitPos[c], ctrlHitPlusStr[c], ctrlHitCounts[c], ctrlRepIndices[c], yc);
+	            if(seqBases!=null)
+	            	for(int i=0;i<ctrlHitNum[c];i++)
+	            		ctrlHitBase[c][i] = (byte)BindingModelTable.precedingBase(seqBases, w.getStart(), w.getWidth(), ctrlHitPlusStr[c][i], ctrlHitPos[c][i]);
             }
 
             //Load pi for binding components
+            pi[c] = workspace.getDoubles(WS_PI, c, numComp);
+            tmp_pi[c] = workspace.getDoubles(WS_TMP_PI, c, numComp);
+            compLL[c] = workspace.getDoubles(WS_COMP_LL, c, numComp);
+            Arrays.fill(compLL[c], 0, numComp, 0);
             for(int j=0;j<numComp;j++){
                 BindingComponent comp = components.get(j);
                 pi[c][j]= comp.getPi(); 
@@ -228,51 +249,48 @@ public class BindingMLAssignment {
             piNoise[c]=noise.get(c).getPi();
             
             //Load binding component positions
+            mu[c] = workspace.getInts(WS_MU, c, numComp);
             for(int j=0;j<numComp;j++)
             	mu[c][j] = components.get(j).getPosition();
     		
             //Initialize responsibility functions
-            double[][] hc= new double[numComp][sigHitNum[c]];
-            double[][] thc= new double[numComp][sigHitNum[c]];
-            double[] nc = new double[sigHitNum[c]];
+            //(the alternate model arrays used for event log-likelihoods stay in double precision)
+            double[][] hc= singlePrecision ? null : workspace.getDoubles(WS_H, c, numComp, sigHitNum[c]);
+            float[][] hFc= singlePrecision ? workspace.getFloats(WS_H_F, c, numComp, sigHitNum[c]) : null;
+            double[][] thc= workspace.getDoubles(WS_TMP_H, c, numComp, sigHitNum[c]);
+            double[] nc = workspace.getDoubles(WS_N, c, sigHitNum[c]);
             for(int i=0;i<sigHitNum[c];i++){
-            	for(int j=0;j<numComp;j++){
-            		int dist = sigHitPlusStr[c][i] ? sigHitPos[c][i]-mu[c][j]: mu[c][j]-sigHitPos[c][i];
-            		
-            		//Permanganate ChIP-seq special case
-                    if(bindingModels[sigRepIndices[c][i]] instanceof BindingModelPerBase && currRegionSeq!=null && currRegionSeqRC!=null){
-                    	int wantedPos =  sigHitPlusStr[c][i] ? sigHitPos[c][i]-1 : sigHitPos[c][i]+1;
-            			if(wantedPos>=w.getStart() && wantedPos<w.getEnd()){
-            				char base = sigHitPlusStr[c][i] ? currRegionSeq[wantedPos-w.getStart()] : currRegionSeqRC[w.getEnd()-wantedPos];
-            				hc[j][i] = ((BindingModelPerBase)(bindingModels[sigRepIndices[c][i]])).probability(dist, base);
-            				thc[j][i] = ((BindingModelPerBase)(bindingModels[sigRepIndices[c][i]])).probability(dist, base);
-            			}else{
-            				hc[j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-                        	thc[j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-            			}
-                    }else{//Standard ChIP-seq / ChIP-exo
-                    	hc[j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-                    	thc[j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-                    }
-                }
+            	fillReadH(hc, hFc, i, null, numComp, mu[c], modelTables[sigRepIndices[c][i]], sigHitPlusStr[c][i], sigHitPos[c][i], hitBase(sigHitBase, c, i), w, currRegionSeq);
+            	for(int j=0;j<numComp;j++)
+            		thc[j][i] = singlePrecision ? hFc[j][i] : hc[j][i];
             	nc[i] = noise.get(c).scorePosition(sigHitPos[c][i],sigRepIndices[c][i]);
             }
             h[c] = hc;
+            hF[c] = hFc;
             n[c] = nc;
             tmp_h[c] = thc;
             
-            rBindSig[c]  = new double[numComp][sigHitNum[c]];
-    		rNoiseSig[c] = new double[sigHitNum[c]];
-    		lastRBind[c] = new double[numComp][sigHitNum[c]];
-    		tmp_rBindSig[c]  = new double[numComp][sigHitNum[c]];
-    		tmp_rNoiseSig[c] = new double[sigHitNum[c]];
+            if(singlePrecision)
+            	rBindSigF[c] = workspace.getFloats(WS_R_BIND_SIG_F, c, numComp, sigHitNum[c]);
+            else
+            	rBindSig[c]  = workspace.getDoubles(WS_R_BIND_SIG, c, numComp, sigHitNum[c]);
+    		rNoiseSig[c] = workspace.getDoubles(WS_R_NOISE_SIG, c, sigHitNum[c]);
+    		tmp_rBindSig[c]  = workspace.getDoubles(WS_TMP_R_BIND_SIG, c, numComp, sigHitNum[c]);
+    		tmp_rNoiseSig[c] = workspace.getDoubles(WS_TMP_R_NOISE_SIG, c, sigHitNum[c]);
+    		for(int j=0;j<numComp;j++){
+    			if(singlePrecision)
+    				Arrays.fill(rBindSigF[c][j], 0, sigHitNum[c], 0);
+    			else
+    				Arrays.fill(rBindSig[c][j], 0, sigHitNum[c], 0);
+    			Arrays.fill(tmp_rBindSig[c][j], 0, sigHitNum[c], 0);
+    		}
         }//End of data structure initialization
         
         
         //////////
         // Run ML steps
         //////////
-        ML(w, currRegionSeq, currRegionSeqRC);
+        ML(w, currRegionSeq);
         
         
         //////////
@@ -294,7 +312,7 @@ public class BindingMLAssignment {
 	    				double scount=0;
 			            for(int i=0;i<sigHitNum[c];i++)
 			            	if(sigRepIndices[c][i]==r)
-			            		scount += sigHitCounts[c][i]*rBindSig[c][j][i];
+			            		scount += sigHitCounts[c][i]*sigResp(c, j, i);
 			            repSigResp+=scount;
 			            condSigResp+=scount;
 			            
@@ -302,7 +320,7 @@ public class BindingMLAssignment {
 			            if(rep.hasControl()){
 			            	for(int i=0;i<ctrlHitNum[c];i++)
 			            		if(ctrlRepIndices[c][i]==r)
-			            			ccount += ctrlHitCounts[c][i]*rBindCtrl[c][j][i];
+			            			ccount += ctrlHitCounts[c][i]*ctrlResp(c, j, i);
 			            	repCtrlResp+=ccount;
 				            if(!controlsSeen.contains(rep.getControl()))
 				            	condCtrlResp+=ccount;
@@ -332,15 +350,15 @@ public class BindingMLAssignment {
     						//Calculate tag counts by base
     			            for(int i=0;i<sigHitNum[c];i++)
     			            	if(sigRepIndices[c][i]==r){
-    			            		if(sigHitCounts[c][i]>0 && rBindSig[c][j][i]>0){
+    			            		if(sigHitCounts[c][i]>0 && sigResp(c, j, i)>0){
     			            			int dist = Math.abs(sigHitPos[c][i]-mu[c][j]);
     			            			int wantedPos =  sigHitPlusStr[c][i] ? sigHitPos[c][i]-1 : sigHitPos[c][i]+1;
     			            			if(wantedPos>=w.getStart() && wantedPos<w.getEnd()){
-    			            				char base = sigHitPlusStr[c][i] ? currRegionSeq[wantedPos-w.getStart()] : currRegionSeqRC[w.getEnd()-wantedPos];
+    			            				char base = BindingModelTable.strandBase(currRegionSeq, sigHitPlusStr[c][i], wantedPos-w.getStart());
     			            				if(SequenceUtils.char2int(base)!=-1){
-	    			            				eventWinTags[SequenceUtils.char2int(base)]+=sigHitCounts[c][i]*rBindSig[c][j][i];
+	    			            				eventWinTags[SequenceUtils.char2int(base)]+=sigHitCounts[c][i]*sigResp(c, j, i);
 	    			            				if(dist<config.PCSBUBBLESIZE/2)
-	    			            					bubbleTags[SequenceUtils.char2int(base)]+=sigHitCounts[c][i]*rBindSig[c][j][i];
+	    			            					bubbleTags[SequenceUtils.char2int(base)]+=sigHitCounts[c][i]*sigResp(c, j, i);
     			            				}
     			            			}
     			            		}
@@ -389,113 +407,138 @@ public class BindingMLAssignment {
      * Core EM iterations with sparse prior (component elimination) & multi-condition positional priors.
      * Assumes H function, pi, and responsibilities have all been initialized
      */
-    private void ML (Region currRegion, char[] currRegionSeq, char[] currRegionSeqRC) {
+    private void ML (Region currRegion, char[] currRegionSeq) {
         int numComp = numComponents;
         double [][] totalRespSig = new double[numConditions][];
         double [][] totalRespCtrl = new double[numConditions][];
         
         //Initialize responsibilities
         for(int c=0; c<numConditions; c++){
-    		totalRespSig[c] = new double[sigHitNum[c]];
-    		for(int i=0;i<sigHitNum[c];i++)
-                totalRespSig[c][i] = 0;
+    		totalRespSig[c] = workspace.getDoubles(WS_TOTAL_RESP_SIG, c, sigHitNum[c]);
     		if(ctrlHitNum[c]>0){
-	    		rBindCtrl[c] = new double[numComp][ctrlHitNum[c]];
-	    		rNoiseCtrl[c]= new double[ctrlHitNum[c]];
-	    		totalRespCtrl[c] = new double[ctrlHitNum[c]];
+	    		if(singlePrecision)
+	    			rBindCtrlF[c] = workspace.getFloats(WS_R_BIND_CTRL_F, c, numComp, ctrlHitNum[c]);
+	    		else
+	    			rBindCtrl[c] = workspace.getDoubles(WS_R_BIND_CTRL, c, numComp, ctrlHitNum[c]);
+	    		rNoiseCtrl[c]= workspace.getDoubles(WS_R_NOISE_CTRL, c, ctrlHitNum[c]);
+	    		totalRespCtrl[c] = workspace.getDoubles(WS_TOTAL_RESP_CTRL, c, ctrlHitNum[c]);
 	            for(int i=0;i<ctrlHitNum[c];i++)
 	                totalRespCtrl[c][i] = 0;
     		}
     	}        
+        double[] sumR = workspace.getDoubles(WS_SUM_R, 0, numComp); //Responsibility sums for pi maximization
+        
+        //Index the active components
+        activeComps = new int[numConditions][];
+        numActiveComps = new int[numConditions];
+        for(int c=0; c<numConditions; c++){
+        	activeComps[c] = workspace.getInts(WS_ACTIVE_COMPS, c, numComp);
+        	for(int j=0;j<numComp;j++)
+        		if(pi[c][j]>0)
+        			activeComps[c][numActiveComps[c]++]=j;
+        }
     	
     	////////////////////////////
         //Run ML -- this should only need one or two rounds
     	////////////////////////////
         for(int t=0; t<config.EM_ML_ITER ; t++){ //System.out.println(t); 
+        	maxRBindDelta=0; maxPiDelta=0;
         	
     		////////
     		//E-step
     		////////
-    		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c];
+    		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c]; int[] act = activeComps[c]; int numAct = numActiveComps[c];
         		//Recompute h function, given binding component positions (n function is constant because noise model doesn't move)
         		for(int i=0;i<numBases;i++)
-                	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-                    	int dist = sigHitPlusStr[c][i] ? sigHitPos[c][i]-mu[c][j]: mu[c][j]-sigHitPos[c][i];
-                    	//Permanganate ChIP-seq special case
-                        if(bindingModels[sigRepIndices[c][i]] instanceof BindingModelPerBase && currRegionSeq!=null && currRegionSeqRC!=null){
-                        	int wantedPos =  sigHitPlusStr[c][i] ? sigHitPos[c][i]-1 : sigHitPos[c][i]+1;
-                			if(wantedPos>=currRegion.getStart() && wantedPos<currRegion.getEnd()){
-                				char base = sigHitPlusStr[c][i] ? currRegionSeq[wantedPos-currRegion.getStart()] : currRegionSeqRC[currRegion.getEnd()-wantedPos];
-                				h[c][j][i] = ((BindingModelPerBase)(bindingModels[sigRepIndices[c][i]])).probability(dist, base);
-                			}else{
-                				h[c][j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-                			}
-                        }else{//Standard ChIP-seq / ChIP-exo
-                        	h[c][j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
-                        }
-                	}}
-        		//Compute responsibilities
-    			for(int i=0;i<numBases;i++)
-                    totalRespSig[c][i] = 0;
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBindSig[c][j][i] = h[c][j][i]*pi[c][j];
-        				totalRespSig[c][i] +=rBindSig[c][j][i]; 
-        			}}
-        			rNoiseSig[c][i] = n[c][i] * piNoise[c];
-        			totalRespSig[c][i] +=rNoiseSig[c][i];
+        			fillReadH(h[c], hF[c], i, act, numAct, mu[c], modelTables[sigRepIndices[c][i]], sigHitPlusStr[c][i], sigHitPos[c][i], hitBase(sigHitBase, c, i), currRegion, currRegionSeq);
+        		//Compute normalized responsibilities, tracking the largest change for the convergence check
+        		//(inner loops run over reads, i.e. over contiguous memory; per-read totals are accumulated in component order,
+        		//in double precision even if the H function & responsibilities are stored in single precision)
+        		double[] totalResp = totalRespSig[c], nc = n[c], rNoisec = rNoiseSig[c];
+        		Arrays.fill(totalResp, 0, numBases, 0);
+        		for(int a=0;a<numAct;a++){ int j=act[a];
+        			double pij = pi[c][j];
+        			if(singlePrecision){
+        				float[] hj = hF[c][j];
+        				for(int i=0;i<numBases;i++)
+        					totalResp[i] += hj[i]*pij;
+        			}else{
+        				double[] hj = h[c][j];
+        				for(int i=0;i<numBases;i++)
+        					totalResp[i] += hj[i]*pij;
+        			}
         		}
-        		//Normalize responsibilities
-        		for(int i=0;i<numBases;i++){
-        			for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-        				rBindSig[c][j][i]/=totalRespSig[c][i];
-        			}}
-        			rNoiseSig[c][i]/=totalRespSig[c][i];
+        		double piNoisec = piNoise[c];
+        		for(int i=0;i<numBases;i++)
+        			totalResp[i] += nc[i] * piNoisec;
+        		for(int a=0;a<numAct;a++){ int j=act[a];
+        			double pij = pi[c][j];
+        			double maxDelta = maxRBindDelta;
+        			if(singlePrecision){
+        				float[] hj = hF[c][j], rj = rBindSigF[c][j];
+        				for(int i=0;i<numBases;i++){
+        					float r = (float)(hj[i]*pij/totalResp[i]);
+        					maxDelta = Math.max(maxDelta, Math.abs(r-rj[i]));
+        					rj[i] = r;
+        				}
+        			}else{
+        				double[] hj = h[c][j], rj = rBindSig[c][j];
+        				for(int i=0;i<numBases;i++){
+        					double r = hj[i]*pij/totalResp[i];
+        					maxDelta = Math.max(maxDelta, Math.abs(r-rj[i]));
+        					rj[i] = r;
+        				}
+        			}
+        			maxRBindDelta = maxDelta;
         		}
+        		for(int i=0;i<numBases;i++)
+        			rNoisec[i] = nc[i] * piNoisec/totalResp[i];
     		}
     		        		
     		/////////////////////
     		//M-step: maximize pi
     		/////////////////////
-    		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c];	
+    		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c]; int[] act = activeComps[c];
         		//Maximize pi
-        		double[] sumR=new double[numComponents];
-        		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
+        		for(int a=0;a<numActiveComps[c];a++){ int j=act[a];
+        			sumR[j]=0;
         			for(int i=0;i<numBases;i++)
-        				sumR[j] += rBindSig[c][j][i]*sigHitCounts[c][i];
-                }}
+        				sumR[j] += sigResp(c, j, i)*sigHitCounts[c][i];
+                }
                 
         		// No components to be eliminated in ML, update pi(j)
-        		for(int j=0;j<numComp;j++){ 
-        			pi[c][j]=Math.max(0, sumR[j]); 
+        		for(int a=0;a<numActiveComps[c];a++){ int j=act[a];
+        			sumR[j]=Math.max(0, sumR[j]); 
         		}
                 
-                //Normalize pi (accounting for piNoise)
+                //Normalize pi (accounting for piNoise), tracking the largest change for the convergence check
                 double totalPi=0;
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-            		totalPi+=pi[c][j];
-            	}}
-                for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-            		if(totalPi>0)
-            			pi[c][j]=pi[c][j]/(totalPi/(1-piNoise[c]));
-            	}}
+                for(int a=0;a<numActiveComps[c];a++){ int j=act[a];
+                	if(sumR[j]>0)
+                		totalPi+=sumR[j];
+            	}
+                for(int a=0;a<numActiveComps[c];a++){ int j=act[a];
+                	double newPi = (sumR[j]>0 && totalPi>0) ? sumR[j]/(totalPi/(1-piNoise[c])) : sumR[j];
+                	if(newPi>0)
+                		maxPiDelta = Math.max(maxPiDelta, Math.abs(newPi-pi[c][j]));
+            		pi[c][j]=newPi;
+            	}
+                compactActiveComponents(c);
         	}
         	
         	//Non-zero components count
         	int nonZeroComps=0;
         	for(int c=0; c<numConditions; c++)
-        		for(int j=0;j<numComp;j++)
-        			if(pi[c][j]>0.0)
-        				nonZeroComps++;
+        		nonZeroComps+=numActiveComps[c];
         	
         	////////////
         	//Check Stopping condition
         	////////////	
             if (nonZeroComps>0 && (t==0 || !lastEquivToCurr())){
-            	copyStateToLast();
+            	lastNumActive = nonZeroComps;
                 continue;
             }else{
-            	copyStateToLast();
+            	lastNumActive = nonZeroComps;
             	break;
             }
         } //LOOP: Run ML while not converged
@@ -507,9 +550,9 @@ public class BindingMLAssignment {
     		for(int i=0;i<numBases;i++){
     			// for each read, each event will give a conditional prob or bg prob
                 double j_sum=0;
-    			for(int j=0;j<numComp;j++){ if(pi[c][j]>0.0){
-    				j_sum += Math.log(rBindSig[c][j][i])/config.LOG2;
-                }}
+    			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+    				j_sum += Math.log(sigResp(c, j, i))/config.LOG2;
+                }
     			j_sum += Math.log(rNoiseSig[c][i])/config.LOG2;
                 baseLL[c] += j_sum*sigHitCounts[c][i];                        
             }
@@ -518,46 +561,56 @@ public class BindingMLAssignment {
         //ML assignment of signal reads to components is finished
         //Assign control reads with converged pi values here
         for(int c=0; c<numConditions; c++){ int numBases = ctrlHitNum[c];
-        	double[][] hCtrl= new double[numComp][numBases];
-            double[] nCtrl = new double[numBases];
+        	double[][] hCtrl= singlePrecision ? null : workspace.getDoubles(WS_H_CTRL, c, numComp, numBases);
+        	float[][] hCtrlF= singlePrecision ? workspace.getFloats(WS_H_CTRL_F, c, numComp, numBases) : null;
+            double[] nCtrl = workspace.getDoubles(WS_N_CTRL, c, numBases);
 
 			//Recompute h & n functions for control reads, given binding component positions 
 			for(int i=0;i<numBases;i++){
-	        	for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-	            	int dist = ctrlHitPlusStr[c][i] ? ctrlHitPos[c][i]-mu[c][j]: mu[c][j]-ctrlHitPos[c][i];
-	            	//Permanganate ChIP-seq special case
-                    if(bindingModels[ctrlRepIndices[c][i]] instanceof BindingModelPerBase && currRegionSeq!=null && currRegionSeqRC!=null){
-                    	int wantedPos =  ctrlHitPlusStr[c][i] ? ctrlHitPos[c][i]-1 : ctrlHitPos[c][i]+1;
-            			if(wantedPos>=currRegion.getStart() && wantedPos<currRegion.getEnd()){
-            				char base = ctrlHitPlusStr[c][i] ? currRegionSeq[wantedPos-currRegion.getStart()] : currRegionSeqRC[currRegion.getEnd()-wantedPos];
-            				hCtrl[j][i] = ((BindingModelPerBase)(bindingModels[ctrlRepIndices[c][i]])).probability(dist, base);
-            			}else{
-            				hCtrl[j][i] = bindingModels[ctrlRepIndices[c][i]].probability(dist);
-            			}
-                    }else{//Standard ChIP-seq / ChIP-exo
-                    	hCtrl[j][i] = bindingModels[ctrlRepIndices[c][i]].probability(dist);
-                    }
-	        	}}
+				fillReadH(hCtrl, hCtrlF, i, activeComps[c], numActiveComps[c], mu[c], modelTables[ctrlRepIndices[c][i]], ctrlHitPlusStr[c][i], ctrlHitPos[c][i], hitBase(ctrlHitBase, c, i), currRegion, currRegionSeq);
 	        	nCtrl[i] = noise.get(c).scorePosition(ctrlHitPos[c][i], ctrlRepIndices[c][i]);
 			}
 			//Compute responsibilities
 			for(int i=0;i<numBases;i++)
 	            totalRespCtrl[c][i] = 0;
+			if(numBases==0)
+				continue;
+			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+				double[] totalResp = totalRespCtrl[c]; double pij = pi[c][j];
+				if(singlePrecision){
+					float[] hj = hCtrlF[j], rj = rBindCtrlF[c][j];
+					for(int i=0;i<numBases;i++){
+						double r = hj[i]*pij;
+						rj[i] = (float)r;
+						totalResp[i] +=r;
+					}
+				}else{
+					double[] hj = hCtrl[j], rj = rBindCtrl[c][j];
+					for(int i=0;i<numBases;i++){
+						rj[i] = hj[i]*pij;
+						totalResp[i] +=rj[i];
+					}
+				}
+			}
 			for(int i=0;i<numBases;i++){
-				for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-					rBindCtrl[c][j][i] = hCtrl[j][i]*pi[c][j];
-					totalRespCtrl[c][i] +=rBindCtrl[c][j][i]; 
-				}}
 				rNoiseCtrl[c][i] = nCtrl[i] * piNoise[c];
 				totalRespCtrl[c][i] +=rNoiseCtrl[c][i];
 			}
 			//Normalize responsibilities
-			for(int i=0;i<numBases;i++){
-				for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
-					rBindCtrl[c][j][i]/=totalRespCtrl[c][i];
-				}}
-				rNoiseCtrl[c][i]/=totalRespCtrl[c][i];
+			for(int a=0;a<numActiveComps[c];a++){ int j=activeComps[c][a];
+				double[] totalResp = totalRespCtrl[c];
+				if(singlePrecision){
+					float[] rj = rBindCtrlF[c][j];
+					for(int i=0;i<numBases;i++)
+						rj[i]/=totalResp[i];
+				}else{
+					double[] rj = rBindCtrl[c][j];
+					for(int i=0;i<numBases;i++)
+						rj[i]/=totalResp[i];
+				}
 			}
+			for(int i=0;i<numBases;i++)
+				rNoiseCtrl[c][i]/=totalRespCtrl[c][i];
 		}
         
         if(evconfig.CALC_EVENTS_LL){
@@ -597,11 +650,13 @@ public class BindingMLAssignment {
 	            		////////
 	            		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c];
 	                		//Recompute h function, given binding component positions (n function is constant because noise model doesn't move)
-	                		for(int i=0;i<numBases;i++)
+	                		for(int i=0;i<numBases;i++){
+	                			BindingModelTable table = modelTables[sigRepIndices[c][i]];
+	                			int strand = sigHitPlusStr[c][i] ? BindingModelTable.PLUS : BindingModelTable.MINUS;
 	                        	for(int j=0;j<numComp;j++){ if(tmp_pi[c][j]>0){
-	                            	int dist = sigHitPlusStr[c][i] ? sigHitPos[c][i]-mu[c][j]: mu[c][j]-sigHitPos[c][i];
-	                            	tmp_h[c][j][i] = bindingModels[sigRepIndices[c][i]].probability(dist);
+	                            	tmp_h[c][j][i] = table.probability(strand, sigHitPos[c][i], mu[c][j]);
 	                        	}}
+	                		}
 	                		//Compute responsibilities
 	            			for(int i=0;i<numBases;i++)
 	                            totalRespSig[c][i] = 0;
@@ -628,15 +683,16 @@ public class BindingMLAssignment {
 	            		for(int c=0; c<numConditions; c++){ int numBases = sigHitNum[c];
 	            			if(tmp_piNoise[c]<1.0){//No need for maximization in single component cases
 	                		//Maximize pi
-	                		double[] sumR=new double[numComponents];
+	                		double[] tmp_sumR=workspace.getDoubles(WS_TMP_SUM_R, 0, numComp);
+	                		Arrays.fill(tmp_sumR, 0, numComp, 0);
 	                		for(int j=0;j<numComp;j++){ if(pi[c][j]>0){
 	                			for(int i=0;i<numBases;i++)
-	                				sumR[j] += tmp_rBindSig[c][j][i]*sigHitCounts[c][i];
+	                				tmp_sumR[j] += tmp_rBindSig[c][j][i]*sigHitCounts[c][i];
 	                        }}
 	                        
 	                		// No components to be eliminated in ML, update pi(j)
 	                		for(int j=0;j<numComp;j++){ 
-	                			tmp_pi[c][j]=Math.max(0, sumR[j]); 
+	                			tmp_pi[c][j]=Math.max(0, tmp_sumR[j]); 
 	                		}
 	                        
 	                        //Normalize pi (accounting for piNoise)
@@ -671,59 +727,97 @@ public class BindingMLAssignment {
     }//end of ML method
  
     /**
-     * Copy current variables to last variables (lastRBind, lastPi, lastMu).
-     * Assumes visibility of both.
+     * Fill the H function of one read for a set of components, using the compiled binding model tables.
+     * The permanganate base preceding the read does not depend on the component, so the table row is chosen once per read.
+     * @param hc : H function for the condition, indexed by component & read
+     * @param hFc : single precision H function for the condition (used instead of hc if not null)
+     * @param i : read index
+     * @param comps : indices of the components to fill (null: components 0..numComps-1)
+     * @param baseIndex : table row of the base preceding the read (see BindingModelTable.precedingBase())
      */
-    private void copyStateToLast(){
-    	int numC = manager.getNumConditions();
-    	for(int c=0; c<numC; c++){
-    		for(int j=0; j<numComponents; j++){
-    			lastPi[c][j] = pi[c][j];
-    			lastMu[c][j] = mu[c][j];
-    			for(int x=0; x<rBindSig[c][j].length; x++){
-    				lastRBind[c][j][x] = rBindSig[c][j][x];
+    private void fillReadH(double[][] hc, float[][] hFc, int i, int[] comps, int numComps, int[] muc, BindingModelTable table, boolean plusStr, int pos, 
+    		int baseIndex, Region currRegion, char[] currRegionSeq){
+    	int strand = plusStr ? BindingModelTable.PLUS : BindingModelTable.MINUS;
+    	double[] probs = table.getProbs(strand);
+    	double outside = table.getBgProb();
+    	//Permanganate ChIP-seq special case
+    	if(table.isPerBase() && currRegionSeq!=null){
+    		if(baseIndex!=BindingModelTable.BASE_OUTSIDE){
+    			if(baseIndex==BindingModelTable.NO_BASE){
+    				int wantedPos =  plusStr ? pos-1 : pos+1;
+    				char base = BindingModelTable.strandBase(currRegionSeq, plusStr, wantedPos-currRegion.getStart());
+    				for(int a=0;a<numComps;a++){ int j = comps==null ? a : comps[a];
+    					double prob = table.probability(strand, pos, muc[j], base);
+    					if(hFc!=null)
+    						hFc[j][i] = (float)prob;
+    					else
+    						hc[j][i] = prob;
+    				}
+    				return;
     			}
+    			probs = table.getBaseProbs(strand, baseIndex);
+    			outside = table.getBaseBgProb(baseIndex);
     		}
     	}
+    	int tableOffset = -pos-table.getOffsetStart(strand); //Table index = component position + tableOffset
+    	int len = table.getLength();
+    	for(int a=0;a<numComps;a++){ int j = comps==null ? a : comps[a];
+    		int k = muc[j]+tableOffset;
+    		double prob = (k>=0 && k<len) ? probs[k] : outside;
+    		if(hFc!=null)
+    			hFc[j][i] = (float)prob;
+    		else
+    			hc[j][i] = prob;
+    	}
+    }
+    
+    /**
+     * Table row of the base preceding a read (BASE_OUTSIDE if there is no sequence)
+     */
+    private int hitBase(byte[][] hitBases, int c, int i){
+    	return hitBases[c]==null ? BindingModelTable.BASE_OUTSIDE : hitBases[c][i];
+    }
+    
+    /**
+     * Responsibility of a binding component for a signal read (from rBindSig, or rBindSigF in single precision mode)
+     */
+    private double sigResp(int c, int j, int i){
+    	return singlePrecision ? rBindSigF[c][j][i] : rBindSig[c][j][i];
+    }
+    
+    /**
+     * Responsibility of a binding component for a control read (from rBindCtrl, or rBindCtrlF in single precision mode)
+     */
+    private double ctrlResp(int c, int j, int i){
+    	return singlePrecision ? rBindCtrlF[c][j][i] : rBindCtrl[c][j][i];
+    }
+    
+    /**
+     * Remove components that are no longer active (pi=0) from the active component index of a condition.
+     * Preserves the ascending order of the remaining component indices.
+     * @param c : condition index
+     */
+    private void compactActiveComponents(int c){
+    	int numAct=0;
+    	for(int a=0;a<numActiveComps[c];a++){
+    		int j = activeComps[c][a];
+    		if(pi[c][j]>0)
+    			activeComps[c][numAct++]=j;
+    	}
+    	numActiveComps[c]=numAct;
     }
     
     /**
-     * Compare last variables to current (lastRBind, lastPi, lastMu).
-     * Assumes visibility of both.
+     * Compare the current state to the last, using the changes tracked while the current iteration's
+     * responsibilities and pi values were written (component positions are fixed during ML).
+     * Components never become active again, so equal active counts imply the same active components.
      * @return
      */
     private boolean lastEquivToCurr(){
-    	int numC = manager.getNumConditions();
-    	int currNZ=0, lastNZ=0;
+    	int currNZ=0;
     	for(int c=0; c<numConditions; c++)
-    		for(int j=0;j<numComponents;j++){
-    			if(pi[c][j]>0)
-    				currNZ++;
-    			if(lastPi[c][j]>0)
-    				lastNZ++;
-    		}
-    	boolean numCompEqual = currNZ==lastNZ;
-    	boolean compPosEqual=true;
-    	if(numCompEqual){
-    		for(int c=0; c<numC; c++)
-    			for(int j=0; j<mu[c].length; j++){if(pi[c][j]>0){
-    				compPosEqual = compPosEqual && (mu[c][j] == lastMu[c][j]);
-    			}}
-    	}else{
-    		compPosEqual=false;
-    	}
-    	boolean piBindEquivalent=true;
-    	for(int c=0; c<numC; c++)
-			for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
-				piBindEquivalent = piBindEquivalent && (Math.abs(pi[c][j]-lastPi[c][j])<config.EM_STATE_EQUIV_THRES);
-			}}
-    	boolean rBindEquivalent=true;
-    	for(int c=0; c<numC; c++)
-    		for(int j=0; j<pi[c].length; j++){if(pi[c][j]>0){
-    			for(int x=0; x<rBindSig[c][j].length; x++){
-    				rBindEquivalent = rBindEquivalent && (Math.abs(rBindSig[c][j][x]-lastRBind[c][j][x])<config.EM_STATE_EQUIV_THRES);
-    			}
-			}}
-		return numCompEqual && compPosEqual && piBindEquivalent && rBindEquivalent;
+    		currNZ+=numActiveComps[c];
+    	return currNZ==lastNumActive && 
+    			maxPiDelta<config.EM_STATE_EQUIV_THRES && maxRBindDelta<config.EM_STATE_EQUIV_THRES;
     }
 }
@@ -4,14 +4,21 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.seqcode.data.motifdb.WeightMatrix;
-import org.seqcode.deepseq.StrandedBaseCount;
 import org.seqcode.deepseq.events.BindingEvent;
 import org.seqcode.deepseq.events.BindingManager;
 import org.seqcode.deepseq.events.BindingModel;
@@ -31,8 +38,10 @@ import org.seqcode.genome.sequence.SequenceGenerator;
 import org.seqcode.gsebricks.verbs.location.ChromosomeGenerator;
 import org.seqcode.gseutils.Pair;
 import org.seqcode.math.stats.StatUtil;
+import org.seqcode.projects.multigps.framework.ChromosomeReadCache;
 import org.seqcode.projects.multigps.framework.MultiGPSConfig;
 import org.seqcode.projects.multigps.framework.PotentialRegionFilter;
+import org.seqcode.projects.multigps.framework.TrainingCheckpoint;
 import org.seqcode.projects.multigps.motifs.MotifPlatform;
 
 
@@ -52,17 +61,37 @@ public class BindingMixture {
 	protected BindingManager bindingManager;
 	protected PotentialRegionFilter potRegFilter;
 	protected List<Region> testRegions;
-	protected HashMap<Region, List<List<BindingComponent>>> activeComponents; //Components active after a round of execute()
+	protected ComponentStore activeComponents; //Components active after a round of execute(), indexed by test region
+	protected ComponentStore nextComponents=null; //Components found in the current EM round (replace activeComponents at the end of the round)
 	protected HashMap<ExperimentCondition, BackgroundCollection> conditionBackgrounds=new HashMap<ExperimentCondition, BackgroundCollection>(); //Genomic Background models for each condition -- used to set alpha values in sparse prior
 	protected List<BindingEvent> bindingEvents;
 	protected List<Region> regionsToPlot;
 	protected int trainingRound=0;
 	protected double noisePerBase[];      //Defines global noise 
 	protected double relativeCtrlNoise[]; //Defines global noise
-	protected HashMap<Region, Double[]> noiseResp = new HashMap<Region, Double[]>(); //noise responsibilities after a round of execute(). Hashed by Region, indexed by condition
 	protected MotifPlatform motifFinder;
 	protected boolean hasPermChipSeq=false; //one of the experiments is a permanganate ChIP-seq experiment - requires sequence information in the training methods.
 	protected SequenceGenerator<Region> seqgen=null; //sequence generator for cases where a permanganate ChIP-seq experiment is present. 
+	protected EMWorkspace[] threadWorkspaces; //EM/ML working arrays, one per thread slot, reused across regions and training rounds
+	protected ReadProfileAccumulator[] threadProfiles; //Read profiles for the binding model update, one per thread slot, summed over the last EM round
+	protected BindingModelTable[] modelTables; //Binding models compiled into lookup tables for the current training round, indexed by replicate
+	protected ForkJoinPool emConditionPool=null; //Shared pool for processing conditions in parallel within costly EM windows (null if not used)
+	protected RegionCostModel emCostModel = new RegionCostModel(); //Estimates EM time per region for longest-first scheduling, calibrated on each round
+	protected RegionCostModel mlCostModel = new RegionCostModel(); //Estimates ML assignment time per region
+	protected double[] threadIdleTime; //Seconds each thread slot spent waiting for the other threads in the current round
+	protected long numExtrapolations=0; //Accepted SQUAREM extrapolations of pi in the current EM round
+	protected ChromosomeReadCache readCache=null; //Chromosome read cache used to build each chromosome's read stores (if all data is not cached)
+	protected RegionReadStore signalStore=null;  //Signal reads in the test regions, loaded once and reused in every round (if all data is cached)
+	protected RegionReadStore controlStore=null; //Control reads in the test regions (if all data is cached)
+	protected ConcurrentHashMap<Region, NoiseDistribution[]> noiseDistribCache = new ConcurrentHashMap<Region, NoiseDistribution[]>(); //Control noise distributions of the windows analyzed in the current round, indexed by replicate
+	protected ConcurrentHashMap<Region, NoiseDistribution[]> lastNoiseDistribCache = new ConcurrentHashMap<Region, NoiseDistribution[]>(); //Control noise distributions of the windows analyzed in the last round
+	protected double lastModelLogKL = 0; //Largest log KL divergence between the old & new binding models in the last update
+	protected boolean skippingStable = false; //Stable regions are skipped in the current round
+	protected double[] lastEMAlphas=null; //Per-condition alphas used in the last EM round (to check that stable regions would see the same sparse prior)
+	protected double[] lastEMNoisePerBase=null; //Per-condition global noise used in the last EM round
+	protected int numSkippedRegions=0; //Number of stable regions skipped in the current round
+	protected ReadProfileAccumulator[] threadStableProfiles=null; //Read profiles of the regions found to be stable in the current round, one per thread slot
+	protected ReadProfileAccumulator skippedProfiles=null; //Read profiles of the regions skipped in the current round (from the last round in which they were analyzed)
 	
 	public BindingMixture(GenomeConfig gcon, ExptConfig econ, EventsConfig evcon, MultiGPSConfig c, ExperimentManager eMan, BindingManager bMan, PotentialRegionFilter filter){
 		gconfig = gcon;
@@ -82,7 +111,7 @@ public class BindingMixture {
 		BindingEvent.setExperimentManager(manager);
 		BindingEvent.setConfig(evconfig);
 		
-		activeComponents = new HashMap<Region, List<List<BindingComponent>>>();
+		activeComponents = new ComponentStore(testRegions.size(), manager.getNumConditions());
 		for(ExperimentCondition cond : manager.getConditions()){
 			conditionBackgrounds.put(cond, new BackgroundCollection());
 			conditionBackgrounds.get(cond).addBackgroundModel(new PoissonBackgroundModel(-1, config.getSigLogConf(), cond.getTotalSignalCount()*(1-cond.getTotalSignalVsNoiseFrac()), config.getGenome().getGenomeLength(), econfig.getMappableGenomeProp(), bindingManager.getMaxInfluenceRange(cond), '.', 1, true));
@@ -111,6 +140,29 @@ public class BindingMixture {
 				hasPermChipSeq=true;
 		if(hasPermChipSeq)
 			seqgen = gconfig.getSequenceGenerator();
+		
+		threadWorkspaces = new EMWorkspace[config.getMaxThreads()];
+		for(int t=0; t<threadWorkspaces.length; t++)
+			threadWorkspaces[t] = new EMWorkspace(manager.getNumConditions());
+		threadProfiles = new ReadProfileAccumulator[config.getMaxThreads()];
+		for(int t=0; t<threadProfiles.length; t++)
+			threadProfiles[t] = new ReadProfileAccumulator(manager, config.MAX_BINDINGMODEL_WIDTH);
+		if(config.getSkipStableRegions() && config.doBMUpdate()){
+			threadStableProfiles = new ReadProfileAccumulator[config.getMaxThreads()];
+			for(int t=0; t<threadStableProfiles.length; t++)
+				threadStableProfiles[t] = new ReadProfileAccumulator(manager, config.MAX_BINDINGMODEL_WIDTH);
+			skippedProfiles = new ReadProfileAccumulator(manager, config.MAX_BINDINGMODEL_WIDTH);
+		}
+		if(config.getParallelEMCost()>=0 && config.getMaxThreads()>1 && manager.getNumConditions()>1)
+			emConditionPool = new ForkJoinPool(config.getMaxThreads());
+		
+		//Pack the reads in the test regions once, so that the training rounds do not go back to the experiment caches
+		if(econfig.getCacheAllData()){
+			signalStore = new RegionReadStore(manager, testRegions, false);
+			controlStore = new RegionReadStore(manager, testRegions, true);
+			System.err.println("Potential region read store: "+signalStore.getNumReads()+" signal reads, "+controlStore.getNumReads()+" control reads ("+
+					String.format("%.1f", (signalStore.getBytes()+controlStore.getBytes())/(1024.0*1024.0))+" MB)");
+		}
 	}
 	
 	
@@ -123,62 +175,272 @@ public class BindingMixture {
 	 */
 	public void execute(boolean EM, boolean uniformBindingComponents){
 		trainingRound++;
+		//Binding models only change between rounds, so compile them once here and share the tables between threads
+		modelTables = BindingModelTable.compile(manager, bindingManager);
+		//Noise distributions carry over for windows that are analyzed again in this round (others are dropped at the end of the round)
+		lastNoiseDistribCache = noiseDistribCache;
+		noiseDistribCache = new ConcurrentHashMap<Region, NoiseDistribution[]>(Math.max(16, lastNoiseDistribCache.size()*4/3));
+		//Read profiles are summed over the last EM round only
+		if(EM)
+			for(ReadProfileAccumulator profiles : threadProfiles)
+				profiles.clear();
+		//In later EM rounds, regions whose components were stable are skipped if the binding models changed little in the last update. 
+		//The read profiles of skipped regions carry over from the last round in which they were analyzed. 
+		//(If regions are skipped, every region skipped in the last round is still stable, so the carried profiles accumulate.)
+		if(EM){
+			nextComponents = new ComponentStore(testRegions.size(), manager.getNumConditions());
+			//Skipped regions keep results computed under the last round's inputs, so regions are only skipped if those inputs did not move:
+			//the motif prior may change every round, so skipping is off when motif-finding, and alpha & global noise must be within tolerance. 
+			double[] alphas = currentAlphas();
+			skippingStable = config.getSkipStableRegions() && !uniformBindingComponents && !config.getFindingMotifs()
+					&& lastModelLogKL<=config.getStableRegionMaxLogKL()
+					&& withinTolerance(alphas, lastEMAlphas) && withinTolerance(noisePerBase, lastEMNoisePerBase);
+			lastEMAlphas = alphas;
+			lastEMNoisePerBase = Arrays.copyOf(noisePerBase, noisePerBase.length);
+			numSkippedRegions=0;
+			if(threadStableProfiles!=null){
+				if(!skippingStable)
+					skippedProfiles.clear();
+				for(ReadProfileAccumulator profiles : threadStableProfiles){
+					if(skippingStable)
+						skippedProfiles.add(profiles);
+					profiles.clear();
+				}
+			}
+		}
 		
-		//Have to split the test regions up by chromosome in order to maintain compatibility with experiment file cache loading
-		//There will be some performance hit here, as all threads have to finish in a given chromosome before moving on to the next one. 
-		Iterator<Region> chroms = new ChromosomeGenerator().execute(gconfig.getGenome());
-		while (chroms.hasNext()) {
-			Region currChr = chroms.next();
-			List<Region> currChrTestReg = new ArrayList<Region>();
-			for(Region r : testRegions)
-				if(currChr.overlaps(r))
-					currChrTestReg.add(r);
-			
-			if(currChrTestReg.size()>0){
-				int numThreads = config.getMaxThreads()>currChrTestReg.size() ?  currChrTestReg.size() : config.getMaxThreads(); 
-				Thread[] threads = new Thread[numThreads];
-		        ArrayList<Region> threadRegions[] = new ArrayList[numThreads];
-		        int i = 0;
-		        for (i = 0 ; i < threads.length; i++) {
-		            threadRegions[i] = new ArrayList<Region>();
-		        }i=0;
-		        for(Region r : currChrTestReg){
-		            threadRegions[(i++) % numThreads].add(r);
-		        }
+		//Regions are handed out to the threads one at a time from a shared index, so threads that finish early take on the remaining regions.
+		//If all data is cached, the test regions are analyzed in a single batch, reading from the read stores built at construction. 
+		//Otherwise, we have to split the test regions up by chromosome in order to maintain compatibility with experiment file cache loading 
+		//(all threads finish a chromosome before moving on to the next one), and the reads of each chromosome are packed for that batch only. 
+		//The chromosome reads come from a bounded read cache, which loads the next chromosome in the background while the current one is analyzed. 
+		threadIdleTime = new double[config.getMaxThreads()];
+		numExtrapolations=0;
+		ExecutorService executor = Executors.newFixedThreadPool(config.getMaxThreads());
+		if(econfig.getCacheAllData()){
+			int[] regIds = new int[testRegions.size()];
+			for(int k=0; k<regIds.length; k++)
+				regIds[k]=k;
+			runRegions(executor, testRegions, regIds, signalStore, controlStore, EM, uniformBindingComponents);
+		}else{
+			if(readCache==null)
+				readCache = potRegFilter.getReadCache()!=null ? potRegFilter.getReadCache() : new ChromosomeReadCache(manager, config.getReadCacheMB());
+			List<Region> chrs = new ArrayList<Region>();
+			List<List<Region>> chrTestRegs = new ArrayList<List<Region>>();
+			List<int[]> chrTestRegIds = new ArrayList<int[]>();
+			Iterator<Region> chroms = new ChromosomeGenerator().execute(gconfig.getGenome());
+			while (chroms.hasNext()) {
+				Region currChr = chroms.next();
+				List<Region> currChrTestReg = new ArrayList<Region>();
+				List<Integer> currChrTestRegIds = new ArrayList<Integer>();
+				for(int k=0; k<testRegions.size(); k++)
+					if(currChr.overlaps(testRegions.get(k))){
+						currChrTestReg.add(testRegions.get(k));
+						currChrTestRegIds.add(k);
+					}
+				if(currChrTestReg.size()>0){
+					int[] ids = new int[currChrTestRegIds.size()];
+					for(int k=0; k<ids.length; k++)
+						ids[k] = currChrTestRegIds.get(k);
+					chrs.add(currChr);
+					chrTestRegs.add(currChrTestReg);
+					chrTestRegIds.add(ids);
+				}
+			}
+			for(int c=0; c<chrs.size(); c++){
+				readCache.acquire(chrs.get(c));
+				if(c+1<chrs.size())
+					readCache.prefetch(chrs.get(c+1));
+				RegionReadStore sigStore = new RegionReadStore(manager, chrTestRegs.get(c), false, readCache);
+				RegionReadStore ctrlStore = new RegionReadStore(manager, chrTestRegs.get(c), true, readCache);
+				readCache.release(chrs.get(c));
+				runRegions(executor, chrTestRegs.get(c), chrTestRegIds.get(c), sigStore, ctrlStore, EM, uniformBindingComponents);
+			}
+		}
+		executor.shutdown();
+		if(EM){
+			nextComponents.trim();
+			activeComponents = nextComponents;
+			nextComponents = null;
+		}
 		
-		        for (i = 0 ; i < threads.length; i++) {
-		            Thread t = new Thread(new BindingMixtureThread(threadRegions[i], EM, uniformBindingComponents));
-		            t.start();
-		            threads[i] = t;
-		        }
-		        boolean anyrunning = true;
-		        while (anyrunning) {
-		            anyrunning = false;
-		            try {
-		                Thread.sleep(5000);
-		            } catch (InterruptedException e) { }
-		            for (i = 0; i < threads.length; i++) {
-		                if (threads[i].isAlive()) {
-		                    anyrunning = true;
-		                    break;
-		                }
-		            }
-		        }
+		//Calibrate the cost model against this round's measured region times
+		RegionCostModel costModel = EM ? emCostModel : mlCostModel;
+		costModel.calibrate();
+		if(EM && config.getSkipStableRegions())
+			System.err.println("Round "+trainingRound+" EM: skipped "+numSkippedRegions+" of "+testRegions.size()+" regions as stable; "+activeComponents.getNumStable()+" regions now stable");
+		if(EM && config.useAcceleratedEM())
+			System.err.println("Round "+trainingRound+" EM: "+numExtrapolations+" SQUAREM extrapolations accepted");
+		if(config.getMaxThreads()>1){
+			String idle = "";
+			for(int t=0; t<threadIdleTime.length; t++)
+				idle = idle+"\t"+String.format("%.2f", threadIdleTime[t]);
+			System.err.println("Round "+trainingRound+(EM ? " EM" : " ML")+" thread idle time (s):"+idle);
+		}
+		if(config.isVerbose())
+			System.err.println("EM workspace high-water mark after round "+trainingRound+": "+String.format("%.1f", getWorkspaceHighWaterBytes()/(1024.0*1024.0))+" MB");
+		if(config.isVerbose() && EM)
+			System.err.println("Active component store after round "+trainingRound+": "+String.format("%.1f", activeComponents.getBytes()/(1024.0*1024.0))+" MB");
+	}
+	
+	/**
+	 * Run the binding mixture over a set of regions, and wait until all regions have been analyzed. 
+	 * With multiple threads, regions are handed out longest-first according to the cost model,
+	 * so that expensive regions do not end up being analyzed by one thread after the others are done. 
+	 * @param executor
+	 * @param regs : regions to analyze
+	 * @param regIds : index of each region in the test regions (indexes the component stores)
+	 * @param sigStore : signal reads in regs (indexed as regs)
+	 * @param ctrlStore : control reads in regs (indexed as regs)
+	 * @param EM : if true, run EM, otherwise run ML assignment
+	 * @param uniformBindingComponents : if true, components are initialized at uniform prob and spacing
+	 */
+	private void runRegions(ExecutorService executor, List<Region> regs, int[] regIds, RegionReadStore sigStore, RegionReadStore ctrlStore, boolean EM, boolean uniformBindingComponents){
+		int numThreads = config.getMaxThreads()>regs.size() ?  regs.size() : config.getMaxThreads(); 
+		RegionCostModel costModel = EM ? emCostModel : mlCostModel;
+		
+		//Estimate region costs and sort longest-first (ties keep the input order)
+		final double[][] features = new double[regs.size()][];
+		final double[] costs = new double[regs.size()];
+		Integer[] order = new Integer[regs.size()];
+		for(int k=0; k<regs.size(); k++){
+			features[k] = regionCostFeatures(regs.get(k), k, regIds[k], sigStore, uniformBindingComponents);
+			costs[k] = (EM && skippingStable && activeComponents.isStable(regIds[k])) ? 0 : costModel.estimate(features[k]);
+			order[k]=k;
+		}
+		if(numThreads>1)
+			Arrays.sort(order, new Comparator<Integer>(){
+				public int compare(Integer a, Integer b){
+					return Double.compare(costs[b], costs[a]);
+				}
+			});
+		int[] queue = new int[order.length];
+		for(int k=0; k<order.length; k++)
+			queue[k]=order[k];
+		
+		//Each region's results are written to its own slot, and merged below in region order once all threads are done
+		RegionResult[] results = new RegionResult[regs.size()];
+		AtomicInteger nextRegion = new AtomicInteger(0);
+		BindingMixtureThread[] threads = new BindingMixtureThread[numThreads];
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int i = 0 ; i < numThreads; i++){
+			threads[i] = new BindingMixtureThread(regs, regIds, features, queue, nextRegion, results, sigStore, ctrlStore, costModel, EM, uniformBindingComponents, threadWorkspaces[i], threadProfiles[i], 
+					threadStableProfiles==null ? null : threadStableProfiles[i]);
+			futures.add(executor.submit(threads[i]));
+		}
+		for(Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				System.err.println("ERROR: Exception in binding mixture thread");
+				e.printStackTrace(System.err);
+				System.exit(-1);
+			}
+		}
+		double elapsed = (System.nanoTime()-start)/1e9;
+		for(int i=0; i<config.getMaxThreads(); i++)
+			threadIdleTime[i] += i<numThreads ? Math.max(0, elapsed-threads[i].getBusyTime()) : elapsed;
+		for(int i=0; i<numThreads; i++)
+			numExtrapolations += threads[i].getExtrapolations();
+		
+		for(int k=0; k<regs.size(); k++){
+			if(EM){
+				if(results[k].skipped){
+					nextComponents.copyRegion(activeComponents, regIds[k], activeComponents.getFlags(regIds[k]));
+					numSkippedRegions++;
+				}else{
+					nextComponents.setRegion(regIds[k], results[k].components, results[k].noiseRSums, results[k].stable);
+				}
+			}else{
+				bindingEvents.addAll(results[k].events);
 			}
 		}
 	}
 	
 	/**
-	 * Return the active components, flattening the hash map first. 
+	 * Cost model features for a region: width, read counts per condition, and the number of components 
+	 * that the region will be initialized with (uniform spacing, or the components active in the last round).
+	 * @param r
+	 * @param regionIndex : index of r in the read store
+	 * @param regionId : index of r in the test regions
+	 * @param sigStore : signal read store
+	 * @param uniformBindingComponents
+	 * @return
+	 */
+	private double[] regionCostFeatures(Region r, int regionIndex, int regionId, RegionReadStore sigStore, boolean uniformBindingComponents){
+		int numConds = manager.getNumConditions();
+		double[] readCounts = new double[numConds];
+		int[] numComps = new int[numConds];
+		for(ExperimentCondition cond : manager.getConditions())
+			for(ControlledExperiment rep : cond.getReplicates())
+				readCounts[cond.getIndex()]+=sigStore.getBlockEnd(regionIndex, rep.getIndex(), false)-sigStore.getBlockStart(regionIndex, rep.getIndex(), true);
+		int comps = r.getWidth()/config.INIT_COMPONENT_SPACING;
+		if(!uniformBindingComponents && activeComponents.isAnalyzed(regionId)){
+			//Components are initialized from the union of all conditions' active components
+			comps=activeComponents.getNumComponentsInRegion(regionId);
+		}
+		for(int c=0; c<numConds; c++)
+			numComps[c]=Math.max(1, comps);
+		return RegionCostModel.features(r.getWidth(), readCounts, numComps);
+	}
+	
+	/**
+	 * Check whether two sets of active components are the same: in each condition, the same positions, 
+	 * with pi values that differ by at most a fraction STABLE_REGION_PI_TOL.
+	 * @param last : components from the last round
+	 * @param r : test region index
+	 * @param curr : components from this round, indexed by condition
+	 * @return
+	 */
+	protected boolean sameComponents(ComponentStore last, int r, List<List<BindingComponent>> curr){
+		for(int e=0; e<manager.getNumConditions(); e++){
+			int n = last.getEnd(e, r)-last.getStart(e, r);
+			if(curr.get(e).size()!=n)
+				return false;
+			HashMap<Integer, Double> lastPi = new HashMap<Integer, Double>();
+			for(int i=last.getStart(e, r); i<last.getEnd(e, r); i++)
+				lastPi.put(last.getPosition(e, i), last.getPi(e, i));
+			for(BindingComponent comp : curr.get(e)){
+				Double pi = lastPi.get(comp.getPosition());
+				if(pi==null || Math.abs(comp.getPi()-pi) > config.STABLE_REGION_PI_TOL*Math.max(comp.getPi(), pi))
+					return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Total size of the per-thread EM/ML working arrays (the largest they have grown to). 
+	 * Useful for sizing the heap.
+	 * @return bytes
+	 */
+	public long getWorkspaceHighWaterBytes(){
+		long bytes=0;
+		for(EMWorkspace ws : threadWorkspaces)
+			bytes+=ws.getHighWaterBytes();
+		return bytes;
+	}
+	
+	/**
+	 * Return the active components (in test region order), making component objects from the component store. 
 	 * @return
 	 */
 	public List<List<BindingComponent>> getBindingComponents(){
 		List<List<BindingComponent>> comps = new ArrayList<List<BindingComponent>>();
 		for(int c=0; c<manager.getNumConditions(); c++)
 			comps.add(new ArrayList<BindingComponent>());
-		for(Region r : activeComponents.keySet()){
+		for(int r=0; r<testRegions.size(); r++){
 			for(int c=0; c<manager.getNumConditions(); c++){
-				comps.get(c).addAll(activeComponents.get(r).get(c));
+				for(int i=activeComponents.getStart(c, r); i<activeComponents.getEnd(c, r); i++){
+					BindingComponent comp = new BindingComponent(new Point(config.getGenome(), testRegions.get(r).getChrom(), activeComponents.getPosition(c, i)), manager.getReplicates().size());
+					comp.setPi(activeComponents.getPi(c, i));
+					comp.setSumResponsibility(activeComponents.getSumResponsibility(c, i));
+					comp.setIndex(activeComponents.getIndex(c, i));
+					comps.get(c).add(comp);
+				}
 			}
 		}
 		return comps;
@@ -235,42 +497,34 @@ public class BindingMixture {
 		}
 		
 		if(config.doBMUpdate()){
+			//Merge the read profiles summed by each thread during the last EM round. 
+			//Components were chosen at the end of each window's EM (see BindingMixtureThread.isBMUpdateCandidate()):
+			// 1) Joint events are only included if requested, 2) components must not be at the edge of the region, 
+			// 3) arbitrary minimum read support for BM components
+			ReadProfileAccumulator profiles = new ReadProfileAccumulator(manager, config.MAX_BINDINGMODEL_WIDTH);
+			for(ReadProfileAccumulator tp : threadProfiles)
+				profiles.add(tp);
+			//Regions skipped as stable contribute the profiles from the last round in which they were analyzed
+			if(skippedProfiles!=null)
+				profiles.add(skippedProfiles);
+			
 			//Sum read profiles if there are enough binding components
 	    	for(ExperimentCondition cond : manager.getConditions()){
-	    		List<BindingComponent> currComps = new ArrayList<BindingComponent>();
-	    		double currAlpha = (double)conditionBackgrounds.get(cond).getMaxThreshold('.');
-	    		//Choose which components to include
-	    		for(Region r : activeComponents.keySet()){
-	    			//1) Include joint events?
-	    			if(activeComponents.get(r).get(cond.getIndex()).size()==1 ||(activeComponents.get(r).get(cond.getIndex()).size()>1 && config.getIncludeJointEventsInBMUpdate())){
-	    				for(BindingComponent bc : activeComponents.get(r).get(cond.getIndex())){
-	    					//2) Component must not be at the edge of the region 
-	    					if((bc.getPosition()-r.getStart()>bindingManager.getMaxInfluenceRange(cond)/2) && (r.getEnd()-bc.getPosition()>bindingManager.getMaxInfluenceRange(cond)/2)){
-	    						//3) Arbitrary minimum read support for BM components
-	    						if(bc.getSumResponsibility()>(config.getMinComponentReadFactorForBM()*currAlpha))
-	    							currComps.add(bc);
-	    					}
-	    				}
-	    			}
-	    		}
-	    		
-	    		if (currComps.size()<config.getMinComponentsForBMUpdate()){
-	    			System.err.println("The "+cond.getName()+" read distributions cannot be updated due to too few binding components ("+currComps.size()+"<"+config.getMinComponentsForBMUpdate()+").");
+	    		int numComps = profiles.getNumComponents(cond.getIndex());
+	    		if (numComps<config.getMinComponentsForBMUpdate()){
+	    			System.err.println("The "+cond.getName()+" read distributions cannot be updated due to too few binding components ("+numComps+"<"+config.getMinComponentsForBMUpdate()+").");
 	    			for(ControlledExperiment rep : cond.getReplicates())
 	    				logKL[rep.getIndex()]=Double.NaN;
 	    		}else{
 	    			for(ControlledExperiment rep : cond.getReplicates()){
 			    		int x = rep.getIndex();
 			    		
-			    		for(BindingComponent comp : currComps){
-				    		double[] currProfile_plus = comp.getReadProfile_plus(rep.getIndex());
-				    		double[] currProfile_minus = comp.getReadProfile_minus(rep.getIndex());
-			    			
-				    		eventCounter[rep.getIndex()]++;
-				    		for(int i=0;i<width;i++){
-				    			newModel_plus[rep.getIndex()][i]+=currProfile_plus[offsetLeft+i];
-				    			newModel_minus[rep.getIndex()][i]+=currProfile_minus[offsetLeft+i];
-				    		}
+			    		double[] currProfile_plus = profiles.getProfilePlus(rep.getIndex());
+			    		double[] currProfile_minus = profiles.getProfileMinus(rep.getIndex());
+			    		eventCounter[rep.getIndex()] = numComps;
+			    		for(int i=0;i<width;i++){
+			    			newModel_plus[rep.getIndex()][i]+=currProfile_plus[offsetLeft+i];
+			    			newModel_minus[rep.getIndex()][i]+=currProfile_minus[offsetLeft+i];
 			    		}
 			    		
 			    		//Smooth the profile and set a new binding distribution in the BindingModel
@@ -332,6 +586,12 @@ public class BindingMixture {
 		}else{
 			System.err.println("Read distribution updates turned off.");
 		}
+		//Record the largest change in the binding models (models that were not updated did not change)
+		lastModelLogKL = Double.NEGATIVE_INFINITY;
+		if(config.doBMUpdate())
+			for(int x=0; x<numReps; x++)
+				if(!logKL[x].isNaN())
+					lastModelLogKL = Math.max(lastModelLogKL, logKL[x]);
 		return logKL;
 	}
     
@@ -347,13 +607,37 @@ public class BindingMixture {
 		}
     }
     
+    /**
+     * Current per-condition alphas (as set in BindingEM, before scaling)
+     */
+    protected double[] currentAlphas(){
+    	double[] alphas = new double[manager.getNumConditions()];
+    	for(ExperimentCondition cond : manager.getConditions())
+    		alphas[cond.getIndex()] = config.getFixedAlpha()>0 ? config.getFixedAlpha() : (double)conditionBackgrounds.get(cond).getMaxThreshold('.');
+    	return alphas;
+    }
+    
+    /**
+     * Check that each value is within STABLE_REGION_INPUT_TOL (relative change) of the last value
+     * @param curr
+     * @param last : null if there was no last value
+     */
+    protected boolean withinTolerance(double[] curr, double[] last){
+    	if(last==null || last.length!=curr.length)
+    		return false;
+    	for(int i=0; i<curr.length; i++)
+    		if(Math.abs(curr[i]-last[i]) > config.STABLE_REGION_INPUT_TOL*Math.max(Math.abs(last[i]), Double.MIN_NORMAL))
+    			return false;
+    	return true;
+    }
+    
     /**
      * Run motif-finding, given the current BindingComponents
      */
     public void updateMotifs(){
     	if(config.getFindingMotifs()){
     		for(ExperimentCondition cond : manager.getConditions())
-    			motifFinder.findMotifs(cond, activeComponents, trainingRound);
+    			motifFinder.findMotifs(cond, activeComponents, testRegions, trainingRound);
     		motifFinder.alignMotifs();
     		
     		//Print progress
@@ -406,12 +690,77 @@ public class BindingMixture {
     		//Don't need to examine noise reads in the update
     		double noiseReads=potRegFilter.getNonPotRegCountsSigChannel(cond); 
     		
-    		for(Region r : noiseResp.keySet())
-    			noiseReads+=noiseResp.get(r)[e];
+    		for(int r=0; r<testRegions.size(); r++)
+    			if(activeComponents.isAnalyzed(r))
+    				noiseReads+=activeComponents.getNoiseResp(r, e);
     		noisePerBase[e] = noiseReads/config.getGenome().getGenomeLength();  //Signal channel noise per base
     	}
     }
 	
+    /**
+     * Store the active components, noise responsibilities & global noise in a training checkpoint.
+     * Components are stored per test region (in test region order) & condition.
+     * @param cp
+     */
+    public void saveCheckpoint(TrainingCheckpoint cp){
+    	int numConds = manager.getNumConditions();
+    	int numComps=0;
+    	for(int c=0; c<numConds; c++)
+    		numComps+=activeComponents.getNumComponents(c);
+    	int[] starts = new int[testRegions.size()*numConds+1];
+    	int[] positions = new int[numComps], indices = new int[numComps];
+    	double[] pis = new double[numComps], resps = new double[numComps];
+    	boolean[] hasComps = new boolean[testRegions.size()];
+    	double[] nResp = new double[testRegions.size()*numConds];
+    	int y=0;
+    	for(int r=0; r<testRegions.size(); r++){
+    		hasComps[r] = activeComponents.isAnalyzed(r);
+    		for(int c=0; c<numConds; c++){
+    			starts[r*numConds+c]=y;
+    			if(hasComps[r])
+	    			for(int i=activeComponents.getStart(c, r); i<activeComponents.getEnd(c, r); i++){
+	    				positions[y] = activeComponents.getPosition(c, i);
+	    				indices[y] = activeComponents.getIndex(c, i);
+	    				pis[y] = activeComponents.getPi(c, i);
+	    				resps[y] = activeComponents.getSumResponsibility(c, i);
+	    				y++;
+	    			}
+    			nResp[r*numConds+c] = activeComponents.getNoiseResp(r, c);
+    		}
+    	}
+    	starts[testRegions.size()*numConds]=y;
+    	cp.setMixtureState(trainingRound, lastModelLogKL, Arrays.copyOf(noisePerBase, noisePerBase.length), starts, positions, indices, pis, resps, hasComps, nResp);
+    }
+    
+    /**
+     * Restore the active components, noise responsibilities & global noise from a training checkpoint.
+     * The test regions, binding models & signal fractions should have been restored from the same checkpoint
+     * before this mixture was constructed (so the alphas are already set from the restored binding models). 
+     * Stable regions are not restored, so every region is analyzed in the first round after resuming.
+     * @param cp
+     */
+    public void restoreCheckpoint(TrainingCheckpoint cp){
+    	if(!cp.matchesRegions(testRegions))
+    		throw new IllegalArgumentException("Training checkpoint does not match the potential regions");
+    	int numConds = manager.getNumConditions();
+    	trainingRound = cp.getTrainingRound();
+    	lastModelLogKL = cp.getLastModelLogKL();
+    	noisePerBase = Arrays.copyOf(cp.getNoisePerBase(), numConds);
+    	activeComponents = new ComponentStore(testRegions.size(), numConds);
+    	for(int r=0; r<testRegions.size(); r++){
+    		if(!cp.hasComponents(r))
+    			continue;
+    		double[] noise = new double[numConds];
+    		for(int c=0; c<numConds; c++)
+    			noise[c] = cp.getNoiseResp(r, c);
+    		activeComponents.startRegion(r, ComponentStore.ANALYZED, noise);
+    		for(int c=0; c<numConds; c++)
+    			for(int i=cp.getComponentStart(r, c); i<cp.getComponentEnd(r, c); i++)
+    				activeComponents.addComponent(r, c, cp.getComponentPosition(i), cp.getComponentPi(i), cp.getComponentResp(i), cp.getComponentIndex(i));
+    	}
+    	activeComponents.trim();
+    }
+    
     /**
      * Print all components active at the current time to a file.
      * TESTING ONLY 
@@ -420,11 +769,10 @@ public class BindingMixture {
     	try {
     		String filename = config.getOutputIntermediateDir()+File.separator+config.getOutBase()+"_t"+trainingRound+".components";
 			FileWriter fout = new FileWriter(filename);
-			for(Region rr : activeComponents.keySet()){
-	    		List<List<BindingComponent>> comps = activeComponents.get(rr);
+			for(int r=0; r<testRegions.size(); r++){
 	    		for(ExperimentCondition cond : manager.getConditions()){
-	    			for(BindingComponent comp : comps.get(cond.getIndex())){
-	    				fout.write(rr.getLocationString()+"\t"+cond.getName()+"\t"+comp.toString()+"\n");			
+	    			for(int i=activeComponents.getStart(cond.getIndex(), r); i<activeComponents.getEnd(cond.getIndex(), r); i++){
+	    				fout.write(testRegions.get(r).getLocationString()+"\t"+cond.getName()+"\t"+componentString(r, cond.getIndex(), i)+"\n");			
 	    			}
 	    		}
 	    	}
@@ -439,16 +787,27 @@ public class BindingMixture {
      * TESTING ONLY 
      */
     public void printActiveComponents(){
-    	for(Region rr : activeComponents.keySet()){
-    		List<List<BindingComponent>> comps = activeComponents.get(rr);
+    	for(int r=0; r<testRegions.size(); r++){
     		for(ExperimentCondition cond : manager.getConditions()){
-    			for(BindingComponent comp : comps.get(cond.getIndex())){
-    				System.err.println(rr.getLocationString()+"\t"+cond.getName()+"\t"+comp.toString());			
+    			for(int i=activeComponents.getStart(cond.getIndex(), r); i<activeComponents.getEnd(cond.getIndex(), r); i++){
+    				System.err.println(testRegions.get(r).getLocationString()+"\t"+cond.getName()+"\t"+componentString(r, cond.getIndex(), i));			
     			}
     		}
     	}
     }
     
+    /**
+     * Format an active component as BindingComponent.toString() does
+     * @param r : test region index
+     * @param c : condition index
+     * @param i : component index in the store
+     * @return
+     */
+    protected String componentString(int r, int c, int i){
+    	return "B\t"+testRegions.get(r).getChrom()+":"+activeComponents.getPosition(c, i)+"\t"+String.format("%.3f",activeComponents.getPi(c, i))+"\t"+
+    			String.format("%.3f", activeComponents.getSumResponsibility(c, i))+"\t"+activeComponents.getIndex(c, i);
+    }
+    
 	/**
 	 * BindingMixtureThread: run binding mixtures over a subset of regions
 	 * uniformComponents: if true, components are initialized at uniform prob and spacing, 
@@ -457,13 +816,45 @@ public class BindingMixture {
 	 * @version	%I%, %G%
 	 */
 	class BindingMixtureThread implements Runnable{
-		private Collection<Region> regions;
+		private List<Region> regions;
+		private int[] regionIds; //Index of each region in the test regions (indexes the component stores)
+		private double[][] regionFeatures; //Cost model features, indexed as regions
+		private int[] queue; //Order in which regions are analyzed (region indices)
+		private AtomicInteger nextRegion; //Position of the next region to analyze in the queue (shared by all threads)
+		private RegionResult[] results; //Results, indexed as regions (each slot is only written by the thread that analyzed the region)
+		private RegionReadStore sigStore, ctrlStore; //Reads, indexed as regions
+		private WindowReads signalReads, controlReads; //Views of the reads in the current window
+		private int regionIndex; //Index of the current region
+		private int regionId; //Test region index of the current region
+		private RegionCostModel costModel; //Records the measured time of each region
+		private double busyTime=0; //Seconds spent analyzing regions
+		private long extrapolations=0; //Accepted SQUAREM extrapolations of pi
 		private int numBindingComponents=1;	//Assuming that the total number of components (active+inactive) is the same in every condition makes coding easier in the BindingEM class.  
+		private boolean warmStarted=false;	//Components in the last initialized window carry pi values from the last training round
 		private boolean runEM = true;
 		private boolean uniformBindingComponents=false;
+		private EMWorkspace workspace; //Working arrays owned by this thread
+		private ReadProfileAccumulator profiles; //Read profiles for the binding model update, owned by this thread
+		private ReadProfileAccumulator regionProfiles; //Read profiles in the current region (added to profiles once the joint event filter can be applied)
+		private ReadProfileAccumulator stableProfiles; //Read profiles of the regions found to be stable, owned by this thread (null if not recorded)
 		
-		public BindingMixtureThread(Collection<Region> regs, boolean EM, boolean uniformBindingComponents){
+		public BindingMixtureThread(List<Region> regs, int[] ids, double[][] features, int[] q, AtomicInteger next, RegionResult[] res, RegionReadStore sig, RegionReadStore ctrl, RegionCostModel cm, boolean EM, boolean uniformBindingComponents, EMWorkspace ws, ReadProfileAccumulator rp, ReadProfileAccumulator sp){
 			regions = regs;	
+			regionIds = ids;
+			regionFeatures = features;
+			queue = q;
+			nextRegion = next;
+			results = res;
+			sigStore = sig;
+			ctrlStore = ctrl;
+			signalReads = new WindowReads(manager.getReplicates().size());
+			controlReads = new WindowReads(manager.getReplicates().size());
+			costModel = cm;
+			workspace = ws;
+			profiles = rp;
+			stableProfiles = sp;
+			if(EM && config.doBMUpdate())
+				regionProfiles = new ReadProfileAccumulator(manager, config.MAX_BINDINGMODEL_WIDTH);
 			this.uniformBindingComponents = uniformBindingComponents;
 			runEM=EM;
 		}
@@ -472,8 +863,20 @@ public class BindingMixture {
 		 * Run the binding mixture over each test region
 		 */
 		public void run() {
-			//For each region in the test set
-        	for (Region rr : regions) {
+			//For each region in the test set that has not been taken by another thread
+        	for (int q=nextRegion.getAndIncrement(); q<queue.length; q=nextRegion.getAndIncrement()) {
+        		int k = queue[q];
+        		Region rr = regions.get(k);
+        		regionIndex = k;
+        		regionId = regionIds[k];
+        		if(runEM && skippingStable && activeComponents.isStable(regionId)){
+        			//Stable region: keep the components & noise responsibilities from the last round in which it was analyzed (copied in the merge)
+        			results[k] = new RegionResult(null, null, null);
+        			results[k].stable = true;
+        			results[k].skipped = true;
+        			continue;
+        		}
+        		long regionStart = System.nanoTime();
         		try{
         			//Initialize array of binding component lists, indexed by condition
         			List<List<BindingComponent>> currComps = new ArrayList<List<BindingComponent>>();
@@ -493,35 +896,60 @@ public class BindingMixture {
 		        		//Run EM
 	                    Double[] noiseRSums = new Double[manager.getNumConditions()];
 	                    for(int e=0; e<manager.getNumConditions(); e++){ noiseRSums[e]=0.0;}
+	                    if(regionProfiles!=null)
+	                    	regionProfiles.clear();
 		        		for (Region w : windows){
-		        			Pair<List<NoiseComponent>, List<List<BindingComponent>>> wComps = analyzeWindowEM(w);
-		        			for(int e=0; e<manager.getNumConditions(); e++){
-		        				noiseRSums[e] += wComps.car().get(e).getSumResponsibility();
-		        				currComps.get(e).addAll(wComps.cdr().get(e));
+		        			//Optionally split the window into independent read clusters. Results are merged under the region key.
+		        			List<Region> clusters = config.getSplitEMWindows() ? splitWindowAtGaps(w) : Collections.singletonList(w);
+		        			for (Region c : clusters){
+			        			Pair<List<NoiseComponent>, List<List<BindingComponent>>> wComps = analyzeWindowEM(rr, c);
+			        			for(int e=0; e<manager.getNumConditions(); e++){
+			        				noiseRSums[e] += wComps.car().get(e).getSumResponsibility();
+			        				currComps.get(e).addAll(wComps.cdr().get(e));
+			        			}
 		        			}
 	                    }
 		        		
-		        		//Only non-zero components are returned by analyzeWindow, so add them to the recorded active components
-		        		synchronized(activeComponents){	activeComponents.put(rr, currComps);}
+		        		//Is the region stable? (same component positions & pi as in the last round)
+		        		boolean stable = config.getSkipStableRegions() && !uniformBindingComponents && activeComponents.isAnalyzed(regionId) 
+		        				&& sameComponents(activeComponents, regionId, currComps);
+		        		
+		        		//Binding model update read profiles: include joint events?
+		        		//Profiles of stable regions are also kept aside, in case the region is skipped in later rounds
+		        		if(regionProfiles!=null)
+		        			for(int e=0; e<manager.getNumConditions(); e++)
+		        				if(currComps.get(e).size()==1 ||(currComps.get(e).size()>1 && config.getIncludeJointEventsInBMUpdate())){
+		        					profiles.add(regionProfiles, e);
+		        					if(stable && stableProfiles!=null)
+		        						stableProfiles.add(regionProfiles, e);
+		        				}
 		        		
-		        		//Add the sum of noise responsibilities to this region
-		        		synchronized(noiseResp){ noiseResp.put(rr, noiseRSums);}
+		        		//Only non-zero components are returned by analyzeWindow, so they are recorded as the active components,
+		        		//along with the sum of noise responsibilities in this region
+		        		results[k] = new RegionResult(currComps, noiseRSums, null);
+		        		results[k].stable = stable;
                     }else{
                     	//Run ML assignment
                     	List<BindingEvent> windowBindingEvents = new ArrayList<BindingEvent>();
                     	for (Region w : windows){
                     		windowBindingEvents.addAll(  analyzeWindowML(w) );
                     	}
-                    	synchronized(bindingEvents){bindingEvents.addAll(windowBindingEvents);}
+                    	results[k] = new RegionResult(null, null, windowBindingEvents);
                     }
         		} catch(Exception e){
                     System.err.println("ERROR: Exception when analyzing region "+rr.toString());
                     e.printStackTrace(System.err);
                     System.exit(-1);
                 }
+        		double regionTime = (System.nanoTime()-regionStart)/1e9;
+        		busyTime+=regionTime;
+        		costModel.addObservation(regionFeatures[k], regionTime);
             }
 		}
 		
+		public double getBusyTime(){return busyTime;}
+		public long getExtrapolations(){return extrapolations;}
+		
 		/**
 		 * Train a BindingComponent EM over a given window
 		 * 
@@ -536,11 +964,13 @@ public class BindingMixture {
          * 
          * We also now initialize noise components, which are position-less and have a fixed (estimated) emission probability.
          *  
+		 * @param reg : potential region containing the window (key for the active components)
 		 * @param w
 		 * @return Pair of component lists (noise components and binding components) indexed by condition
 		 */
-		private Pair<List<NoiseComponent>, List<List<BindingComponent>>> analyzeWindowEM(Region w){
-			BindingEM EM = new BindingEM(config, manager, bindingManager, conditionBackgrounds, potRegFilter.getPotentialRegions().size());
+		private Pair<List<NoiseComponent>, List<List<BindingComponent>>> analyzeWindowEM(Region reg, Region w){
+			BindingEM EM = new BindingEM(config, manager, bindingManager, conditionBackgrounds, potRegFilter.getPotentialRegions().size(), workspace, modelTables);
+			EM.setConditionPool(emConditionPool);
 			List<List<BindingComponent>> bindingComponents=null;
 			List<NoiseComponent> noiseComponents=null;
 			List<List<BindingComponent>> nonZeroComponents = new ArrayList<List<BindingComponent>>();
@@ -558,28 +988,34 @@ public class BindingMixture {
 				currRegionSeq = seqgen.execute(w).toCharArray();
 				
 			
-			//Load signal data
-			List<List<StrandedBaseCount>> signals = loadSignalData(w);
-            if (signals==null)
-                return new Pair<List<NoiseComponent>, List<List<BindingComponent>>>(noiseComponents, nonZeroComponents);
-            //Load control data
-            List<List<StrandedBaseCount>> controls = loadControlData(w);
+			//Point the read views at this window
+			signalReads.setWindow(sigStore, regionIndex, w);
+			controlReads.setWindow(ctrlStore, regionIndex, w);
             
             //Initialize noise components
-            noiseComponents = initializeNoiseComponents(w, signals, controls);
+            noiseComponents = initializeNoiseComponents(w, signalReads, controlReads);
 
             //Initialize binding components
             if(uniformBindingComponents)
             	bindingComponents = initializeBindingComponentsUniformly(w, noiseComponents);
             else
-            	bindingComponents = initializeBindingComponentsFromAllConditionActive(w, noiseComponents, true);
+            	bindingComponents = initializeBindingComponentsFromAllConditionActive(regionId, w, noiseComponents, true, config.useWarmStartEM());
+            EM.setWarmStart(!uniformBindingComponents && warmStarted);
             
             //Motif prior
             String seq = config.getFindingMotifs() ? motifFinder.getSeq(w):null;
             double[][] motifPrior = config.getFindingMotifs() ? motifFinder.scanRegionWithMotifs(w, seq) : null;
             
             //EM learning: resulting binding components list will only contain non-zero components
-            nonZeroComponents = EM.train(signals, w, noiseComponents, bindingComponents, numBindingComponents, motifPrior, trainingRound, plotSubReg, currRegionSeq);
+            nonZeroComponents = EM.train(signalReads, w, noiseComponents, bindingComponents, numBindingComponents, motifPrior, trainingRound, plotSubReg, currRegionSeq);
+            extrapolations += EM.getExtrapolations();
+            
+            //Add read profiles of the components that may be used in the binding model update (while the responsibilities are still in the workspace)
+            if(regionProfiles!=null)
+            	for(ExperimentCondition cond : manager.getConditions())
+            		for(BindingComponent bc : nonZeroComponents.get(cond.getIndex()))
+            			if(isBMUpdateCandidate(bc, reg, cond))
+            				EM.addComponentReadProfile(bc, cond.getIndex(), regionProfiles);
            
             return new Pair<List<NoiseComponent>, List<List<BindingComponent>>>(noiseComponents, nonZeroComponents);
         }//end of analyzeWindowEM method
@@ -591,7 +1027,7 @@ public class BindingMixture {
 		 * @return Pair of component lists (noise components and binding components) indexed by condition
 		 */
 		private List<BindingEvent> analyzeWindowML(Region w){
-			BindingMLAssignment ML = new BindingMLAssignment(econfig, evconfig, config, manager,bindingManager, conditionBackgrounds, potRegFilter.getPotentialRegions().size());
+			BindingMLAssignment ML = new BindingMLAssignment(econfig, evconfig, config, manager,bindingManager, conditionBackgrounds, potRegFilter.getPotentialRegions().size(), workspace, modelTables);
 			List<BindingComponent> bindingComponents=null;
 			List<NoiseComponent> noiseComponents=null;
 			List<BindingEvent> currEvents = new ArrayList<BindingEvent>(); 
@@ -601,15 +1037,12 @@ public class BindingMixture {
 			if(hasPermChipSeq && seqgen!=null)
 				currRegionSeq = seqgen.execute(w).toCharArray();
 			
-			//Load signal data
-			List<List<StrandedBaseCount>> signals = loadSignalData(w);
-            if (signals==null)
-                return currEvents;
-            //Load control data
-            List<List<StrandedBaseCount>> controls = loadControlData(w);
+			//Point the read views at this window
+			signalReads.setWindow(sigStore, regionIndex, w);
+			controlReads.setWindow(ctrlStore, regionIndex, w);
             
             //Initialize noise components
-            noiseComponents = initializeNoiseComponents(w, signals, controls);
+            noiseComponents = initializeNoiseComponents(w, signalReads, controlReads);
 
             
             //Configurations seen in another condition
@@ -618,7 +1051,7 @@ public class BindingMixture {
             for(ExperimentCondition cond : manager.getConditions()){
             	//Initialize binding components: shared configuration or condition-specific
             	if(config.getMLSharedComponentConfiguration()){
-            		bindingComponents = initializeBindingComponentsFromAllConditionActive(w, noiseComponents, false).get(cond.getIndex());
+            		bindingComponents = initializeBindingComponentsFromAllConditionActive(regionId, w, noiseComponents, false, false).get(cond.getIndex());
             	}else{
             		bindingComponents = initializeBindingComponentsFromOneConditionActive(w, noiseComponents.get(cond.getIndex()), cond.getIndex());
             	}
@@ -647,7 +1080,7 @@ public class BindingMixture {
     				seenConfigs.add(currCC);
     				
     				//ML assignment
-    				List<BindingEvent> condEvents = ML.assign(signals, controls, w, noiseComponents, bindingComponents, numComp, currRegionSeq);
+    				List<BindingEvent> condEvents = ML.assign(signalReads, controlReads, w, noiseComponents, bindingComponents, numComp, currRegionSeq);
     				for(BindingEvent be : condEvents)
     					if(config.getMLSharedComponentConfiguration())
     						setFoundInConditions(be, w);
@@ -688,52 +1121,71 @@ public class BindingMixture {
 		 */
 		private void setFoundInConditions(BindingEvent b, Region currReg){
 			for(int e=0; e<manager.getNumConditions(); e++)
-        		for(BindingComponent comp : activeComponents.get(currReg).get(e)){
-        			if(comp.getPosition() == b.getPoint().getLocation()){
+        		for(int i=activeComponents.getStart(e, regionId); i<activeComponents.getEnd(e, regionId); i++){
+        			if(activeComponents.getPosition(e, i) == b.getPoint().getLocation()){
         				b.setIsFoundInCondition(e, true);
         			}
         		}
 		}
 		
 		/**
-		 * Load all signal read hits in a region by condition. 
+		 * Split a window into independent read clusters.
+		 * 
+		 * No component can be in range of reads on both sides of a read-free gap that is wider than the span
+		 * of the binding models (2 x the largest distance in any model range), so the EM problems on either side
+		 * of such a gap are only coupled via the noise component. The window is cut at the midpoints of these gaps. 
+		 * The resulting sub-windows tile the window, so each gets a share of the expected noise in proportion to its width. 
 		 * 
 		 * @param w
-		 * @return List of List of StrandedBaseCounts, indexed by replicate index
+		 * @return sub-windows, in order
 		 */
-		private List<List<StrandedBaseCount>> loadSignalData(Region w){
-			List<List<StrandedBaseCount>> data = new ArrayList<List<StrandedBaseCount>>();
-			for(ExperimentCondition cond : manager.getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates())
-					data.add(new ArrayList<StrandedBaseCount>());
-			}
-			for(ExperimentCondition cond : manager.getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates()){
-					data.get(rep.getIndex()).addAll(rep.getSignal().getBases(w));
+		private List<Region> splitWindowAtGaps(Region w){
+			List<Region> clusters = new ArrayList<Region>();
+			int span=0;
+			for(BindingModelTable table : modelTables)
+				span = Math.max(span, 2*Math.max(Math.abs(table.getMin()), Math.abs(table.getMax())));
+			
+			//Pooled signal read positions
+			int numHits=0;
+			signalReads.setWindow(sigStore, regionIndex, w);
+			for(int x=0; x<manager.getReplicates().size(); x++)
+				numHits+=signalReads.getNumReads(x);
+			int[] hitPos = new int[numHits];
+			int h=0;
+			for(int x=0; x<manager.getReplicates().size(); x++)
+				for(int strand=0; strand<2; strand++)
+					for(int i=signalReads.getStart(x, strand==0); i<signalReads.getEnd(x, strand==0); i++)
+						hitPos[h++]=signalReads.getPosition(i);
+			Arrays.sort(hitPos);
+			
+			//Cut at the midpoints of wide gaps
+			int start = w.getStart();
+			for(h=1; h<numHits; h++){
+				if(hitPos[h]-hitPos[h-1] > span){
+					int cut = (hitPos[h]+hitPos[h-1])/2;
+					clusters.add(new Region(w.getGenome(), w.getChrom(), start, cut));
+					start = cut+1;
 				}
 			}
-			return data;
+			clusters.add(new Region(w.getGenome(), w.getChrom(), start, w.getEnd()));
+			return clusters;
 		}
 		
 		/**
-		 * Load all control read hits in a region by condition. 
-		 * 
-		 * @param w
-		 * @return List of List of StrandedBaseCounts, indexed by replicate index
+		 * Check whether a component may be used in the binding model update (the joint event filter is applied per region in run())
+		 * @param bc
+		 * @param reg : potential region
+		 * @param cond
 		 */
-		private List<List<StrandedBaseCount>> loadControlData(Region w){
-			List<List<StrandedBaseCount>> data = new ArrayList<List<StrandedBaseCount>>();
-			for(ExperimentCondition cond : manager.getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates())
-					data.add(new ArrayList<StrandedBaseCount>());
+		private boolean isBMUpdateCandidate(BindingComponent bc, Region reg, ExperimentCondition cond){
+			double currAlpha = (double)conditionBackgrounds.get(cond).getMaxThreshold('.');
+			//Component must not be at the edge of the region 
+			if((bc.getPosition()-reg.getStart()>bindingManager.getMaxInfluenceRange(cond)/2) && (reg.getEnd()-bc.getPosition()>bindingManager.getMaxInfluenceRange(cond)/2)){
+				//Arbitrary minimum read support for BM components
+				if(bc.getSumResponsibility()>(config.getMinComponentReadFactorForBM()*currAlpha))
+					return true;
 			}
-			for(ExperimentCondition cond : manager.getConditions()){
-				for(ControlledExperiment rep : cond.getReplicates()){
-					if(rep.hasControl())
-						data.get(rep.getIndex()).addAll(rep.getControl().getBases(w));
-				}
-			}
-			return data;
+			return false;
 		}
 		
 		/**
@@ -778,29 +1230,34 @@ public class BindingMixture {
          * 		i.e. not just the conditions in which those active components were active. Also adds in 
          * 		extra components flanking the active locations in case the binding distribution update
          * 		has made more joint events separable. If no components exist, a rescue component is added. 
+         * 		If warmStart is set, each condition's components keep their pi values from the last round of training,
+         * 		and the other components (flanking, or active only in other conditions) start at a small pi. 
          *
-         * @param currReg
+         * @param regId : test region index of the potential region (indexes the active components)
+         * @param currReg : window within the potential region
          */
-        private List<List<BindingComponent>> initializeBindingComponentsFromAllConditionActive(Region currReg, List<NoiseComponent> noise, boolean addFlanking){
+        private List<List<BindingComponent>> initializeBindingComponentsFromAllConditionActive(int regId, Region currReg, List<NoiseComponent> noise, boolean addFlanking, boolean warmStart){
         	//Initialize component positions with active locations
         	List<Integer> componentPositions = new ArrayList<Integer>();
         	for(int e=0; e<manager.getNumConditions(); e++)
-        		for(BindingComponent comp : activeComponents.get(currReg).get(e)){
-        			if(!componentPositions.contains(comp.getPosition()) && comp.getPosition()>=currReg.getStart() && comp.getPosition()<currReg.getEnd())
-        				componentPositions.add(comp.getPosition());
+        		for(int i=activeComponents.getStart(e, regId); i<activeComponents.getEnd(e, regId); i++){
+        			int position = activeComponents.getPosition(e, i);
+        			if(!componentPositions.contains(position) && position>=currReg.getStart() && position<currReg.getEnd())
+        				componentPositions.add(position);
         			if(addFlanking){
-        				if(!componentPositions.contains(comp.getPosition()-config.getAddFlankingComponentSpacing())
-        						 && comp.getPosition()-config.getAddFlankingComponentSpacing()>=currReg.getStart())
-        					componentPositions.add(comp.getPosition()-config.getAddFlankingComponentSpacing());
-        				if(!componentPositions.contains(comp.getPosition()+config.getAddFlankingComponentSpacing())
-        						&& comp.getPosition()+config.getAddFlankingComponentSpacing()<currReg.getEnd())
-        					componentPositions.add(comp.getPosition()+config.getAddFlankingComponentSpacing());
+        				if(!componentPositions.contains(position-config.getAddFlankingComponentSpacing())
+        						 && position-config.getAddFlankingComponentSpacing()>=currReg.getStart())
+        					componentPositions.add(position-config.getAddFlankingComponentSpacing());
+        				if(!componentPositions.contains(position+config.getAddFlankingComponentSpacing())
+        						&& position+config.getAddFlankingComponentSpacing()<currReg.getEnd())
+        					componentPositions.add(position+config.getAddFlankingComponentSpacing());
         			}
         		}
 
         	numBindingComponents = componentPositions.size();
         	
         	//If no components exist in region, add one to the center to allow rescues
+        	warmStarted = warmStart && numBindingComponents>0;
         	if(numBindingComponents==0 && addFlanking){
         		componentPositions.add(currReg.getMidpoint().getLocation());
         		numBindingComponents++;
@@ -825,6 +1282,23 @@ public class BindingMixture {
         			currComp.uniformInit(emission);
     				components.get(e).add(currComp);
     			}
+	    		
+	    		//Warm start: carry over last round's pi values, and renormalize (the noise emission probability may have changed)
+	    		if(warmStarted){
+	    			HashMap<Integer, Double> lastPi = new HashMap<Integer, Double>();
+	    			for(int i=activeComponents.getStart(e, regId); i<activeComponents.getEnd(e, regId); i++)
+	    				lastPi.put(activeComponents.getPosition(e, i), activeComponents.getPi(e, i));
+	    			double totalPi=0;
+	    			for(BindingComponent comp : components.get(e)){
+	    				if(lastPi.containsKey(comp.getPosition()) && lastPi.get(comp.getPosition())>0)
+	    					comp.setPi(lastPi.get(comp.getPosition()));
+	    				else
+	    					comp.setPi(emission*config.WARM_START_NEW_COMP_PI);
+	    				totalPi+=comp.getPi();
+	    			}
+	    			for(BindingComponent comp : components.get(e))
+	    				comp.setPi(comp.getPi()*(1-noise.get(e).getPi())/totalPi);
+	    		}
     		}
         	return components; 
         }//end of initializeComponents method
@@ -840,9 +1314,10 @@ public class BindingMixture {
         private List<BindingComponent> initializeBindingComponentsFromOneConditionActive(Region currReg, NoiseComponent noise, int conditionIndex){
         	//Initialize component positions with active locations
         	List<Integer> componentPositions = new ArrayList<Integer>();
-        	for(BindingComponent comp : activeComponents.get(currReg).get(conditionIndex)){
-        		if(!componentPositions.contains(comp.getPosition()) && comp.getPosition()>=currReg.getStart() && comp.getPosition()<currReg.getEnd())
-        			componentPositions.add(comp.getPosition());
+        	for(int i=activeComponents.getStart(conditionIndex, regionId); i<activeComponents.getEnd(conditionIndex, regionId); i++){
+        		int position = activeComponents.getPosition(conditionIndex, i);
+        		if(!componentPositions.contains(position) && position>=currReg.getStart() && position<currReg.getEnd())
+        			componentPositions.add(position);
         	}
 
         	numBindingComponents = componentPositions.size();
@@ -872,24 +1347,18 @@ public class BindingMixture {
          *
          * @param currReg
          */
-        private List<NoiseComponent> initializeNoiseComponents(Region currReg, List<List<StrandedBaseCount>> sigHits, List<List<StrandedBaseCount>> ctrlHits){
+        private List<NoiseComponent> initializeNoiseComponents(Region currReg, WindowReads sigHits, WindowReads ctrlHits){
         	List<NoiseComponent> noise = new ArrayList<NoiseComponent>();
         	int numReps = manager.getReplicates().size();
         	double [] localSigRepCounts=new double [numReps];
         	double [] localCtrlRepCounts=new double [numReps];
         	
-        	//Calculate expected noise distributions
-        	double [][] distribs=new double[numReps][];
+        	//Expected noise distributions
+        	NoiseDistribution[] distribs = getNoiseDistributions(currReg, ctrlHits);
         	for(ExperimentCondition cond : manager.getConditions())
-        		for(ControlledExperiment rep : cond.getReplicates()){
-	    			if(rep.hasControl() && ctrlHits.get(rep.getIndex()).size()>0){
-	            		distribs[rep.getIndex()] = smoothNoiseDistribs(currReg, ctrlHits.get(rep.getIndex()));
-	            		localCtrlRepCounts[rep.getIndex()]=0;
-	            		for(StrandedBaseCount b : ctrlHits.get(rep.getIndex()))
-	            			localCtrlRepCounts[rep.getIndex()]+=b.getCount();
-	    			}else
-	    				distribs[rep.getIndex()] = null;
-	    		}
+        		for(ControlledExperiment rep : cond.getReplicates())
+	    			if(rep.hasControl() && ctrlHits.getNumReads(rep.getIndex())>0)
+	            		localCtrlRepCounts[rep.getIndex()]=ctrlHits.getCountTotal(rep.getIndex());
         	
         	//Initialize the noise component
         	for(int e=0; e<manager.getNumConditions(); e++){
@@ -900,9 +1369,10 @@ public class BindingMixture {
         		double sigCounts=0;
         		for(ControlledExperiment rep : cond.getReplicates()){
         			localSigRepCounts[rep.getIndex()]=0;
-        			for(StrandedBaseCount b : sigHits.get(rep.getIndex())){
-        				sigCounts+=b.getCount(); localSigRepCounts[rep.getIndex()]+=b.getCount();
-        			}
+        			for(int strand=0; strand<2; strand++)
+        				for(int i=sigHits.getStart(rep.getIndex(), strand==0); i<sigHits.getEnd(rep.getIndex(), strand==0); i++){
+        					sigCounts+=sigHits.getCount(i); localSigRepCounts[rep.getIndex()]+=sigHits.getCount(i);
+        				}
         		}
         		
         		//Calculate a local noise factor to check for expected over-representation of noise reads, as specified in the control.
@@ -912,7 +1382,7 @@ public class BindingMixture {
         		//producing more of the signal reads (and of course, the noise we are actually accounting for is in the signal channel). 
         		double localNoiseFactor = 0;
         		for(ControlledExperiment rep : cond.getReplicates()){
-        			if(rep.hasControl() && ctrlHits.get(rep.getIndex()).size()>0){
+        			if(rep.hasControl() && ctrlHits.getNumReads(rep.getIndex())>0){
         				localNoiseFactor+=(localCtrlRepCounts[rep.getIndex()]/(double)currReg.getWidth()) /
         								  (rep.getControl().getHitCount()/(double)currReg.getWidth())     *
         								  (localSigRepCounts[rep.getIndex()]/sigCounts); //over-rep x weight
@@ -939,43 +1409,25 @@ public class BindingMixture {
         }//end of initializeNoiseComponents method
       
         /**
-         * Smooth the distribution of the control reads over the window to make a probability distribution of noise over the region
+         * Get the noise distributions of a window: smoothed control read distributions, or null for uniform noise. 
+         * Distributions only depend on the window and its control reads, so they are reused from the last round if the window was analyzed then. 
          * @param currReg
-         * @param ctrlHits
-         * @return double array the same width as the region, containing probabilities normalized to sum to 1
+         * @param ctrlHits : control reads in the window
+         * @return NoiseDistributions, indexed by replicate
          */
-        private double[] smoothNoiseDistribs(Region currReg, List<StrandedBaseCount> ctrlHits){
-        	double [] distrib = new double[currReg.getWidth()];
-        	double [] counts = new double[currReg.getWidth()];
-        	//Pseudocounts for distrib
-        	for(int d=0; d<currReg.getWidth(); d++)
-        		counts[d]=1;
-        	//Add in count weights
-        	for(StrandedBaseCount hit : ctrlHits){
-        		int index = hit.getCoordinate()-currReg.getStart();
-        		if(index>=0 && index<currReg.getWidth())
-        			counts[index]+=hit.getCount();
-        	}
-        	
-        	//Smooth
-        	for(int i=0; i<currReg.getWidth(); i++){
-        		double sum=0, num=0;
-        		for(int s=i-(config.NOISE_DISTRIB_SMOOTHING_WIN/2); s<i+(config.NOISE_DISTRIB_SMOOTHING_WIN/2); s++){
-        			if(s>=0 && s<currReg.getWidth()){
-        				num++; sum+=counts[s];
-        			}
+        private NoiseDistribution[] getNoiseDistributions(Region currReg, WindowReads ctrlHits){
+        	NoiseDistribution[] distribs = noiseDistribCache.get(currReg);
+        	if(distribs==null){
+        		distribs = lastNoiseDistribCache.remove(currReg);
+        		if(distribs==null){
+        			distribs = new NoiseDistribution[manager.getReplicates().size()];
+        			for(ControlledExperiment rep : manager.getReplicates())
+        				if(rep.hasControl() && ctrlHits.getNumReads(rep.getIndex())>0)
+        					distribs[rep.getIndex()] = new NoiseDistribution(currReg, ctrlHits, rep.getIndex(), config.NOISE_DISTRIB_SMOOTHING_WIN);
         		}
-        		distrib[i] = sum/num;
+        		noiseDistribCache.put(currReg, distribs);
         	}
-        	
-        	//Normalize
-        	double total = 0;
-        	for(int d=0; d<currReg.getWidth(); d++)
-        		total+=distrib[d];
-        	for(int d=0; d<currReg.getWidth(); d++)
-        		distrib[d] = distrib[d]/total;
-        	
-        	return distrib;
+        	return distribs;
         }
 	}
 	
@@ -1024,6 +1476,23 @@ public class BindingMixture {
 		return newEvents;
 	}
 	
+	/**
+	 * RegionResult: the results of analyzing one region in a call to execute()
+	 */
+	protected class RegionResult{
+		List<List<BindingComponent>> components; //EM: active components, indexed by condition
+		Double[] noiseRSums; //EM: summed noise responsibilities, indexed by condition
+		List<BindingEvent> events; //ML: binding events
+		boolean stable=false; //EM: components are unchanged from the last round
+		boolean skipped=false; //EM: region was skipped as stable
+		
+		public RegionResult(List<List<BindingComponent>> comps, Double[] noise, List<BindingEvent> ev){
+			components = comps;
+			noiseRSums = noise;
+			events = ev;
+		}
+	}
+	
 	/**
 	 * ComponentConfiguration: represents a configuration of binding components as an array of positions.
 	 * @author Shaun Mahony
@@ -0,0 +1,207 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import org.seqcode.deepseq.events.BindingManager;
+import org.seqcode.deepseq.events.BindingModel;
+import org.seqcode.deepseq.events.BindingModelPerBase;
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.genome.sequence.SequenceUtils;
+
+/**
+ * BindingModelTable: a binding model compiled into flat primitive arrays.
+ *
+ * Tables are indexed by strand and by the offset of a position from a read (position - read coordinate),
+ * so that the EM and ML kernels can look up probabilities without computing strand-specific distances
+ * or calling into the BindingModel class hierarchy. For a read on strand s, the probability at position x is
+ * probs[s][x-hitPos-offsetStart[s]] if the index lies in [0, length), and the background probability otherwise.
+ *
+ * Per-base (permanganate ChIP-seq) models are additionally tabulated for each of the bases A,C,G,T
+ * (indexed by baseIndex()). Other characters are scored by the model itself. Window sequences are encoded once
+ * as table rows (encodeBases()); the reverse strand row of a position is the complement of its forward strand row,
+ * so no reverse-complemented copy of the sequence is needed.
+ * As elsewhere in BindingEM, models are assumed to be constant outside of [getMin(), getMax()].
+ *
+ * Tables are compiled once per training round (binding models are only updated between rounds), and
+ * are read-only afterwards, so they can be shared between threads.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class BindingModelTable {
+
+	public static final int PLUS=0, MINUS=1;	//Strand indices
+	public static final int NUM_BASES=4;		//A,C,G,T
+	public static final byte NO_BASE=-1;		//Encoded base without a table row (scored by the model)
+	public static final byte BASE_OUTSIDE=-2;	//Encoded preceding base of a read whose preceding position is outside the window
+
+	protected BindingModel model;
+	protected int min, max;			//Binding model range (distances)
+	protected int length;			//Number of tabulated offsets (max-min+1)
+	protected int[] offsetStart;	//First tabulated offset on each strand
+	protected double[][] probs;		//Probabilities, indexed by strand & offset-offsetStart
+	protected double[][] logProbs;	//Log probabilities, indexed by strand & offset-offsetStart
+	protected double bgProb;		//Probability outside the binding model range
+	protected double logBgProb;		//Log probability outside the binding model range
+	protected boolean perBase;		//Model is base-specific (permanganate ChIP-seq)
+	protected double[][][] baseProbs;		//Base-specific probabilities, indexed by strand, base & offset-offsetStart
+	protected double[][][] baseLogProbs;	//Base-specific log probabilities, indexed by strand, base & offset-offsetStart
+	protected double[] baseBgProbs;		//Base-specific probabilities outside the binding model range
+	protected double[] baseLogBgProbs;	//Base-specific log probabilities outside the binding model range
+
+	/**
+	 * Constructor: tabulate the binding model over its range
+	 * @param m
+	 */
+	public BindingModelTable(BindingModel m){
+		model = m;
+		min = model.getMin();
+		max = model.getMax();
+		length = max-min+1;
+		//Plus strand: dist=hitPos-x, so offsets run from -max to -min. Minus strand: dist=x-hitPos, offsets run from min to max.
+		offsetStart = new int[]{-max, min};
+		probs = new double[2][length];
+		logProbs = new double[2][length];
+		for(int k=0; k<length; k++){
+			probs[PLUS][k] = model.probability(max-k);
+			logProbs[PLUS][k] = model.logProbability(max-k);
+			probs[MINUS][k] = model.probability(min+k);
+			logProbs[MINUS][k] = model.logProbability(min+k);
+		}
+		bgProb = model.probability(max+1);
+		logBgProb = model.logProbability(max+1);
+
+		perBase = model instanceof BindingModelPerBase;
+		if(perBase){
+			BindingModelPerBase pbModel = (BindingModelPerBase)model;
+			char[] bases = new char[]{'A','C','G','T'};
+			baseProbs = new double[2][NUM_BASES][length];
+			baseLogProbs = new double[2][NUM_BASES][length];
+			baseBgProbs = new double[NUM_BASES];
+			baseLogBgProbs = new double[NUM_BASES];
+			for(int b=0; b<NUM_BASES; b++){
+				for(int k=0; k<length; k++){
+					baseProbs[PLUS][b][k] = pbModel.probability(max-k, bases[b]);
+					baseLogProbs[PLUS][b][k] = pbModel.logProbability(max-k, bases[b]);
+					baseProbs[MINUS][b][k] = pbModel.probability(min+k, bases[b]);
+					baseLogProbs[MINUS][b][k] = pbModel.logProbability(min+k, bases[b]);
+				}
+				baseBgProbs[b] = pbModel.probability(max+1, bases[b]);
+				baseLogBgProbs[b] = pbModel.logProbability(max+1, bases[b]);
+			}
+		}
+	}
+
+	//Accessors
+	public BindingModel getModel(){return model;}
+	public int getMin(){return min;}
+	public int getMax(){return max;}
+	public int getLength(){return length;}
+	public int getOffsetStart(int strand){return offsetStart[strand];}
+	public double[] getProbs(int strand){return probs[strand];}
+	public double[] getLogProbs(int strand){return logProbs[strand];}
+	public double getBgProb(){return bgProb;}
+	public double getLogBgProb(){return logBgProb;}
+	public boolean isPerBase(){return perBase;}
+	public double[] getBaseProbs(int strand, int base){return baseProbs[strand][base];}
+	public double[] getBaseLogProbs(int strand, int base){return baseLogProbs[strand][base];}
+	public double getBaseBgProb(int base){return baseBgProbs[base];}
+	public double getBaseLogBgProb(int base){return baseLogBgProbs[base];}
+
+	/**
+	 * Probability of a read at hitPos on the given strand, emitted by a component at position x
+	 */
+	public double probability(int strand, int hitPos, int x){
+		int k = x-hitPos-offsetStart[strand];
+		return (k>=0 && k<length) ? probs[strand][k] : bgProb;
+	}
+
+	/**
+	 * Base-specific probability (per-base models only). Bases without a table row are scored by the model.
+	 */
+	public double probability(int strand, int hitPos, int x, char base){
+		int b = baseIndex(base);
+		if(b==-1){
+			int dist = strand==PLUS ? hitPos-x : x-hitPos;
+			return ((BindingModelPerBase)model).probability(dist, base);
+		}
+		int k = x-hitPos-offsetStart[strand];
+		return (k>=0 && k<length) ? baseProbs[strand][b][k] : baseBgProbs[b];
+	}
+
+	/**
+	 * Base-specific log probability (per-base models only). Bases without a table row are scored by the model.
+	 */
+	public double logProbability(int strand, int hitPos, int x, char base){
+		int b = baseIndex(base);
+		if(b==-1){
+			int dist = strand==PLUS ? hitPos-x : x-hitPos;
+			return ((BindingModelPerBase)model).logProbability(dist, base);
+		}
+		int k = x-hitPos-offsetStart[strand];
+		return (k>=0 && k<length) ? baseLogProbs[strand][b][k] : baseLogBgProbs[b];
+	}
+
+	/**
+	 * Table row for a base, or -1 if the base is not tabulated
+	 */
+	public static int baseIndex(char base){
+		switch(base){
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	/**
+	 * Table row of the complementary base (A<->T, C<->G), or NO_BASE
+	 */
+	public static int complementIndex(int base){
+		return base<0 ? NO_BASE : NUM_BASES-1-base;
+	}
+	
+	/**
+	 * Encode a window sequence as table rows (NO_BASE for bases without a table row)
+	 * @param seq : window sequence
+	 * @param bases : output array, indexed by window offset
+	 */
+	public static void encodeBases(char[] seq, byte[] bases){
+		for(int k=0; k<seq.length; k++)
+			bases[k] = (byte)baseIndex(seq[k]);
+	}
+	
+	/**
+	 * Table row of the base preceding a read's 5' end (on the read's strand), as used by per-base models. 
+	 * Reads whose preceding position is outside [start, end) of the window return BASE_OUTSIDE. 
+	 * @param bases : encoded window sequence (see encodeBases())
+	 * @param winStart : window start coordinate
+	 * @param winWidth : window width
+	 * @param plusStr : read strand
+	 * @param pos : read 5' position
+	 */
+	public static int precedingBase(byte[] bases, int winStart, int winWidth, boolean plusStr, int pos){
+		int s = (plusStr ? pos-1 : pos+1) - winStart;
+		if(s<0 || s>=winWidth-1)
+			return BASE_OUTSIDE;
+		return plusStr ? bases[s] : complementIndex(bases[s]);
+	}
+	
+	/**
+	 * Base at a window offset on the given strand (used to score bases without a table row)
+	 */
+	public static char strandBase(char[] seq, boolean plusStr, int offset){
+		return plusStr ? seq[offset] : SequenceUtils.complementChar(seq[offset]);
+	}
+	
+	/**
+	 * Compile tables for every replicate's current binding model
+	 * @return tables indexed by replicate index
+	 */
+	public static BindingModelTable[] compile(ExperimentManager manager, BindingManager bindingManager){
+		BindingModelTable[] tables = new BindingModelTable[manager.getReplicates().size()];
+		for(ControlledExperiment rep : manager.getReplicates())
+			tables[rep.getIndex()] = new BindingModelTable(bindingManager.getBindingModel(rep));
+		return tables;
+	}
+}
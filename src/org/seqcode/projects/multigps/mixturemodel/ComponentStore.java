@@ -0,0 +1,194 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ComponentStore: the active binding components of every test region, stored in primitive columns.
+ *
+ * Regions are identified by their index in the test region list. For each condition, the components of all regions
+ * are stored in one set of columns (position, pi, sum of responsibilities, index), with each region's components
+ * in a contiguous block. Each region also has flags and per-condition noise responsibilities.
+ * Scans over all components (motif-finding, global noise, output) run over the columns in region order,
+ * and no BindingComponent objects are kept between rounds.
+ *
+ * Blocks are appended in the order that regions are set, so a store is filled once (e.g. in one training round)
+ * and then only read. Reading is thread-safe once filling is done.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class ComponentStore {
+
+	public static final byte ANALYZED = 1; //Region has been analyzed in an EM round
+	public static final byte STABLE = 2;   //Region's components were unchanged in the last round in which it was analyzed
+
+	protected int numRegions, numConds;
+	protected byte[] flags;			//Indexed by region
+	protected double[] noiseResp;	//Sum of noise responsibilities, indexed by region*numConds+condition
+	protected int[][] blockStarts;	//Index of each region's first component, indexed by condition, then region
+	protected int[][] blockSizes;	//Number of components in each region, indexed by condition, then region
+	protected int[] sizes;			//Number of components, indexed by condition
+	protected int[][] positions;	//Component positions, indexed by condition, then component
+	protected double[][] pis;		//Component pi values
+	protected double[][] resps;		//Component responsibility sums
+	protected int[][] indices;		//Component indices
+
+	/**
+	 * Constructor: an empty store (no region analyzed)
+	 * @param numRegions : number of test regions
+	 * @param numConds : number of conditions
+	 */
+	public ComponentStore(int numRegions, int numConds){
+		this.numRegions = numRegions;
+		this.numConds = numConds;
+		flags = new byte[numRegions];
+		noiseResp = new double[numRegions*numConds];
+		blockStarts = new int[numConds][numRegions];
+		blockSizes = new int[numConds][numRegions];
+		sizes = new int[numConds];
+		int capacity = Math.max(16, numRegions);
+		positions = new int[numConds][capacity];
+		pis = new double[numConds][capacity];
+		resps = new double[numConds][capacity];
+		indices = new int[numConds][capacity];
+	}
+
+	//Accessors
+	public int getNumRegions(){return numRegions;}
+	public boolean isAnalyzed(int r){return (flags[r] & ANALYZED)!=0;}
+	public boolean isStable(int r){return (flags[r] & STABLE)!=0;}
+	public byte getFlags(int r){return flags[r];}
+	public double getNoiseResp(int r, int c){return noiseResp[r*numConds+c];}
+	public int getNumComponents(int c){return sizes[c];}
+	public int getStart(int c, int r){return blockStarts[c][r];}
+	public int getEnd(int c, int r){return blockStarts[c][r]+blockSizes[c][r];}
+	public int getPosition(int c, int i){return positions[c][i];}
+	public double getPi(int c, int i){return pis[c][i];}
+	public double getSumResponsibility(int c, int i){return resps[c][i];}
+	public int getIndex(int c, int i){return indices[c][i];}
+
+	/**
+	 * Number of components in a region, summed over conditions
+	 * @param r
+	 * @return
+	 */
+	public int getNumComponentsInRegion(int r){
+		int n=0;
+		for(int c=0; c<numConds; c++)
+			n+=blockSizes[c][r];
+		return n;
+	}
+
+	/**
+	 * Number of regions flagged as stable
+	 * @return
+	 */
+	public int getNumStable(){
+		int n=0;
+		for(int r=0; r<numRegions; r++)
+			if(isStable(r))
+				n++;
+		return n;
+	}
+
+	/**
+	 * Start a region's blocks (empty). Its components are then added with addComponent() before another region is started.
+	 * @param r
+	 * @param f : region flags
+	 * @param noise : sum of noise responsibilities, indexed by condition
+	 */
+	public void startRegion(int r, byte f, double[] noise){
+		flags[r] = f;
+		for(int c=0; c<numConds; c++){
+			blockStarts[c][r] = sizes[c];
+			blockSizes[c][r] = 0;
+			noiseResp[r*numConds+c] = noise[c];
+		}
+	}
+
+	/**
+	 * Add a component to the last started region
+	 * @param r
+	 * @param c : condition
+	 * @param position
+	 * @param pi
+	 * @param resp : sum of responsibilities
+	 * @param index
+	 */
+	public void addComponent(int r, int c, int position, double pi, double resp, int index){
+		int i = sizes[c];
+		if(i==positions[c].length){
+			int capacity = Math.max(16, positions[c].length*2); //A trimmed store may have empty columns
+			positions[c] = Arrays.copyOf(positions[c], capacity);
+			pis[c] = Arrays.copyOf(pis[c], capacity);
+			resps[c] = Arrays.copyOf(resps[c], capacity);
+			indices[c] = Arrays.copyOf(indices[c], capacity);
+		}
+		positions[c][i] = position;
+		pis[c][i] = pi;
+		resps[c][i] = resp;
+		indices[c][i] = index;
+		sizes[c]++;
+		blockSizes[c][r]++;
+	}
+
+	/**
+	 * Set a region's components from the EM results
+	 * @param r
+	 * @param comps : components, indexed by condition
+	 * @param noise : sum of noise responsibilities, indexed by condition
+	 * @param stable
+	 */
+	public void setRegion(int r, List<List<BindingComponent>> comps, Double[] noise, boolean stable){
+		double[] n = new double[numConds];
+		for(int c=0; c<numConds; c++)
+			n[c] = noise[c];
+		startRegion(r, (byte)(ANALYZED | (stable ? STABLE : 0)), n);
+		for(int c=0; c<numConds; c++)
+			for(BindingComponent comp : comps.get(c))
+				addComponent(r, c, comp.getPosition(), comp.getPi(), comp.getSumResponsibility(), comp.getIndex());
+	}
+
+	/**
+	 * Copy a region's components from another store
+	 * @param src
+	 * @param r
+	 * @param f : region flags in this store
+	 */
+	public void copyRegion(ComponentStore src, int r, byte f){
+		double[] n = new double[numConds];
+		for(int c=0; c<numConds; c++)
+			n[c] = src.getNoiseResp(r, c);
+		startRegion(r, f, n);
+		for(int c=0; c<numConds; c++)
+			for(int i=src.getStart(c, r); i<src.getEnd(c, r); i++)
+				addComponent(r, c, src.positions[c][i], src.pis[c][i], src.resps[c][i], src.indices[c][i]);
+	}
+
+	/**
+	 * Release unused column capacity (call once the store is filled)
+	 */
+	public void trim(){
+		for(int c=0; c<numConds; c++){
+			positions[c] = Arrays.copyOf(positions[c], sizes[c]);
+			pis[c] = Arrays.copyOf(pis[c], sizes[c]);
+			resps[c] = Arrays.copyOf(resps[c], sizes[c]);
+			indices[c] = Arrays.copyOf(indices[c], sizes[c]);
+		}
+	}
+
+	/**
+	 * Approximate heap size of the store, summed per column (allocated capacity, plus a 16 byte header per array)
+	 * @return bytes
+	 */
+	public long getBytes(){
+		final long HEADER=16;
+		long bytes = (HEADER + flags.length) + (HEADER + 8L*noiseResp.length) + (HEADER + 4L*sizes.length);
+		for(int c=0; c<numConds; c++){
+			bytes += 2*HEADER + 4L*blockStarts[c].length + 4L*blockSizes[c].length;
+			bytes += 4*HEADER + (4L+8L+8L+4L)*positions[c].length; //positions, pis, resps & indices
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,240 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import java.util.Arrays;
+
+/**
+ * EMWorkspace: reusable working arrays for BindingEM and BindingMLAssignment.
+ *
+ * Each thread that trains or assigns binding components owns one workspace. Arrays are requested
+ * by slot and condition index, and are only reallocated when a window needs more room than any
+ * window seen before. The workspace therefore grows to the largest window analyzed and is then
+ * reused across regions and training rounds.
+ *
+ * Returned arrays may be longer than requested and are NOT cleared: callers must initialize
+ * every entry that they read.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class EMWorkspace {
+
+	protected int numConditions;
+	protected double[][][]   doubleBufs = new double[0][][];	//1D double arrays, indexed by slot & condition
+	protected float[][][]    floatBufs = new float[0][][];		//1D float arrays, indexed by slot & condition
+	protected int[][][]      intBufs = new int[0][][];			//1D int arrays, indexed by slot & condition
+	protected long[][][]     longBufs = new long[0][][];		//1D long arrays, indexed by slot & condition
+	protected boolean[][][]  booleanBufs = new boolean[0][][];	//1D boolean arrays, indexed by slot & condition
+	protected byte[][][]     byteBufs = new byte[0][][];		//1D byte arrays, indexed by slot & condition
+	protected double[][][][] matrixBufs = new double[0][][][];	//2D double arrays, indexed by slot & condition
+	protected float[][][][]  floatMatrixBufs = new float[0][][][];	//2D float arrays, indexed by slot & condition
+	protected long highWaterBytes=0;	//Bytes held in working arrays (arrays are never released, so this is also the maximum)
+
+	public EMWorkspace(int numConditions){
+		this.numConditions = numConditions;
+	}
+
+	//Accessors
+	public long getHighWaterBytes(){return highWaterBytes;}
+
+	/**
+	 * Get a double array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public double[] getDoubles(int slot, int c, int length){
+		if(slot>=doubleBufs.length)
+			doubleBufs = Arrays.copyOf(doubleBufs, slot+1);
+		if(doubleBufs[slot]==null)
+			doubleBufs[slot] = new double[numConditions][];
+		double[] buf = doubleBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new double[newCapacity(oldLength, length)];
+			account(8, oldLength, buf.length);
+			doubleBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a float array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public float[] getFloats(int slot, int c, int length){
+		if(slot>=floatBufs.length)
+			floatBufs = Arrays.copyOf(floatBufs, slot+1);
+		if(floatBufs[slot]==null)
+			floatBufs[slot] = new float[numConditions][];
+		float[] buf = floatBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new float[newCapacity(oldLength, length)];
+			account(4, oldLength, buf.length);
+			floatBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get an int array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public int[] getInts(int slot, int c, int length){
+		if(slot>=intBufs.length)
+			intBufs = Arrays.copyOf(intBufs, slot+1);
+		if(intBufs[slot]==null)
+			intBufs[slot] = new int[numConditions][];
+		int[] buf = intBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new int[newCapacity(oldLength, length)];
+			account(4, oldLength, buf.length);
+			intBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a long array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public long[] getLongs(int slot, int c, int length){
+		if(slot>=longBufs.length)
+			longBufs = Arrays.copyOf(longBufs, slot+1);
+		if(longBufs[slot]==null)
+			longBufs[slot] = new long[numConditions][];
+		long[] buf = longBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new long[newCapacity(oldLength, length)];
+			account(8, oldLength, buf.length);
+			longBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a boolean array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public boolean[] getBooleans(int slot, int c, int length){
+		if(slot>=booleanBufs.length)
+			booleanBufs = Arrays.copyOf(booleanBufs, slot+1);
+		if(booleanBufs[slot]==null)
+			booleanBufs[slot] = new boolean[numConditions][];
+		boolean[] buf = booleanBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new boolean[newCapacity(oldLength, length)];
+			account(1, oldLength, buf.length);
+			booleanBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a byte array with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param length : required length
+	 */
+	public byte[] getBytes(int slot, int c, int length){
+		if(slot>=byteBufs.length)
+			byteBufs = Arrays.copyOf(byteBufs, slot+1);
+		if(byteBufs[slot]==null)
+			byteBufs[slot] = new byte[numConditions][];
+		byte[] buf = byteBufs[slot][c];
+		if(buf==null || buf.length<length){
+			int oldLength = buf==null ? 0 : buf.length;
+			buf = new byte[newCapacity(oldLength, length)];
+			account(1, oldLength, buf.length);
+			byteBufs[slot][c] = buf;
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a 2D double array with at least the requested number of rows, each with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param rows : required number of rows
+	 * @param cols : required row length
+	 */
+	public double[][] getDoubles(int slot, int c, int rows, int cols){
+		if(slot>=matrixBufs.length)
+			matrixBufs = Arrays.copyOf(matrixBufs, slot+1);
+		if(matrixBufs[slot]==null)
+			matrixBufs[slot] = new double[numConditions][][];
+		double[][] buf = matrixBufs[slot][c];
+		if(buf==null || buf.length<rows){
+			int oldRows = buf==null ? 0 : buf.length;
+			double[][] newBuf = new double[newCapacity(oldRows, rows)][];
+			for(int j=0; j<oldRows; j++)
+				newBuf[j] = buf[j];
+			buf = newBuf;
+			matrixBufs[slot][c] = buf;
+		}
+		for(int j=0; j<rows; j++){
+			if(buf[j]==null || buf[j].length<cols){
+				int oldLength = buf[j]==null ? 0 : buf[j].length;
+				buf[j] = new double[newCapacity(oldLength, cols)];
+				account(8, oldLength, buf[j].length);
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Get a 2D float array with at least the requested number of rows, each with at least the requested length
+	 * @param slot : caller-defined buffer identifier
+	 * @param c : condition index
+	 * @param rows : required number of rows
+	 * @param cols : required row length
+	 */
+	public float[][] getFloats(int slot, int c, int rows, int cols){
+		if(slot>=floatMatrixBufs.length)
+			floatMatrixBufs = Arrays.copyOf(floatMatrixBufs, slot+1);
+		if(floatMatrixBufs[slot]==null)
+			floatMatrixBufs[slot] = new float[numConditions][][];
+		float[][] buf = floatMatrixBufs[slot][c];
+		if(buf==null || buf.length<rows){
+			int oldRows = buf==null ? 0 : buf.length;
+			float[][] newBuf = new float[newCapacity(oldRows, rows)][];
+			for(int j=0; j<oldRows; j++)
+				newBuf[j] = buf[j];
+			buf = newBuf;
+			floatMatrixBufs[slot][c] = buf;
+		}
+		for(int j=0; j<rows; j++){
+			if(buf[j]==null || buf[j].length<cols){
+				int oldLength = buf[j]==null ? 0 : buf[j].length;
+				buf[j] = new float[newCapacity(oldLength, cols)];
+				account(4, oldLength, buf[j].length);
+			}
+		}
+		return buf;
+	}
+
+	/**
+	 * Grow by at least half of the current capacity, so that slowly increasing window sizes don't reallocate every time
+	 */
+	private int newCapacity(int oldLength, int length){
+		return Math.max(length, oldLength+(oldLength>>1));
+	}
+
+	/**
+	 * Update the high-water mark after replacing an array
+	 */
+	private void account(int bytesPerEntry, int oldLength, int newLength){
+		highWaterBytes += (long)bytesPerEntry*(newLength-oldLength);
+	}
+}
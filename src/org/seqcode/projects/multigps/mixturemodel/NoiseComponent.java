@@ -15,33 +15,29 @@ import org.seqcode.genome.location.Region;
 public class NoiseComponent {
 	protected double pi; //emission probability
 	protected double sum_resp=0; //sum of responsibilities
-	protected double[][] distrib=null; //Expected distribution of noise reads, defined per replicate
+	protected NoiseDistribution[] distrib=null; //Expected distribution of noise reads, defined per replicate (null: uniform)
 	protected boolean uniformDistrib=true;
 	protected Region reg;
 	protected int regionWidth=0;
+	protected double uniformProb; //Probability of a noise read at any base under the uniform distribution
 	
 	/**
 	 * Constructor
 	 * @param emissionProb: probability of noise in the examined region (fixed)
-	 * @param noiseDistrib: relative distribution of noise in the region (must be same length as width of region, indexed by replicate)
+	 * @param noiseDistrib: relative distribution of noise in the region (must be same width as the region, indexed by replicate, null for uniform)
 	 * @param reg: region that this noise component is being used in (only required for the width and the starting coordinate) 
 	 */
-	public NoiseComponent(double emissionProb, double[][] noiseDistrib, Region r, int numReps){
+	public NoiseComponent(double emissionProb, NoiseDistribution[] noiseDistrib, Region r, int numReps){
 		pi = emissionProb; 
 		reg = r;
 		regionWidth=reg.getWidth();
-		distrib = new double[numReps][];
+		uniformProb = 1/(double)regionWidth;
+		distrib = new NoiseDistribution[numReps];
 		for(int h=0; h<numReps; h++){
-			if(noiseDistrib[h]==null){
-				uniformDistrib=true;
-				distrib[h] = new double[r.getWidth()];
-				double w = 1/(double)regionWidth;
-				for(int i=0; i<regionWidth; i++)
-					distrib[h][i]=w;
-			}else{
+			if(noiseDistrib[h]!=null){
 				uniformDistrib=false;
 				distrib[h] = noiseDistrib[h];
-				if(distrib[h].length!=regionWidth){
+				if(distrib[h].getWidth()!=regionWidth){
 					System.err.println("Noise distribution in "+reg+" is not appropriate width."); System.exit(1);
 				}
 			}
@@ -56,27 +52,20 @@ public class NoiseComponent {
 	
 	//Scoring functions
 	public double scoreHit(ReadHit h, int rep){
-		int i = h.getFivePrime()-reg.getStart();
-		if(i<0){i=0;}
-		else if(i>=regionWidth){i=regionWidth;}
-		return distrib[rep][i];
+		return score(h.getFivePrime()-reg.getStart(), rep);
 	}
 	public double scoreBase(StrandedBaseCount b, int rep){
-		int i= b.getCoordinate()-reg.getStart();
-		if(i<0){i=0;}
-		else if(i>=regionWidth){i=regionWidth;}
-		return distrib[rep][i];
+		return score(b.getCoordinate()-reg.getStart(), rep);
 	}
 	public double scorePosition(int pos, int rep){
-		int i = pos-reg.getStart();
-		if(i<0){i=0;}
-		else if(i>=regionWidth){i=regionWidth;}
-		return distrib[rep][i];
+		return score(pos-reg.getStart(), rep);
 	}
 	public double score(int i, int rep){
+		if(distrib[rep]==null)
+			return uniformProb;
 		if(i<0){i=0;}
-		else if(i>=regionWidth){i=regionWidth;}
-		return distrib[rep][i];
+		else if(i>=regionWidth){i=regionWidth-1;}
+		return distrib[rep].probability(i);
 	}
 	
 	public String toString(){
@@ -84,8 +73,11 @@ public class NoiseComponent {
 	}
 	public String distribString(){
 		String ds = new String();
-		for(int d=0; d<regionWidth; d++)
-			ds = ds+distrib[d]+"\n";
+		for(int d=0; d<regionWidth; d++){
+			for(int h=0; h<distrib.length; h++)
+				ds = ds+(h>0 ? "\t" : "")+score(d, h);
+			ds = ds+"\n";
+		}
 		return ds;
 	}
 }
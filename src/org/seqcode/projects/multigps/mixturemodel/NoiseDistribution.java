@@ -0,0 +1,111 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import org.seqcode.genome.location.Region;
+
+/**
+ * NoiseDistribution: the expected distribution of noise reads over a window, estimated from one replicate's control reads.
+ *
+ * Each base gets a pseudocount of 1 plus its control read weights. The distribution is the moving average of these counts
+ * (over a window of the given smoothing width, truncated at the ends), normalized to sum to 1 over the window.
+ * Only the control reads and their cumulative weights are stored: the moving average at a base is the number of bases in its
+ * smoothing window plus the control weight in that window (found with two binary searches), so no per-base arrays are kept.
+ * The normalizing total is summed over bases once, in O(width + reads) using a sliding pair of read pointers.
+ *
+ * Read-only after construction, so distributions can be cached across rounds and shared between threads.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class NoiseDistribution {
+
+	protected int start;			//Window start coordinate
+	protected int width;			//Window width
+	protected int halfWin;			//Half of the smoothing window
+	protected int[] offsets;		//Control read offsets from the window start (sorted)
+	protected double[] cumCounts;	//Cumulative control read weights: cumCounts[i] = total weight of reads before index i
+	protected double total;			//Sum of the unnormalized moving averages over the window
+
+	/**
+	 * Constructor
+	 * @param w : window
+	 * @param ctrlHits : control reads (the view must be set to the window)
+	 * @param repIndex : replicate
+	 * @param smoothingWin : smoothing window width
+	 */
+	public NoiseDistribution(Region w, WindowReads ctrlHits, int repIndex, int smoothingWin){
+		start = w.getStart();
+		width = w.getWidth();
+		halfWin = smoothingWin/2;
+
+		//Merge the strands into one sorted list of read offsets
+		int n = ctrlHits.getNumReads(repIndex);
+		offsets = new int[n];
+		cumCounts = new double[n+1];
+		int p = ctrlHits.getStart(repIndex, true), pEnd = ctrlHits.getEnd(repIndex, true);
+		int m = ctrlHits.getStart(repIndex, false), mEnd = ctrlHits.getEnd(repIndex, false);
+		for(int i=0; i<n; i++){
+			int x;
+			if(m>=mEnd || (p<pEnd && ctrlHits.getPosition(p)<=ctrlHits.getPosition(m)))
+				x = p++;
+			else
+				x = m++;
+			offsets[i] = ctrlHits.getPosition(x)-start;
+			cumCounts[i+1] = cumCounts[i]+ctrlHits.getCount(x);
+		}
+
+		//Sum the moving averages (reads in [lo,hi) are tracked with two pointers as the smoothing window slides)
+		total=0;
+		int rLo=0, rHi=0;
+		for(int i=0; i<width; i++){
+			int lo = Math.max(0, i-halfWin), hi = Math.min(width, i+halfWin);
+			while(rLo<n && offsets[rLo]<lo) rLo++;
+			while(rHi<n && offsets[rHi]<hi) rHi++;
+			total += smoothedCount(lo, hi, rLo, rHi);
+		}
+	}
+
+	//Accessors
+	public int getWidth(){return width;}
+	public int getNumReads(){return offsets.length;}
+	public double getCountTotal(){return cumCounts[offsets.length];}
+
+	/**
+	 * Probability of a noise read at a window offset
+	 * @param i : offset from the window start (0 <= i < width)
+	 * @return
+	 */
+	public double probability(int i){
+		int lo = Math.max(0, i-halfWin), hi = Math.min(width, i+halfWin);
+		return smoothedCount(lo, hi, lowerBound(lo), lowerBound(hi))/total;
+	}
+
+	/**
+	 * Moving average of (pseudocount + control weight) over the bases in [lo,hi)
+	 * @param lo : first base
+	 * @param hi : base after the last
+	 * @param rLo : index of the first read at or after lo
+	 * @param rHi : index of the first read at or after hi
+	 * @return
+	 */
+	protected double smoothedCount(int lo, int hi, int rLo, int rHi){
+		double num = hi-lo;
+		return (num + (cumCounts[rHi]-cumCounts[rLo]))/num;
+	}
+
+	/**
+	 * Index of the first read with offset >= x
+	 * @param x
+	 * @return
+	 */
+	protected int lowerBound(int x){
+		int from=0, to=offsets.length;
+		while(from<to){
+			int mid = (from+to)>>>1;
+			if(offsets[mid]<x)
+				from=mid+1;
+			else
+				to=mid;
+		}
+		return from;
+	}
+}
@@ -0,0 +1,131 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import java.util.Arrays;
+
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentCondition;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+
+/**
+ * ReadProfileAccumulator: summed read profiles of binding components, used to update the binding models.
+ *
+ * A component's read profile is the responsibility-weighted read count at each strand-specific distance from the
+ * component position. Profiles of the components that are eligible for the binding model update are added here
+ * at the end of each window's EM, so they are never stored on the components themselves.
+ * Accumulators are not thread-safe: each thread slot owns one, and they are merged once per training round.
+ * Weights are summed in fixed point, so that the merged profiles do not depend on the order in which 
+ * threads analyzed the regions (floating point sums do), and parallel runs give identical binding models.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class ReadProfileAccumulator {
+
+	protected static final double FIXED_POINT_SCALE = 4294967296.0; //2^32 fixed point units per read
+
+	protected int width;				//Profile width
+	protected int center;				//Profile index of distance 0
+	protected int[] repCondition;		//Condition index of each replicate
+	protected long[][] profilePlus;		//Summed + strand profiles (fixed point), indexed by replicate & distance+center
+	protected long[][] profileMinus;	//Summed - strand profiles (fixed point), indexed by replicate & distance+center
+	protected int[] numComponents;		//Number of components added, indexed by condition
+
+	/**
+	 * Constructor
+	 * @param manager
+	 * @param width : profile width (distances from -width/2 to width/2-1 are recorded)
+	 */
+	public ReadProfileAccumulator(ExperimentManager manager, int width){
+		this.width = width;
+		center = width/2;
+		int numReps = manager.getReplicates().size();
+		repCondition = new int[numReps];
+		for(ExperimentCondition cond : manager.getConditions())
+			for(ControlledExperiment rep : cond.getReplicates())
+				repCondition[rep.getIndex()] = cond.getIndex();
+		profilePlus = new long[numReps][width];
+		profileMinus = new long[numReps][width];
+		numComponents = new int[manager.getNumConditions()];
+	}
+
+	//Accessors
+	public int getWidth(){return width;}
+	public int getCenter(){return center;}
+	public double[] getProfilePlus(int repIndex){return toDouble(profilePlus[repIndex]);}
+	public double[] getProfileMinus(int repIndex){return toDouble(profileMinus[repIndex]);}
+	public int getNumComponents(int condIndex){return numComponents[condIndex];}
+
+	/**
+	 * Add a weighted read to a replicate's profiles
+	 * @param repIndex
+	 * @param plusStr : read strand
+	 * @param dist : strand-specific distance from the read to the component position
+	 * @param weight : responsibility x read count
+	 */
+	public void addRead(int repIndex, boolean plusStr, int dist, double weight){
+		int k = dist+center;
+		if(k>=0 && k<width){
+			long w = Math.round(weight*FIXED_POINT_SCALE);
+			if(plusStr)
+				profilePlus[repIndex][k]+=w;
+			else
+				profileMinus[repIndex][k]+=w;
+		}
+	}
+
+	/**
+	 * Count a component whose reads have been added
+	 * @param condIndex
+	 */
+	public void addComponent(int condIndex){
+		numComponents[condIndex]++;
+	}
+
+	/**
+	 * Add the profiles of one condition from another accumulator
+	 * @param other
+	 * @param condIndex
+	 */
+	public void add(ReadProfileAccumulator other, int condIndex){
+		for(int r=0; r<repCondition.length; r++)
+			if(repCondition[r]==condIndex){
+				for(int k=0; k<width; k++){
+					profilePlus[r][k]+=other.profilePlus[r][k];
+					profileMinus[r][k]+=other.profileMinus[r][k];
+				}
+			}
+		numComponents[condIndex]+=other.numComponents[condIndex];
+	}
+
+	/**
+	 * Add all profiles from another accumulator
+	 * @param other
+	 */
+	public void add(ReadProfileAccumulator other){
+		for(int c=0; c<numComponents.length; c++)
+			add(other, c);
+	}
+
+	/**
+	 * Reset all profiles and counts
+	 */
+	public void clear(){
+		for(int r=0; r<repCondition.length; r++){
+			Arrays.fill(profilePlus[r], 0);
+			Arrays.fill(profileMinus[r], 0);
+		}
+		Arrays.fill(numComponents, 0);
+	}
+
+	/**
+	 * Convert a fixed point profile to read counts
+	 * @param profile
+	 * @return
+	 */
+	protected double[] toDouble(long[] profile){
+		double[] d = new double[width];
+		for(int k=0; k<width; k++)
+			d[k] = profile[k]/FIXED_POINT_SCALE;
+		return d;
+	}
+}
@@ -0,0 +1,189 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RegionCostModel: estimates the time needed to analyze a potential region, so that regions can be handed to
+ * the threads longest-first.
+ *
+ * The estimated cost is a weighted sum of region features: width, read count, and read count x component count
+ * (summed over conditions, this is the size of the EM responsibility arrays). The weights start from an uncalibrated
+ * guess in which only the relative order of region costs matters. After each round, the weights are refit by
+ * non-negative least squares to the times measured for each region in that round.
+ *
+ * Observations can be added from any thread; calibration and estimation should be called between rounds.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class RegionCostModel {
+
+	public static final int WIDTH=0, READS=1, READS_X_COMPONENTS=2;
+	public static final int NUM_FEATURES=3;
+	protected final int MIN_CALIBRATION_REGIONS=10; //Keep the previous weights if fewer regions were timed
+	protected double[] weights = new double[]{0.01, 1.0, 1.0}; //Uncalibrated guess: EM cost is dominated by reads x components
+	protected List<double[]> obsFeatures = new ArrayList<double[]>();
+	protected List<Double> obsTimes = new ArrayList<Double>();
+	protected boolean calibrated=false;
+
+	public RegionCostModel(){}
+
+	//Accessors
+	public double[] getWeights(){return weights;}
+	public boolean isCalibrated(){return calibrated;}
+
+	/**
+	 * Feature vector for a region
+	 * @param width : region width
+	 * @param readCounts : read counts, indexed by condition
+	 * @param numComponents : number of binding components, indexed by condition
+	 * @return
+	 */
+	public static double[] features(int width, double[] readCounts, int[] numComponents){
+		double[] f = new double[NUM_FEATURES];
+		f[WIDTH]=width;
+		for(int c=0; c<readCounts.length; c++){
+			f[READS]+=readCounts[c];
+			f[READS_X_COMPONENTS]+=readCounts[c]*numComponents[c];
+		}
+		return f;
+	}
+
+	/**
+	 * Estimated cost (in seconds, once calibrated)
+	 * @param f : features
+	 * @return
+	 */
+	public double estimate(double[] f){
+		double cost=0;
+		for(int j=0; j<NUM_FEATURES; j++)
+			cost+=weights[j]*f[j];
+		return cost;
+	}
+
+	/**
+	 * Record the measured time for a region
+	 * @param f : features
+	 * @param seconds
+	 */
+	public synchronized void addObservation(double[] f, double seconds){
+		obsFeatures.add(f);
+		obsTimes.add(seconds);
+	}
+
+	/**
+	 * Refit the weights to the observations recorded since the last calibration, and clear the observations.
+	 * The fit is an exact non-negative least squares: the solution is the unconstrained least squares fit over some subset
+	 * of the features, so with only NUM_FEATURES features every subset is fit and the best fit with no negative weights is kept.
+	 */
+	public synchronized void calibrate(){
+		if(obsTimes.size()>=MIN_CALIBRATION_REGIONS){
+			double[] best=null;
+			double bestResidual=Double.MAX_VALUE;
+			boolean[] active = new boolean[NUM_FEATURES];
+			for(int subset=1; subset<(1<<NUM_FEATURES); subset++){
+				for(int j=0; j<NUM_FEATURES; j++)
+					active[j] = (subset & (1<<j))!=0;
+				double[] w = fit(active);
+				if(w==null)
+					continue;
+				boolean feasible=true;
+				for(int j=0; j<NUM_FEATURES; j++)
+					if(w[j]<0)
+						feasible=false;
+				if(!feasible)
+					continue;
+				double res = residual(w);
+				if(res<bestResidual){
+					bestResidual=res;
+					best=w;
+				}
+			}
+			if(best!=null){
+				double sum=0;
+				for(int j=0; j<NUM_FEATURES; j++)
+					sum+=best[j];
+				if(sum>0){
+					weights=best;
+					calibrated=true;
+				}
+			}
+		}
+		obsFeatures.clear();
+		obsTimes.clear();
+	}
+
+	/**
+	 * Sum of squared differences between the observed times and the times estimated with the given weights
+	 * @param w
+	 * @return
+	 */
+	protected double residual(double[] w){
+		double res=0;
+		for(int i=0; i<obsTimes.size(); i++){
+			double[] f = obsFeatures.get(i);
+			double d = obsTimes.get(i);
+			for(int j=0; j<NUM_FEATURES; j++)
+				d-=w[j]*f[j];
+			res+=d*d;
+		}
+		return res;
+	}
+
+	/**
+	 * Least squares fit over the active features (normal equations, solved by Gaussian elimination).
+	 * Features are scaled by their maximum values to keep the system well conditioned.
+	 * @param active
+	 * @return weights (zero for inactive features), or null if the system is singular or no feature is active
+	 */
+	protected double[] fit(boolean[] active){
+		int[] idx = new int[NUM_FEATURES];
+		int n=0;
+		for(int j=0; j<NUM_FEATURES; j++)
+			if(active[j])
+				idx[n++]=j;
+		if(n==0)
+			return null;
+
+		double[] scale = new double[n];
+		for(double[] f : obsFeatures)
+			for(int a=0; a<n; a++)
+				scale[a] = Math.max(scale[a], Math.abs(f[idx[a]]));
+		for(int a=0; a<n; a++)
+			if(scale[a]==0)
+				return null;
+
+		//Augmented normal equations [X'X | X'y]
+		double[][] m = new double[n][n+1];
+		for(int i=0; i<obsTimes.size(); i++){
+			double[] f = obsFeatures.get(i);
+			double y = obsTimes.get(i);
+			for(int a=0; a<n; a++){
+				double xa = f[idx[a]]/scale[a];
+				for(int b=0; b<n; b++)
+					m[a][b]+=xa*f[idx[b]]/scale[b];
+				m[a][n]+=xa*y;
+			}
+		}
+		for(int p=0; p<n; p++){
+			int piv=p;
+			for(int a=p+1; a<n; a++)
+				if(Math.abs(m[a][p])>Math.abs(m[piv][p]))
+					piv=a;
+			if(Math.abs(m[piv][p])<1e-12)
+				return null;
+			double[] tmp=m[p]; m[p]=m[piv]; m[piv]=tmp;
+			for(int a=0; a<n; a++)
+				if(a!=p){
+					double r = m[a][p]/m[p][p];
+					for(int b=p; b<=n; b++)
+						m[a][b]-=r*m[p][b];
+				}
+		}
+		double[] w = new double[NUM_FEATURES];
+		for(int a=0; a<n; a++)
+			w[idx[a]] = (m[a][n]/m[a][a])/scale[a];
+		return w;
+	}
+}
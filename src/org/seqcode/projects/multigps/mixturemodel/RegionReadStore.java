@@ -0,0 +1,164 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.seqcode.deepseq.StrandedBaseCount;
+import org.seqcode.deepseq.experiments.ControlledExperiment;
+import org.seqcode.deepseq.experiments.ExperimentManager;
+import org.seqcode.genome.location.Region;
+import org.seqcode.projects.multigps.framework.ChromosomeReadCache;
+
+/**
+ * RegionReadStore: the signal or control reads in a list of potential regions, packed into primitive arrays.
+ *
+ * The store is built once from the experiment caches, and the EM & ML rounds then read from it directly
+ * (via WindowReads) instead of building new StrandedBaseCount lists for every region in every round.
+ * Reads are stored in blocks per region, replicate & strand. Within each block, reads are sorted by position,
+ * so the reads of any sub-window are a contiguous range of the block. Strands are implicit in the block.
+ *
+ * Read-only after construction, so a store can be shared between threads.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class RegionReadStore {
+
+	protected int numRegions;
+	protected int numReps;
+	protected int numReads=0;
+	protected int[] positions;		//Read positions
+	protected float[] counts;		//Read weights
+	protected int[] blockStarts;	//Index of the first read in each block, indexed by (region*numReps+rep)*2 + (0 for +, 1 for -). Last entry is numReads.
+
+	/**
+	 * Constructor: load the reads from the signal or control experiments
+	 * @param manager
+	 * @param regions
+	 * @param control : if true, load control reads (replicates without a control get empty blocks)
+	 */
+	public RegionReadStore(ExperimentManager manager, List<Region> regions, boolean control){
+		this(manager, regions, control, null);
+	}
+	
+	/**
+	 * Constructor: load the reads from a chromosome read cache
+	 * @param manager
+	 * @param regions
+	 * @param control : if true, load control reads (replicates without a control get empty blocks)
+	 * @param readCache : chromosome read cache holding the regions' chromosomes (if null, reads are loaded from the experiments)
+	 */
+	public RegionReadStore(ExperimentManager manager, List<Region> regions, boolean control, ChromosomeReadCache readCache){
+		numRegions = regions.size();
+		numReps = manager.getReplicates().size();
+		blockStarts = new int[numRegions*numReps*2+1];
+		positions = new int[Math.max(16, numRegions*numReps)];
+		counts = new float[positions.length];
+
+		for(int r=0; r<numRegions; r++){
+			Region reg = regions.get(r);
+			for(int x=0; x<numReps; x++){
+				ControlledExperiment rep = manager.getReplicates().get(x);
+				List<StrandedBaseCount> bases = null;
+				if(!control)
+					bases = readCache==null ? rep.getSignal().getBases(reg) : readCache.getBases(rep.getSignal(), reg);
+				else if(rep.hasControl())
+					bases = readCache==null ? rep.getControl().getBases(reg) : readCache.getBases(rep.getControl(), reg);
+				int block = (r*numReps+rep.getIndex())*2;
+				blockStarts[block] = numReads;
+				if(bases!=null)
+					addBlock(bases, '+');
+				blockStarts[block+1] = numReads;
+				if(bases!=null)
+					addBlock(bases, '-');
+			}
+		}
+		blockStarts[numRegions*numReps*2] = numReads;
+		positions = Arrays.copyOf(positions, numReads);
+		counts = Arrays.copyOf(counts, numReads);
+	}
+
+	//Accessors
+	public int getNumRegions(){return numRegions;}
+	public int getNumReads(){return numReads;}
+	public int getPosition(int i){return positions[i];}
+	public float getCount(int i){return counts[i];}
+	public long getBytes(){return 8L*numReads + 4L*blockStarts.length;}
+
+	/**
+	 * Index of the first read in a block
+	 * @param regionIndex
+	 * @param repIndex
+	 * @param plusStr
+	 * @return
+	 */
+	public int getBlockStart(int regionIndex, int repIndex, boolean plusStr){
+		return blockStarts[(regionIndex*numReps+repIndex)*2 + (plusStr ? 0 : 1)];
+	}
+
+	/**
+	 * Index after the last read in a block
+	 * @param regionIndex
+	 * @param repIndex
+	 * @param plusStr
+	 * @return
+	 */
+	public int getBlockEnd(int regionIndex, int repIndex, boolean plusStr){
+		return blockStarts[(regionIndex*numReps+repIndex)*2 + (plusStr ? 1 : 2)];
+	}
+
+	/**
+	 * Index of the first read in [from,to) with position >= pos (reads in a block are sorted by position)
+	 * @param from
+	 * @param to
+	 * @param pos
+	 * @return
+	 */
+	public int lowerBound(int from, int to, int pos){
+		while(from<to){
+			int mid = (from+to)>>>1;
+			if(positions[mid]<pos)
+				from=mid+1;
+			else
+				to=mid;
+		}
+		return from;
+	}
+
+	/**
+	 * Append the reads on one strand, keeping their order (reads are only sorted if the cache did not return them in order)
+	 * @param bases
+	 * @param strand
+	 */
+	protected void addBlock(List<StrandedBaseCount> bases, char strand){
+		int start = numReads;
+		boolean sorted=true;
+		for(StrandedBaseCount b : bases){
+			if(b.getStrand()!=strand)
+				continue;
+			if(numReads==positions.length){
+				positions = Arrays.copyOf(positions, positions.length*2);
+				counts = Arrays.copyOf(counts, counts.length*2);
+			}
+			if(numReads>start && b.getCoordinate()<positions[numReads-1])
+				sorted=false;
+			positions[numReads] = b.getCoordinate();
+			counts[numReads] = b.getCount();
+			numReads++;
+		}
+		if(!sorted){
+			//Stable sort by position
+			long[] keys = new long[numReads-start];
+			for(int i=start; i<numReads; i++)
+				keys[i-start] = ((long)positions[i]<<32) | (i-start);
+			Arrays.sort(keys);
+			int[] pos = Arrays.copyOfRange(positions, start, numReads);
+			float[] cnt = Arrays.copyOfRange(counts, start, numReads);
+			for(int i=0; i<keys.length; i++){
+				int k = (int)(keys[i] & 0xffffffffL);
+				positions[start+i] = pos[k];
+				counts[start+i] = cnt[k];
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.seqcode.projects.multigps.mixturemodel;
+
+import org.seqcode.genome.location.Region;
+
+/**
+ * WindowReads: the reads of a RegionReadStore that fall in a window of one potential region.
+ *
+ * The window is represented as a range of store indices per replicate & strand, so no read objects are created.
+ * For each replicate, + strand reads come before - strand reads, and reads are sorted by position within a strand,
+ * matching the order in which the experiment caches return reads.
+ * Views are not thread-safe: each thread owns its own, and moves them from window to window.
+ *
+ * @author Shaun Mahony
+ * @version	%I%, %G%
+ */
+public class WindowReads {
+
+	protected RegionReadStore store;
+	protected int numReps;
+	protected int[] starts;		//First store index in the window, indexed by rep*2 + (0 for +, 1 for -)
+	protected int[] ends;		//Store index after the window, indexed as starts
+
+	/**
+	 * Constructor
+	 * @param numReps : number of replicates
+	 */
+	public WindowReads(int numReps){
+		this.numReps = numReps;
+		starts = new int[numReps*2];
+		ends = new int[numReps*2];
+	}
+
+	/**
+	 * Point the view at a window
+	 * @param s : read store
+	 * @param regionIndex : index of the potential region in the store
+	 * @param w : window (within the potential region)
+	 */
+	public void setWindow(RegionReadStore s, int regionIndex, Region w){
+		store = s;
+		for(int x=0; x<numReps; x++){
+			for(int strand=0; strand<2; strand++){
+				boolean plusStr = strand==0;
+				int from = store.getBlockStart(regionIndex, x, plusStr);
+				int to = store.getBlockEnd(regionIndex, x, plusStr);
+				starts[x*2+strand] = store.lowerBound(from, to, w.getStart());
+				ends[x*2+strand] = store.lowerBound(starts[x*2+strand], to, w.getEnd()+1);
+			}
+		}
+	}
+
+	//Accessors
+	public int getStart(int repIndex, boolean plusStr){return starts[repIndex*2 + (plusStr ? 0 : 1)];}
+	public int getEnd(int repIndex, boolean plusStr){return ends[repIndex*2 + (plusStr ? 0 : 1)];}
+	public int getPosition(int i){return store.getPosition(i);}
+	public float getCount(int i){return store.getCount(i);}
+
+	/**
+	 * Number of reads in a replicate
+	 * @param repIndex
+	 * @return
+	 */
+	public int getNumReads(int repIndex){
+		return (ends[repIndex*2]-starts[repIndex*2]) + (ends[repIndex*2+1]-starts[repIndex*2+1]);
+	}
+
+	/**
+	 * Sum of read weights in a replicate (summed in read order)
+	 * @param repIndex
+	 * @return
+	 */
+	public double getCountTotal(int repIndex){
+		double total=0;
+		for(int strand=0; strand<2; strand++)
+			for(int i=starts[repIndex*2+strand]; i<ends[repIndex*2+strand]; i++)
+				total+=store.getCount(i);
+		return total;
+	}
+
+	/**
+	 * Copy a replicate's reads into read arrays
+	 * @param repIndex
+	 * @param pos : read positions
+	 * @param plus : read strands
+	 * @param weights : read weights
+	 * @param repIndices : replicate index of each read
+	 * @param offset : array index of the first read
+	 * @return array index after the last read
+	 */
+	public int copy(int repIndex, int[] pos, boolean[] plus, double[] weights, int[] repIndices, int offset){
+		int y = offset;
+		for(int strand=0; strand<2; strand++){
+			boolean plusStr = strand==0;
+			for(int i=starts[repIndex*2+strand]; i<ends[repIndex*2+strand]; i++){
+				pos[y] = store.getPosition(i);
+				plus[y] = plusStr;
+				weights[y] = store.getCount(i);
+				repIndices[y] = repIndex;
+				y++;
+			}
+		}
+		return y;
+	}
+}
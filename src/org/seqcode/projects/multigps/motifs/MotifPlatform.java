@@ -1,9 +1,9 @@
 package org.seqcode.projects.multigps.motifs;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -22,7 +22,7 @@ import org.seqcode.gsebricks.verbs.motifs.WeightMatrixScoreProfile;
 import org.seqcode.gsebricks.verbs.motifs.WeightMatrixScorer;
 import org.seqcode.gseutils.Pair;
 import org.seqcode.projects.multigps.framework.MultiGPSConfig;
-import org.seqcode.projects.multigps.mixturemodel.BindingComponent;
+import org.seqcode.projects.multigps.mixturemodel.ComponentStore;
 
 
 public class MotifPlatform {
@@ -61,29 +61,38 @@ public class MotifPlatform {
 	 * Extract sequences around top BindingComponents and call the MEME runner 
 	 * @param cond
 	 * @param activeComponents
+	 * @param regions : test regions (indexing the active components)
 	 * @param trainingRound
 	 */
-	public void findMotifs(ExperimentCondition cond, HashMap<Region, List<List<BindingComponent>>> activeComponents, int trainingRound){
-		List<BindingComponent> peaks = new ArrayList<BindingComponent>();
+	public void findMotifs(ExperimentCondition cond, final ComponentStore activeComponents, List<Region> regions, int trainingRound){
+		final int c = cond.getIndex();
+		final List<Integer> peaks = new ArrayList<Integer>(); //Component indices in the store
+		List<Region> peakRegions = new ArrayList<Region>(); //Region of each peak
 		//Choose which components to include
-		for(Region r : activeComponents.keySet()){
-			for(BindingComponent bc : activeComponents.get(r).get(cond.getIndex())){
+		for(int r=0; r<regions.size(); r++){
+			Region reg = regions.get(r);
+			for(int i=activeComponents.getStart(c, r); i<activeComponents.getEnd(c, r); i++){
+				int position = activeComponents.getPosition(c, i);
 				//Component must not be at the edge of the region 
-				if((bc.getPosition()-r.getStart()>config.MOTIF_FINDING_SEQWINDOW/2) && (r.getEnd()-bc.getPosition()>config.MOTIF_FINDING_SEQWINDOW/2)){
-					peaks.add(bc);
+				if((position-reg.getStart()>config.MOTIF_FINDING_SEQWINDOW/2) && (reg.getEnd()-position>config.MOTIF_FINDING_SEQWINDOW/2)){
+					peaks.add(i);
+					peakRegions.add(reg);
 		}}}
-		//Sort by responsibilities
-		Collections.sort(peaks, new Comparator<BindingComponent>(){
-            public int compare(BindingComponent o1, BindingComponent o2) {return o1.compareByResp(o2);}
+		//Sort by responsibilities (largest first; ties in reverse region order)
+		Integer[] order = new Integer[peaks.size()];
+		for(int b=0; b<order.length; b++)
+			order[b]=b;
+		Arrays.sort(order, new Comparator<Integer>(){
+            public int compare(Integer o1, Integer o2) {return Double.compare(activeComponents.getSumResponsibility(c, peaks.get(o1)), activeComponents.getSumResponsibility(c, peaks.get(o2)));}
         });
-		Collections.reverse(peaks);
 		
 		//Get the top sequences that don't have too many lowercase letters (repeats)
 		List<String> seqs = new ArrayList<String>();
 		int addedSeqs=0;
-		for(int b=0; b<peaks.size() && addedSeqs<config.MOTIF_FINDING_TOPSEQS; b++){
-			BindingComponent bc = peaks.get(b);
-			Region peakReg = new Region(bc.getCoord().getGenome(), bc.getCoord().getChrom(), bc.getPosition()-config.MOTIF_FINDING_SEQWINDOW/2, bc.getPosition()+config.MOTIF_FINDING_SEQWINDOW/2); 
+		for(int b=order.length-1; b>=0 && addedSeqs<config.MOTIF_FINDING_TOPSEQS; b--){
+			Region reg = peakRegions.get(order[b]);
+			int position = activeComponents.getPosition(c, peaks.get(order[b]));
+			Region peakReg = new Region(reg.getGenome(), reg.getChrom(), position-config.MOTIF_FINDING_SEQWINDOW/2, position+config.MOTIF_FINDING_SEQWINDOW/2); 
 			String currSeq = seqgen.execute(peakReg);
 			if(lowercaseFraction(currSeq)<=config.MOTIF_FINDING_ALLOWED_REPETITIVE){
 				seqs.add(currSeq);